@@ -0,0 +1,170 @@
+package MusicPlayer;
+
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.effect.BoxBlur;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Scale;
+
+/**
+ * Draws the music visualizer using canvas commands.
+ */
+final class CanvasRenderer implements SpectrumRenderer {
+	/**
+	 * The canvas onto which all music visuals are drawn.
+	 */
+	private Canvas canvas = null;
+
+	/**
+	 * The graphics context of the canvas object.
+	 */
+	private GraphicsContext graphics = null;
+
+	/**
+	 * The blur that is applied to the canvas after drawing.
+	 */
+	private BoxBlur blur = null;
+
+	/**
+	 * Scales the canvas up to the size of the window.
+	 */
+	private Scale scale = null;
+
+	/**
+	 * The smoothed spectrum and orbs.
+	 */
+	private FramePipeline pipeline = null;
+
+	/**
+	 * The quality at which frames are drawn.
+	 */
+	private Quality quality = Quality.HIGH;
+
+	/**
+	 * The width of the area the canvas is displayed in.
+	 */
+	private double displayWidth = 0.0;
+
+	/**
+	 * The height of the area the canvas is displayed in.
+	 */
+	private double displayHeight = 0.0;
+
+	/**
+	 * The x values where each bin of the audio spectrum is drawn.
+	 */
+	private int[] xs = null;
+
+	/**
+	 * The widths of the areas in which each bin of the audio spectrum is drawn.
+	 */
+	private int[] widths = null;
+
+	/**
+	 * The hues applied to each bin of the audio visualizer.
+	 */
+	private double[] hues = null;
+
+	/**
+	 * Create a canvas renderer.
+	 *
+	 * @param bandCount
+	 *            The initial number of bins into which the audio spectrum is
+	 *            divided.
+	 * @param speckCount
+	 *            The maximum number of orbs.
+	 * @param blur
+	 *            The blur applied after drawing.
+	 */
+	protected CanvasRenderer(int bandCount, int speckCount, BoxBlur blur) {
+		this.blur = blur;
+		pipeline = new FramePipeline(bandCount, speckCount, System.nanoTime());
+		canvas = new Canvas();
+		graphics = canvas.getGraphicsContext2D();
+		scale = new Scale(1.0, 1.0, 0.0, 0.0);
+		canvas.getTransforms().add(scale);
+		layout(bandCount);
+	}
+
+	@Override
+	public Node getNode() {
+		return canvas;
+	}
+
+	@Override
+	public void resize(double width, double height) {
+		displayWidth = width;
+		displayHeight = height;
+		pipeline.particles.radius = Double.min(width, height) * 0.02;
+		double bufferWidth = Math.ceil(width * quality.resolutionScale);
+		double bufferHeight = Math.ceil(height * quality.resolutionScale);
+		canvas.setWidth(bufferWidth);
+		canvas.setHeight(bufferHeight);
+		scale.setX(1.0 / quality.resolutionScale);
+		scale.setY(1.0 / quality.resolutionScale);
+		graphics.setFill(Color.BLACK);
+		graphics.fillRect(0.0, 0.0, bufferWidth, bufferHeight);
+		layout(xs.length);
+	}
+
+	@Override
+	public void setQuality(Quality q) {
+		quality = q;
+		pipeline.particles.count = (int) (pipeline.particles.capacity() * q.particleScale);
+		resize(displayWidth, displayHeight);
+	}
+
+	@Override
+	public boolean draw(double[] amplitudes, double colorShift, boolean playing) {
+		boolean animating = pipeline.step(amplitudes, displayWidth, displayHeight, playing);
+		double[] brightness = pipeline.brightness;
+		ParticleField particles = pipeline.particles;
+		if (brightness.length != xs.length) {
+			layout(brightness.length);
+		}
+
+		graphics.setFill(Color.BLACK);
+		graphics.fillRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
+
+		for (int i = 0; i < xs.length; i += quality.bandStride) {
+			int last = Integer.min(i + quality.bandStride, xs.length) - 1;
+			double value = brightness[i];
+			for (int j = i + 1; j <= last; j++) {
+				value = Double.max(value, brightness[j]);
+			}
+			graphics.setFill(Color.hsb(hues[i] + colorShift, 1.0, value));
+			graphics.fillRect(xs[i], 0, xs[last] + widths[last] - xs[i], canvas.getHeight());
+		}
+
+		double size = particles.radius * quality.resolutionScale;
+		double offset = particles.diameter * quality.resolutionScale;
+		graphics.setFill(new Color(1.0, 1.0, 1.0, particles.opacity * 0.25));
+		for (int i = 0; i < particles.count; i++) {
+			graphics.fillOval(particles.x[i] * canvas.getWidth() - offset,
+					particles.y[i] * canvas.getHeight() - offset, size, size);
+		}
+
+		if (quality.blurScale > 0.0) {
+			graphics.applyEffect(blur);
+		}
+		return animating;
+	}
+
+	/**
+	 * Compute where each bin is drawn.
+	 *
+	 * @param bandCount
+	 *            The number of bins into which the audio spectrum is divided.
+	 */
+	private void layout(int bandCount) {
+		xs = new int[bandCount];
+		widths = new int[bandCount];
+		hues = new double[bandCount];
+		for (int i = 0; i < bandCount; i++) {
+			xs[i] = (int) (((double) i * canvas.getWidth()) / ((double) bandCount));
+			widths[i] = (int) (((double) (i + 1) * canvas.getWidth()) / ((double) bandCount)) - xs[i];
+			hues[i] = (360.0 * ((double) i)) / ((double) bandCount);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package MusicPlayer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+
+import Logging.Logger;
+
+/**
+ * Runs a music player's commands one at a time on a thread of its own, so
+ * that the window never waits while songs are picked, opened or rated. A
+ * command given again before the last one of its kind has started is merged
+ * with it, and run once knowing how many times it was given. Seeking only
+ * keeps the latest position asked for, and seeks at most every
+ * {@link #seekInterval} milliseconds.
+ */
+final class CommandQueue implements Executor {
+	/**
+	 * The fewest milliseconds between two seeks.
+	 */
+	private static final long seekInterval = 50;
+
+	/**
+	 * A command waiting to be run.
+	 */
+	private static final class Command {
+		/**
+		 * What kind of command this is, or null if it is never merged.
+		 */
+		private final Object kind;
+
+		/**
+		 * Runs the command, given the number of times it was given.
+		 */
+		private final IntConsumer action;
+
+		/**
+		 * The number of times the command was given.
+		 */
+		private int times = 1;
+
+		/**
+		 * Create a command given once.
+		 */
+		private Command(Object kind, IntConsumer action) {
+			this.kind = kind;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * The commands waiting to be run, oldest first. Guarded by this queue.
+	 */
+	private final ArrayDeque<Command> commands = new ArrayDeque<Command>();
+
+	/**
+	 * Seeks within the current song.
+	 */
+	private final DoubleConsumer seeker;
+
+	/**
+	 * The latest position to seek to, or NaN if none is waiting. Guarded by
+	 * this queue.
+	 */
+	private double seekRatio = Double.NaN;
+
+	/**
+	 * When the last seek started, in milliseconds. Guarded by this queue.
+	 */
+	private long lastSeek = 0;
+
+	/**
+	 * True once no more commands are taken. Guarded by this queue.
+	 */
+	private boolean stopped = false;
+
+	/**
+	 * Start the thread which runs the commands.
+	 *
+	 * @param seeker
+	 *            Seeks within the current song.
+	 */
+	protected CommandQueue(DoubleConsumer seeker) {
+		this.seeker = seeker;
+		Thread thread = new Thread(this::run, "Player");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Run a task after the commands already given. Never merged.
+	 */
+	@Override
+	public synchronized void execute(Runnable task) {
+		give(null, times -> task.run());
+	}
+
+	/**
+	 * Run a command after those already given, or merge it with the last one
+	 * given if that is of the same kind and hasn't started yet.
+	 *
+	 * @param kind
+	 *            What kind of command this is.
+	 * @param action
+	 *            Runs the command, given how many times it was given.
+	 */
+	protected synchronized void give(Object kind, IntConsumer action) {
+		if (stopped) {
+			return;
+		}
+		Command last = commands.peekLast();
+		if (kind != null && last != null && last.kind == kind) {
+			last.times++;
+		} else {
+			commands.add(new Command(kind, action));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Seek within the current song, replacing any seek not yet made.
+	 *
+	 * @param ratio
+	 *            A value from 0.0 (beginning) to 1.0 (end).
+	 */
+	protected synchronized void seek(double ratio) {
+		seekRatio = ratio;
+		notifyAll();
+	}
+
+	/**
+	 * Forget any seek not yet made. Used before the song changes.
+	 */
+	protected synchronized void cancelSeek() {
+		seekRatio = Double.NaN;
+	}
+
+	/**
+	 * Run one last task after the commands already given, then end the
+	 * thread. Commands given afterwards are ignored.
+	 */
+	protected synchronized void stop(Runnable last) {
+		execute(last);
+		stopped = true;
+		seekRatio = Double.NaN;
+	}
+
+	/**
+	 * Run commands and seeks as they are given, until stopped.
+	 */
+	private void run() {
+		while (true) {
+			Command command = null;
+			double ratio = Double.NaN;
+			synchronized (this) {
+				try {
+					while (commands.isEmpty() && !stopped) {
+						long wait = Double.isNaN(seekRatio) ? 0 : lastSeek + seekInterval - System.currentTimeMillis();
+						if (!Double.isNaN(seekRatio) && wait <= 0) {
+							break;
+						}
+						wait(wait);
+					}
+				} catch (InterruptedException ex) {
+					return;
+				}
+				if (!commands.isEmpty()) {
+					command = commands.poll();
+				} else if (stopped) {
+					return;
+				} else {
+					ratio = seekRatio;
+					seekRatio = Double.NaN;
+					lastSeek = System.currentTimeMillis();
+				}
+			}
+			try {
+				if (command != null) {
+					command.action.accept(command.times);
+				} else {
+					seeker.accept(ratio);
+				}
+			} catch (RuntimeException ex) {
+				Logger.log(ex.toString());
+			}
+		}
+	}
+}
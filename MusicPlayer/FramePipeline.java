@@ -0,0 +1,256 @@
+package MusicPlayer;
+
+import java.util.Arrays;
+
+/**
+ * The per-frame math of the music visualizer: smoothing the spectrum, moving
+ * the orbs and painting pixels. Has no ties to the application thread, so it
+ * can run on any single thread or without a display at all. Each stage can
+ * also be called on its own.
+ */
+final class FramePipeline {
+	/**
+	 * Used to look up the color of each bin.
+	 */
+	private static final Palette palette = new Palette();
+
+	/**
+	 * The number of times the blur box is applied, as with the blur effect.
+	 */
+	private static final int blurIterations = 2;
+
+	/**
+	 * Blur boxes at least this many pixels wide are applied at half
+	 * resolution.
+	 */
+	private static final double halfResolutionBlurSize = 8.0;
+
+	/**
+	 * The brightness of each bin of the audio visualizer.
+	 */
+	protected double[] brightness = null;
+
+	/**
+	 * The orbs drawn over the audio spectrum.
+	 */
+	protected final ParticleField particles;
+
+	/**
+	 * Softens the painted frame.
+	 */
+	private final PixelBlur blur = new PixelBlur(true);
+
+	/**
+	 * True iff the last call to {@link #smooth(double[])} changed the visuals
+	 * noticeably.
+	 */
+	private boolean settling = true;
+
+	/**
+	 * The frame width the layout was computed for.
+	 */
+	private int layoutWidth = -1;
+
+	/**
+	 * The x values where each bin of the audio spectrum is drawn.
+	 */
+	private int[] xs = new int[0];
+
+	/**
+	 * The widths of the areas in which each bin of the audio spectrum is drawn.
+	 */
+	private int[] widths = new int[0];
+
+	/**
+	 * The hues applied to each bin of the audio visualizer.
+	 */
+	private double[] hues = new double[0];
+
+	/**
+	 * Create the state for a visualizer.
+	 *
+	 * @param bandCount
+	 *            The initial number of bins into which the audio spectrum is
+	 *            divided.
+	 * @param speckCount
+	 *            The maximum number of orbs.
+	 * @param seed
+	 *            The seed for the orbs' random movement.
+	 */
+	protected FramePipeline(int bandCount, int speckCount, long seed) {
+		brightness = new double[bandCount];
+		particles = new ParticleField(speckCount, seed);
+	}
+
+	/**
+	 * Advance the visuals by one frame.
+	 *
+	 * @param amplitudes
+	 *            The loudness of each bin from 0.0 to 1.0.
+	 * @param width
+	 *            The width of the screen.
+	 * @param height
+	 *            The height of the screen.
+	 * @param playing
+	 *            True iff a song is playing.
+	 * @return True iff the visuals will keep changing without new input.
+	 */
+	protected boolean step(double[] amplitudes, double width, double height, boolean playing) {
+		double bassAmplitude = smooth(amplitudes);
+		particles.update(bassAmplitude, width, height);
+
+		// keep drawing until the smoothing settles or while orbs move
+		return settling || (particles.count > 0 && playing);
+	}
+
+	/**
+	 * Ease the brightness of each bin and the opacity of the orbs toward the
+	 * new spectrum.
+	 *
+	 * @param amplitudes
+	 *            The loudness of each bin from 0.0 to 1.0.
+	 * @return The loudness of the bass from 0.0 to 1.0.
+	 */
+	protected double smooth(double[] amplitudes) {
+		// the number of columns follows the spectrum data
+		int columns = amplitudes.length;
+		if (brightness.length != columns) {
+			brightness = resample(brightness, columns);
+		}
+
+		double bassAmplitude = 0.0;
+		double maxAmplitude = 0.0;
+		double change = 0.0;
+
+		for (int i = 0; i < columns; i++) {
+			bassAmplitude = Double.max(bassAmplitude,
+					amplitudes[i] * Math.pow((double) (columns - i) / (double) columns, 10.0));
+			maxAmplitude = Double.max(maxAmplitude, amplitudes[i]);
+
+			double last = brightness[i];
+			brightness[i] = brightness[i] * 0.9
+					+ 0.1 * Math.pow(0.5 * (Math.pow(brightness[i], 2.0) + Math.pow(amplitudes[i], 2.0)), 0.5);
+			change = Double.max(change, Math.abs(brightness[i] - last));
+		}
+
+		maxAmplitude = Double.min(maxAmplitude, 1.0);
+		double lastOpacity = particles.opacity;
+		particles.opacity = (0.8 * particles.opacity + 0.2 * Math.pow(maxAmplitude, 2.0)) * 0.9 + 0.1;
+		change = Double.max(change, Math.abs(particles.opacity - lastOpacity));
+
+		settling = change > 1.0 / 512.0;
+		return bassAmplitude;
+	}
+
+	/**
+	 * Paint the current frame into a premultiplied ARGB buffer.
+	 *
+	 * @param pixels
+	 *            The frame's pixels.
+	 * @param width
+	 *            The width of the frame.
+	 * @param height
+	 *            The height of the frame.
+	 * @param colorShift
+	 *            The shift in the hues due to the duration remaining in the
+	 *            song.
+	 * @param quality
+	 *            The quality at which to draw.
+	 */
+	protected void paint(int[] pixels, int width, int height, double colorShift, Quality quality) {
+		paintBands(pixels, width, height, colorShift, quality);
+		particles.draw(pixels, width, height, quality.resolutionScale);
+		blur(pixels, width, height, quality);
+	}
+
+	/**
+	 * Fill an ARGB buffer with the colored bins of the spectrum.
+	 *
+	 * @param pixels
+	 *            The frame's pixels.
+	 * @param width
+	 *            The width of the frame.
+	 * @param height
+	 *            The height of the frame.
+	 * @param colorShift
+	 *            The shift in the hues due to the duration remaining in the
+	 *            song.
+	 * @param quality
+	 *            The quality at which to draw.
+	 */
+	protected void paintBands(int[] pixels, int width, int height, double colorShift, Quality quality) {
+		if (brightness.length != xs.length || width != layoutWidth) {
+			layout(brightness.length, width);
+		}
+
+		// every bin spans the full height, so draw one row and copy it down
+		for (int i = 0; i < xs.length; i += quality.bandStride) {
+			int last = Integer.min(i + quality.bandStride, xs.length) - 1;
+			double value = brightness[i];
+			for (int j = i + 1; j <= last; j++) {
+				value = Double.max(value, brightness[j]);
+			}
+			Arrays.fill(pixels, xs[i], xs[last] + widths[last], palette.color(hues[i] + colorShift, value));
+		}
+		for (int y = 1; y < height; y++) {
+			System.arraycopy(pixels, 0, pixels, y * width, width);
+		}
+	}
+
+	/**
+	 * Soften a painted frame by an amount sized to the orbs.
+	 *
+	 * @param pixels
+	 *            The frame's pixels.
+	 * @param width
+	 *            The width of the frame.
+	 * @param height
+	 *            The height of the frame.
+	 * @param quality
+	 *            The quality at which to draw.
+	 */
+	protected void blur(int[] pixels, int width, int height, Quality quality) {
+		// the box is sized to the orbs on the scaled down buffer
+		double blurSize = particles.radius * 0.5 * quality.blurScale * quality.resolutionScale;
+		blur.apply(pixels, width, height, blurSize, blurIterations, blurSize >= halfResolutionBlurSize ? 2 : 1);
+	}
+
+	/**
+	 * Compute where each bin is drawn.
+	 *
+	 * @param bandCount
+	 *            The number of bins into which the audio spectrum is divided.
+	 * @param width
+	 *            The width of the frame.
+	 */
+	private void layout(int bandCount, int width) {
+		layoutWidth = width;
+		xs = new int[bandCount];
+		widths = new int[bandCount];
+		hues = new double[bandCount];
+		for (int i = 0; i < bandCount; i++) {
+			xs[i] = (int) (((long) i * width) / bandCount);
+			widths[i] = (int) (((long) (i + 1) * width) / bandCount) - xs[i];
+			hues[i] = (360.0 * ((double) i)) / ((double) bandCount);
+		}
+	}
+
+	/**
+	 * Stretch or shrink an array, keeping the nearest values.
+	 *
+	 * @param values
+	 *            The original values.
+	 * @param length
+	 *            The length of the new array.
+	 * @return A new array of the given length.
+	 */
+	private static double[] resample(double[] values, int length) {
+		double[] result = new double[length];
+		if (values.length > 0) {
+			for (int i = 0; i < length; i++) {
+				result[i] = values[(int) (((long) i * values.length) / length)];
+			}
+		}
+		return result;
+	}
+}
@@ -2,8 +2,9 @@ package MusicPlayer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Random;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 import javafx.animation.AnimationTimer;
@@ -14,17 +15,23 @@ import javafx.beans.value.ObservableValue;
 import javafx.event.Event;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Cursor;
 import javafx.scene.Scene;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
 import javafx.scene.effect.BoxBlur;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Background;
 import javafx.scene.layout.BackgroundFill;
 import javafx.scene.layout.CornerRadii;
 import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
 import javafx.scene.media.AudioSpectrumListener;
 import javafx.scene.media.MediaPlayer;
 import javafx.scene.paint.Color;
@@ -32,7 +39,11 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
-// ignore music files longer than 10 min?
+import WeightedPlaylist.AudioSource;
+import WeightedPlaylist.MusicFile;
+import WeightedPlaylist.Playlist;
+import WeightedPlaylist.WeightStore;
+
 // songs start at 10, fade to 1?
 // in file have rating followed by name
 // have folder names with modifier
@@ -56,11 +67,48 @@ public class MediaWindow extends Application {
 	 */
 	private static final Preferences preferences = Preferences.userNodeForPackage(MediaWindow.class);
 
+	/**
+	 * The most songs and folders listed when searching.
+	 */
+	private static final int searchLimit = 50;
+
+	/**
+	 * The days it may take for favoring or skipping a song to be half
+	 * forgotten, in the order they are chosen from. 0.0 never forgets.
+	 */
+	private static final double[] halfLives = { 90.0, 365.0, 0.0, 30.0 };
+
+	/**
+	 * The longest songs played in seconds, in the order they are chosen from.
+	 * 0.0 plays songs of any length.
+	 */
+	private static final double[] maxDurations = { 0.0, 600.0, 360.0 };
+
+	/**
+	 * The length of the block of songs queued at once, in minutes.
+	 */
+	private static final double fillMinutes = 60.0;
+
 	/**
 	 * The music player that will provide abstraction for song selection.
 	 */
 	private MusicPlayer musicPlayer = null;
 
+	/**
+	 * The music player of the folder being opened, until it starts playing.
+	 */
+	private MusicPlayer openingPlayer = null;
+
+	/**
+	 * The folders of the library being opened.
+	 */
+	private List<File> openingLibrary = null;
+
+	/**
+	 * The folders of the library being played.
+	 */
+	private List<File> library = new ArrayList<File>();
+
 	/**
 	 * The folder that was previously opened by the user.
 	 */
@@ -72,14 +120,14 @@ public class MediaWindow extends Application {
 	private ArrayList<FadeButton> buttons = null;
 
 	/**
-	 * The graphics context of the canvas object.
+	 * The available ways of drawing the music visuals.
 	 */
-	private GraphicsContext graphics = null;
+	private SpectrumRenderer[] renderers = null;
 
 	/**
-	 * The canvas onto which all music visuals are drawn.
+	 * The renderer currently drawing the music visuals.
 	 */
-	private Canvas canvas = null;
+	private SpectrumRenderer renderer = null;
 
 	/**
 	 * The spectrum listener which updates the music visualizer.
@@ -97,15 +145,10 @@ public class MediaWindow extends Application {
 	private Stage stage = null;
 
 	/**
-	 * The blur that is applied to the canvas after drawing.
+	 * The blur that is applied to the canvas visuals after drawing.
 	 */
 	private BoxBlur blur = null;
 
-	/**
-	 * The random number generator used for song selection among other things.
-	 */
-	private Random rand = null;
-
 	/**
 	 * The stack pane that contains the various content panes of the
 	 * application.
@@ -118,34 +161,34 @@ public class MediaWindow extends Application {
 	private LinkedList<Pane> innerPane = null;
 
 	/**
-	 * The object representing the orbs in the music visualizer.
+	 * Holds the search field and its results.
 	 */
-	private BassBall[] dots = null;
+	private VBox searchPane = null;
 
 	/**
-	 * The timer used to update the visuals of the music player.
+	 * Where the user types the name of a song or folder to play next.
 	 */
-	private AnimationTimer timer = null;
+	private TextField searchField = null;
 
 	/**
-	 * The x values where each bin of the audio spectrum is drawn.
+	 * The songs and folders matching the search.
 	 */
-	private int[] xs = null;
+	private ListView<AudioSource> searchResults = null;
 
 	/**
-	 * The widths of the areas in which each bin of the audio spectrum is drawn.
+	 * Lowers the quality of the visuals when frames cannot be drawn in time.
 	 */
-	private int[] widths = null;
+	private QualityGovernor governor = null;
 
 	/**
-	 * The hues applied to each bin of the audio visualizer.
+	 * The timer used to update the visuals of the music player.
 	 */
-	private double[] hues = null;
+	private AnimationTimer timer = null;
 
 	/**
-	 * The brightness of each bin of the audio visualizer.
+	 * Decides when the visuals need to be drawn.
 	 */
-	private double[] brightness = null;
+	private RenderScheduler scheduler = null;
 
 	/**
 	 * The array of audio amplitudes updated by the spectrum listener.
@@ -158,26 +201,32 @@ public class MediaWindow extends Application {
 	private double colorShift = 0.0;
 
 	/**
-	 * The number of orbs drawn on the screen.
+	 * The number of orbs drawn on the screen by the canvas renderer, which
+	 * draws each orb with a call of its own.
 	 */
-	private int speckCount = 0; // 256
+	private int speckCount = 0;
+
+	/**
+	 * The number of orbs drawn on the screen by the renderers which draw into
+	 * a pixel buffer.
+	 */
+	private int pixelSpeckCount = 2048;
 
 	/**
 	 * The number of bin into which the audio spectrum is divided.
 	 */
-	private int bandCount = 1024;
+	private int bandCount = SpectrumMapper.maxBands;
 
 	/**
-	 * Play the next song.
+	 * How bins are combined into columns. Interpolating keeps one column per
+	 * bin; the others choose the number of bins from the size of the window.
 	 */
-	private final Runnable playNext = new Runnable() {
-		@Override
-		public void run() {
-			if (musicPlayer != null) {
-				musicPlayer.playNext();
-			}
-		}
-	};
+	private SpectrumMapper.Aggregation aggregation = SpectrumMapper.Aggregation.INTERPOLATE;
+
+	/**
+	 * Maps the bins of the audio spectrum onto the drawn columns.
+	 */
+	private SpectrumMapper mapper = null;
 
 	/**
 	 * Starts the application.
@@ -198,28 +247,25 @@ public class MediaWindow extends Application {
 		stage.setHeight(400);
 		stage.setWidth(800);
 
-		rand = new Random();
-
 		innerPane = new LinkedList<Pane>();
-		dots = new BassBall[speckCount];
-		for (int i = 0; i < dots.length; i++) {
-			dots[i] = new BassBall(rand.nextDouble() * 360.0);
+
+		governor = new QualityGovernor();
+		for (Quality quality : Quality.values()) {
+			if (quality.name().equals(preferences.get("quality", ""))) {
+				governor.pin(quality);
+			}
 		}
 
-		xs = new int[bandCount];
-		widths = new int[bandCount];
-		hues = new double[bandCount];
-		brightness = new double[bandCount];
+		for (SpectrumMapper.Aggregation a : SpectrumMapper.Aggregation.values()) {
+			if (a.name().equals(preferences.get("aggregation", ""))) {
+				aggregation = a;
+			}
+		}
+		mapper = new SpectrumMapper(bandCount, aggregation);
 
 		folderChooser = new DirectoryChooser();
 		folderChooser.setTitle("Playlist Folder Selection");
 
-		canvas = new Canvas();
-		canvas.widthProperty().addListener(e -> redraw());
-		canvas.heightProperty().addListener(e -> redraw());
-
-		graphics = canvas.getGraphicsContext2D();
-
 		FadeButton.setMaxOpacity(0.5);
 
 		FadeButton playButton = new FadeButton("Play/Pause");
@@ -246,28 +292,25 @@ public class MediaWindow extends Application {
 		blur.setWidth(4.0);
 		blur.setIterations(2);
 
+		renderers = new SpectrumRenderer[] { new CanvasRenderer(bandCount, speckCount, blur),
+				new PixelRenderer(bandCount, pixelSpeckCount), new ThreadedRenderer(bandCount, pixelSpeckCount) };
+		renderer = renderers[Integer.min(Integer.max(preferences.getInt("renderer", 0), 0), renderers.length - 1)];
+		for (SpectrumRenderer sr : renderers) {
+			sr.getNode().setVisible(sr == renderer);
+		}
+
 		// used to create the visuals; lots of custom math
 		visual = new AudioSpectrumListener() {
 
 			@Override
 			public void spectrumDataUpdate(double timestamp, double duration, float[] magnitudes, float[] phases) {
-				double[] amplitudes = new double[magnitudes.length];
-				for (int i = 0; i < magnitudes.length - 1; i++) {
-					double interpolate = (double) i / (double) (magnitudes.length);
-					double scale = 50;
-					double stretch = 0.5;
-					interpolate = stretch * (Math.pow(scale, interpolate) - 1.0) / (scale - 1.0);
-					interpolate *= (double) (magnitudes.length);
-					int index = (int) interpolate;
-					double ratio = interpolate - (double) (index);
-
-					double result1 = Double.min(1.0, Math.sqrt(Math.abs((magnitudes[index] + 60.0) / 50.0)));
-					double result2 = Double.min(1.0, Math.sqrt(Math.abs((magnitudes[index + 1] + 60.0) / 50.0)));
-					double result = result1 * (1.0 - ratio) + result2 * ratio;
-					amplitudes[i] = result;
-				}
+				double[] amplitudes = mapper.map(magnitudes);
 
-				newAmplitudes = amplitudes;
+				// identical data (e.g. silence) does not need to be drawn again
+				if (!Arrays.equals(amplitudes, newAmplitudes)) {
+					newAmplitudes = amplitudes;
+					scheduler.invalidate();
+				}
 			}
 		};
 
@@ -276,85 +319,57 @@ public class MediaWindow extends Application {
 
 			@Override
 			public void handle(long now) {
-				double[] amplitudes = newAmplitudes;
-				// newAmplitudes = null;
-				if (amplitudes != null) {
-					graphics.setFill(Color.BLACK);
-					graphics.fillRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
+				if (governor.frame(now)) {
+					applyQuality();
+				}
+
+				boolean visualsAnimating = false;
+				boolean othersAnimating = false;
 
+				double[] amplitudes = newAmplitudes;
+				if (amplitudes != null && scheduler.beginFrame()) {
 					double ratio = 0.0;
 					if (musicPlayer != null) {
 						ratio = musicPlayer.getRatio();
 					}
 
 					colorShift = 360.0 * (1.0 - ratio);
-
-					double bassAmplitude = 0.0;
-					double maxAmplitude = 0.0;
-
-					for (int i = 0; i < bandCount; i++) {
-						bassAmplitude = Double.max(bassAmplitude,
-								amplitudes[i] * Math.pow((double) (bandCount - i) / (double) bandCount, 10.0));
-						maxAmplitude = Double.max(maxAmplitude, amplitudes[i]);
-
-						brightness[i] = brightness[i] * 0.9 + 0.1
-								* Math.pow(0.5 * (Math.pow(brightness[i], 2.0) + Math.pow(amplitudes[i], 2.0)), 0.5);
-
-						graphics.setFill(Color.hsb(hues[i] + colorShift, 1.0, brightness[i]));
-						graphics.fillRect(xs[i], 0, widths[i], canvas.getHeight());
-					}
-
-					maxAmplitude = Double.min(maxAmplitude, 1.0);
-					BassBall.opacity = (0.8 * BassBall.opacity + 0.2 * Math.pow(maxAmplitude, 2.0)) * 0.9 + 0.1;
-					Color ballColor = new Color(1.0, 1.0, 1.0, BassBall.opacity * 0.25);
-
-					double screenWidth = (canvas.getWidth() + BassBall.diameter) / canvas.getWidth();
-					double screenHeight = (canvas.getHeight() + BassBall.diameter) / canvas.getHeight();
-					double speed = 0.002;
-					for (BassBall dot : dots) {
-						dot.direction += ((rand.nextDouble() - 0.5) * bassAmplitude * 5) * (1.0 - dot.x)
-								+ 2.0 * Math.PI;
-						dot.direction %= 2.0 * Math.PI;
-						dot.x += Math.cos(dot.direction) * speed + screenWidth;
-						dot.x %= screenWidth;
-						dot.y += Math.sin(dot.direction) * speed + screenHeight;
-						dot.y %= screenHeight;
-						graphics.setFill(ballColor);
-						graphics.fillOval(dot.x * canvas.getWidth() - BassBall.diameter,
-								dot.y * canvas.getHeight() - BassBall.diameter, BassBall.radius, BassBall.radius);
-					}
-
-					graphics.applyEffect(blur);
+					visualsAnimating = renderer.draw(amplitudes, colorShift, scheduler.isPlaying());
 				}
 
 				for (FadeButton fb : buttons) {
+					// faded buttons are left alone
+					if (fb.opacity <= 0.001) {
+						if (fb.opacity > 0.0) {
+							fb.opacity = 0.0;
+							fb.setFill(Color.TRANSPARENT);
+						}
+						continue;
+					}
+					othersAnimating = true;
 					fb.setFill(new Color(fb.color.getRed(), fb.color.getGreen(), fb.color.getBlue(), fb.opacity));
 					fb.opacity = Math.pow(fb.opacity, 1.02);
 				}
+
+				scheduler.endFrame(visualsAnimating, othersAnimating);
 			}
 		};
+		scheduler = new RenderScheduler(timer, visual);
 
-		// stop the animations when the screen is minimized
-		stage.iconifiedProperty().addListener(new ChangeListener<Boolean>() {
+		// stop the animations when the screen is minimized or hidden
+		ChangeListener<Boolean> visibility = new ChangeListener<Boolean>() {
 			@Override
 			public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
-				if (newValue != null) {
-					if (newValue.booleanValue()) {
-						timer.stop();
-					} else {
-						timer.start();
-					}
-				}
+				scheduler.setVisible(stage.isShowing() && !stage.isIconified());
 			}
-		});
-
-		// pre-calculate the hues
-		for (int i = 0; i < bandCount; i++) {
-			hues[i] = (360.0 * ((double) i)) / ((double) bandCount);
-		}
-		redraw();
+		};
+		stage.iconifiedProperty().addListener(visibility);
+		stage.showingProperty().addListener(visibility);
 
 		mainPane = new StackPane();
+		mainPane.widthProperty().addListener(e -> redraw());
+		mainPane.heightProperty().addListener(e -> redraw());
+		applyQuality();
 
 		// add a fullscreen button
 		fullScreen.setOnMouseClicked(new EventHandler<MouseEvent>() {
@@ -407,7 +422,10 @@ public class MediaWindow extends Application {
 			@Override
 			public void handle(MouseEvent ev) {
 				nextButton.opacity = FadeButton.maxOpacity;
-				if (musicPlayer != null) {
+				// shift skips the whole folder instead
+				if (musicPlayer != null && ev.isShiftDown()) {
+					musicPlayer.skipFolder();
+				} else if (musicPlayer != null) {
 					musicPlayer.skipNext();
 				}
 			}
@@ -421,7 +439,8 @@ public class MediaWindow extends Application {
 				if (lastPickedFolder != null) {
 					folderChooser.setInitialDirectory(lastPickedFolder);
 				}
-				openFolder(folderChooser.showDialog(stage));
+				// shift adds the folder to the library instead
+				openFolder(folderChooser.showDialog(stage), ev.isShiftDown());
 			}
 		});
 
@@ -430,7 +449,7 @@ public class MediaWindow extends Application {
 			@Override
 			public void handle(MouseEvent ev) {
 				clickSeek.opacity = FadeButton.maxOpacity;
-				double seekRatio = ev.getSceneX() / canvas.getWidth();
+				double seekRatio = ev.getSceneX() / mainPane.getWidth();
 				seekRatio = Double.min(1.0, seekRatio);
 				seekRatio = Double.max(0.0, seekRatio);
 				if (musicPlayer != null) {
@@ -445,17 +464,16 @@ public class MediaWindow extends Application {
 			@Override
 			public void handle(MouseEvent ev) {
 				favorite.opacity = FadeButton.maxOpacity;
-				if (musicPlayer != null) {
+				// shift favors the whole folder instead
+				if (musicPlayer != null && ev.isShiftDown()) {
+					musicPlayer.favoriteFolder();
+				} else if (musicPlayer != null) {
 					musicPlayer.favorite();
-					;
 				}
 			}
 		});
 
 		// align all the elements
-		canvas.widthProperty().bind(mainPane.widthProperty());
-		canvas.heightProperty().bind(mainPane.heightProperty());
-
 		prevButton.widthProperty().bind(mainPane.widthProperty().subtract(20).multiply(0.3));
 		prevButton.heightProperty().bind(mainPane.heightProperty().subtract(20).multiply(0.8));
 		prevButton.yProperty().bind(mainPane.heightProperty().subtract(20).multiply(0.1).add(10));
@@ -489,13 +507,77 @@ public class MediaWindow extends Application {
 		clickSeek.widthProperty().bind(mainPane.widthProperty().multiply(1.0));
 		clickSeek.yProperty().bind(mainPane.heightProperty().subtract(20).multiply(0.9).add(20));
 
+		// find a song or folder to play next
+		searchField = new TextField();
+		searchField.setPromptText("Play next...");
+		searchField.textProperty().addListener((observable, oldValue, newValue) -> search());
+		searchField.setOnKeyPressed(new EventHandler<KeyEvent>() {
+			@Override
+			public void handle(KeyEvent ev) {
+				if (ev.getCode() == KeyCode.ENTER) {
+					if (searchResults.getSelectionModel().isEmpty()) {
+						searchResults.getSelectionModel().selectFirst();
+					}
+					playSearchResult();
+				} else if (ev.getCode() == KeyCode.ESCAPE) {
+					closeSearch();
+				} else if (ev.getCode() == KeyCode.DOWN) {
+					searchResults.requestFocus();
+					searchResults.getSelectionModel().selectFirst();
+				}
+			}
+		});
+		searchResults = new ListView<AudioSource>();
+		searchResults.setPrefHeight(250);
+		searchResults.setCellFactory(list -> new ListCell<AudioSource>() {
+			@Override
+			protected void updateItem(AudioSource item, boolean empty) {
+				super.updateItem(item, empty);
+				if (empty || item == null) {
+					setText(null);
+				} else if (item instanceof Playlist) {
+					setText(item.getName() + "/");
+				} else {
+					setText(item.getName());
+				}
+			}
+		});
+		searchResults.setOnKeyPressed(new EventHandler<KeyEvent>() {
+			@Override
+			public void handle(KeyEvent ev) {
+				if (ev.getCode() == KeyCode.ENTER) {
+					playSearchResult();
+				} else if (ev.getCode() == KeyCode.ESCAPE) {
+					closeSearch();
+				}
+			}
+		});
+		searchResults.setOnMouseClicked(new EventHandler<MouseEvent>() {
+			@Override
+			public void handle(MouseEvent ev) {
+				if (ev.getClickCount() == 2) {
+					playSearchResult();
+				}
+			}
+		});
+		searchPane = new VBox(searchField, searchResults);
+		searchPane.setMaxWidth(500);
+		searchPane.setMaxHeight(Region.USE_PREF_SIZE);
+		searchPane.setPadding(new Insets(10));
+		searchPane.setVisible(false);
+		StackPane.setAlignment(searchPane, Pos.TOP_CENTER);
+
 		// construct the player
 		innerPane.add(new Pane());
-		innerPane.getLast().getChildren().add(canvas);
+		for (SpectrumRenderer sr : renderers) {
+			innerPane.getLast().getChildren().add(sr.getNode());
+		}
 
 		innerPane.add(new Pane());
 		innerPane.getLast().getChildren().addAll(buttons);
 
+		innerPane.add(searchPane);
+
 		mainPane.setBackground(new Background(new BackgroundFill(Color.BLACK, CornerRadii.EMPTY, Insets.EMPTY)));
 		mainPane.getChildren().addAll(innerPane);
 
@@ -507,16 +589,59 @@ public class MediaWindow extends Application {
 		scene.addEventHandler(Event.ANY, e -> {
 			idle.playFromStart();
 			scene.setCursor(Cursor.DEFAULT);
+			scheduler.requestFrame();
+		});
+
+		// switch between the ways of drawing the visuals
+		scene.setOnKeyPressed(new EventHandler<KeyEvent>() {
+			@Override
+			public void handle(KeyEvent ev) {
+				if (searchPane.isVisible()) {
+					return;
+				}
+				if (ev.isShortcutDown() && ev.getCode() == KeyCode.F) {
+					// the shortcut keeps the key from being typed into the field
+					openSearch();
+				} else if (ev.getCode() == KeyCode.V) {
+					nextRenderer();
+				} else if (ev.getCode() == KeyCode.Q) {
+					nextPinnedQuality();
+				} else if (ev.getCode() == KeyCode.B) {
+					nextAggregation();
+				} else if (ev.getCode() == KeyCode.L) {
+					// used the next time a folder is opened
+					preferences.putBoolean("lazy", !preferences.getBoolean("lazy", false));
+				} else if (ev.getCode() == KeyCode.P) {
+					// used the next time a folder is opened
+					preferences.putBoolean("precomputed", !preferences.getBoolean("precomputed", false));
+				} else if (ev.getCode() == KeyCode.H) {
+					// used the next time a folder is opened
+					nextHalfLife();
+				} else if (ev.getCode() == KeyCode.D) {
+					// used the next time a folder is opened
+					preferences.putBoolean("store", !preferences.getBoolean("store", false));
+				} else if (ev.getCode() == KeyCode.M) {
+					nextMaxDuration();
+				} else if (ev.getCode() == KeyCode.T) {
+					if (musicPlayer != null) {
+						musicPlayer.fill(fillMinutes);
+					}
+				}
+			}
 		});
 
 		stage.setScene(scene);
 		stage.show();
-		timer.start();
+		scheduler.requestFrame();
 
-		// open the last played folder
+		// open the last played folders
 		String lastPlayed = preferences.get("lastPlayed", "");
 		if (!lastPlayed.equals("")) {
-			openFolder(new File(lastPlayed));
+			ArrayList<File> roots = new ArrayList<File>();
+			for (String path : lastPlayed.split("\n")) {
+				roots.add(new File(path));
+			}
+			openLibrary(roots);
 		}
 
 	}
@@ -524,35 +649,297 @@ public class MediaWindow extends Application {
 	/**
 	 * Opens a folder and attempt to play songs from it.
 	 * @param folder The folder to search.
+	 * @param add True to play songs from the folders already opened as well.
 	 */
-	private void openFolder(File folder) {
-		if (folder == null || !folder.exists()) {
+	private void openFolder(File folder, boolean add) {
+		if (folder == null || !folder.isDirectory()) {
 			return;
 		} else {
 			lastPickedFolder = folder.getParentFile();
 		}
 
-		musicPlayer = new MusicPlayer(folder, this);
-		if (musicPlayer.isValid()) {
-			preferences.put("lastPlayed", folder.getAbsolutePath());
+		ArrayList<File> roots = new ArrayList<File>();
+		if (add) {
+			// the library still being opened, if there is one
+			roots.addAll(openingPlayer != null ? openingLibrary : library);
+		}
+		if (!roots.contains(folder)) {
+			roots.add(folder);
+		}
+		openLibrary(roots);
+	}
+
+	/**
+	 * Opens a library made of several folders and attempt to play songs from
+	 * all of them.
+	 * @param roots The folders to search.
+	 */
+	private void openLibrary(List<File> roots) {
+		// the current songs play on until the new ones start
+		if (musicPlayer != null) {
+			musicPlayer.stopPicking();
+		}
+		if (openingPlayer != null) {
+			openingPlayer.stopPicking();
+		}
+		Runnable store = useStore(roots);
+		openingLibrary = roots;
+		MusicFile.setHalfLife(preferences.getDouble("halfLife", halfLives[0]));
+		openingPlayer = new MusicPlayer(roots, this, preferences.getBoolean("lazy", false),
+				preferences.getBoolean("precomputed", false), getMaxDuration(), store);
+	}
+
+	/**
+	 * Keep preferences in the weight store or in each folder, as chosen. The
+	 * preferences of the folders being opened are moved into the store the
+	 * first time, and those of the folders played and being opened are moved
+	 * out of it when it is no longer used. This reads or writes every folder,
+	 * so it is run by the music player on its own thread.
+	 * 
+	 * @param roots The folders being opened.
+	 * @return Moves the preferences.
+	 */
+	private Runnable useStore(List<File> roots) {
+		boolean store = preferences.getBoolean("store", false);
+		List<File> played = new ArrayList<File>(library);
+		return () -> {
+			if (store) {
+				if (WeightStore.open()) {
+					for (File root : roots) {
+						if (!WeightStore.isImported(root)) {
+							WeightStore.importFiles(root);
+						}
+					}
+				}
+			} else if (WeightStore.isOpen()) {
+				for (File root : played) {
+					WeightStore.exportFiles(root);
+				}
+				for (File root : roots) {
+					WeightStore.exportFiles(root);
+				}
+				WeightStore.close();
+			}
+		};
+	}
+
+	/**
+	 * Switch to a music player once its songs start playing.
+	 * 
+	 * @param player The music player of the folder being opened.
+	 */
+	protected void started(MusicPlayer player) {
+		if (player != openingPlayer) {
+			return;
+		}
+		if (musicPlayer != null) {
+			musicPlayer.close();
+		}
+		musicPlayer = player;
+		openingPlayer = null;
+		library = openingLibrary;
+		// results from the old library can't be played by the new player
+		search();
+		ArrayList<String> paths = new ArrayList<String>();
+		for (File root : library) {
+			paths.add(root.getAbsolutePath());
+		}
+		preferences.put("lastPlayed", String.join("\n", paths));
+	}
+
+	/**
+	 * Show the search field, ready for typing.
+	 */
+	private void openSearch() {
+		searchField.clear();
+		searchResults.getItems().clear();
+		searchPane.setVisible(true);
+		searchField.requestFocus();
+	}
+
+	/**
+	 * List the songs and folders of the library being played which match the
+	 * search field.
+	 */
+	private void search() {
+		if (musicPlayer == null) {
+			searchResults.getItems().clear();
 		} else {
-			musicPlayer = null;
+			searchResults.getItems().setAll(musicPlayer.search(searchField.getText(), searchLimit));
+		}
+	}
+
+	/**
+	 * Hide the search field.
+	 */
+	private void closeSearch() {
+		searchPane.setVisible(false);
+		mainPane.requestFocus();
+	}
+
+	/**
+	 * Play the selected song or folder after the current song.
+	 */
+	private void playSearchResult() {
+		AudioSource chosen = searchResults.getSelectionModel().getSelectedItem();
+		if (chosen != null && musicPlayer != null) {
+			musicPlayer.playSoon(chosen);
 		}
+		closeSearch();
 	}
 
 	/**
-	 * Handle resizing.
+	 * Switch to the next available renderer and remember the choice.
+	 */
+	private void nextRenderer() {
+		int index = 0;
+		for (int i = 0; i < renderers.length; i++) {
+			if (renderers[i] == renderer) {
+				index = (i + 1) % renderers.length;
+			}
+		}
+		renderer.getNode().setVisible(false);
+		// lets go of its buffers while it is hidden
+		renderer.resize(0.0, 0.0);
+		renderer = renderers[index];
+		renderer.resize(mainPane.getWidth(), mainPane.getHeight());
+		renderer.getNode().setVisible(true);
+		preferences.putInt("renderer", index);
+		scheduler.invalidate();
+	}
+
+	/**
+	 * Handle resizing. Only the renderer in use is resized, so that the
+	 * hidden ones don't hold buffers of the new size. A renderer is resized
+	 * when it is switched to.
 	 */
 	private void redraw() {
-		graphics.setFill(Color.BLACK);
-		graphics.fillRect(0.0, 0.0, canvas.getWidth(), canvas.getHeight());
-		for (int i = 0; i < bandCount; i++) {
-			xs[i] = (int) (((double) i * canvas.getWidth()) / ((double) bandCount));
-			widths[i] = (int) (((double) (i + 1) * canvas.getWidth()) / ((double) bandCount)) - xs[i];
+		renderer.resize(mainPane.getWidth(), mainPane.getHeight());
+		updateBlur();
+		updateBands();
+		scheduler.invalidate();
+	}
+
+	/**
+	 * Cycle through the quality tiers, then back to choosing automatically.
+	 * Remembers the choice.
+	 */
+	private void nextPinnedQuality() {
+		Quality pinned = governor.getPinned();
+		if (pinned == null) {
+			pinned = Quality.HIGH;
+		} else if (pinned == Quality.MINIMAL) {
+			pinned = null;
+		} else {
+			pinned = pinned.lower();
+		}
+		governor.pin(pinned);
+		preferences.put("quality", pinned == null ? "" : pinned.name());
+		applyQuality();
+		scheduler.invalidate();
+	}
+
+	/**
+	 * Update the visuals to match the quality chosen by the governor.
+	 */
+	private void applyQuality() {
+		Quality quality = governor.getQuality();
+		for (SpectrumRenderer sr : renderers) {
+			sr.setQuality(quality);
+		}
+		updateBlur();
+		updateBands();
+	}
+
+	/**
+	 * Switch to the next way of combining bins into columns and remember the
+	 * choice.
+	 */
+	private void nextAggregation() {
+		SpectrumMapper.Aggregation[] values = SpectrumMapper.Aggregation.values();
+		aggregation = values[(aggregation.ordinal() + 1) % values.length];
+		preferences.put("aggregation", aggregation.name());
+		updateBands();
+	}
+
+	/**
+	 * Switch to the next half-life of song ratings and remember the choice.
+	 */
+	private void nextHalfLife() {
+		double halfLife = preferences.getDouble("halfLife", halfLives[0]);
+		int index = 0;
+		for (int i = 0; i < halfLives.length; i++) {
+			if (halfLives[i] == halfLife) {
+				index = (i + 1) % halfLives.length;
+			}
+		}
+		preferences.putDouble("halfLife", halfLives[index]);
+	}
+
+	/**
+	 * Switch to the next limit on the length of songs played and remember the
+	 * choice. Applies to the songs picked from now on.
+	 */
+	private void nextMaxDuration() {
+		double maxDuration = preferences.getDouble("maxDuration", maxDurations[0]);
+		int index = 0;
+		for (int i = 0; i < maxDurations.length; i++) {
+			if (maxDurations[i] == maxDuration) {
+				index = (i + 1) % maxDurations.length;
+			}
+		}
+		preferences.putDouble("maxDuration", maxDurations[index]);
+		if (musicPlayer != null) {
+			musicPlayer.setMaxDuration(getMaxDuration());
+		}
+		if (openingPlayer != null) {
+			openingPlayer.setMaxDuration(getMaxDuration());
 		}
-		BassBall.radius = Double.min(canvas.getWidth(), canvas.getHeight()) * 0.02;
-		blur.setHeight(BassBall.radius * 0.5);
-		blur.setWidth(BassBall.radius * 0.5);
+	}
+
+	/**
+	 * The longest songs played in seconds, as chosen.
+	 */
+	private double getMaxDuration() {
+		double maxDuration = preferences.getDouble("maxDuration", maxDurations[0]);
+		return maxDuration > 0.0 ? maxDuration : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Choose the number of bins analyzed and columns drawn. Unless
+	 * interpolating, there is one column per pixel of the backing buffer and
+	 * only as many bins as those columns can show.
+	 */
+	private void updateBands() {
+		int columns = SpectrumMapper.maxBands;
+		int bands = SpectrumMapper.maxBands;
+		if (aggregation != SpectrumMapper.Aggregation.INTERPOLATE) {
+			columns = Integer.max(1, (int) Math.ceil(mainPane.getWidth() * governor.getQuality().resolutionScale));
+			bands = SpectrumMapper.bandsFor(columns);
+		}
+
+		if (columns != mapper.getColumns() || aggregation != mapper.getAggregation()) {
+			mapper = new SpectrumMapper(columns, aggregation);
+		}
+
+		if (bands != bandCount) {
+			bandCount = bands;
+			MediaPlayer playing = scheduler.getPlaying();
+			if (playing != null) {
+				playing.setAudioSpectrumNumBands(bandCount);
+			}
+		}
+	}
+
+	/**
+	 * Size the blur to the orbs and the current quality.
+	 */
+	private void updateBlur() {
+		Quality quality = governor.getQuality();
+		// the blur is applied to the scaled down buffer
+		double radius = Double.min(mainPane.getWidth(), mainPane.getHeight()) * 0.02;
+		blur.setHeight(radius * 0.5 * quality.blurScale * quality.resolutionScale);
+		blur.setWidth(radius * 0.5 * quality.blurScale * quality.resolutionScale);
 	}
 
 	/**
@@ -560,11 +947,26 @@ public class MediaWindow extends Application {
 	 */
 	protected void initMediaPlayer(MediaPlayer mp) {
 		mp.setAudioSpectrumNumBands(bandCount);
+		// the number of bins may have changed since this player was prepared
+		mp.statusProperty().addListener((observable, oldValue, newValue) -> {
+			if (newValue == MediaPlayer.Status.PLAYING) {
+				mp.setAudioSpectrumNumBands(bandCount);
+			}
+		});
 		mp.setAudioSpectrumInterval(1.0 / 12.0);
-		mp.setAudioSpectrumListener(visual);
+		scheduler.watch(mp);
 		mp.setStopTime(Duration.INDEFINITE);
-		mp.setOnEndOfMedia(playNext);
-		mp.setOnError(playNext);
+		mp.setOnEndOfMedia(() -> ended(mp));
+		mp.setOnError(() -> ended(mp));
+	}
+
+	/**
+	 * Play the next song once a song has ended or failed.
+	 */
+	private void ended(MediaPlayer mp) {
+		if (musicPlayer != null) {
+			musicPlayer.ended(mp);
+		}
 	}
 
 	/**
@@ -1,27 +1,96 @@
 package MusicPlayer;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import WeightedPlaylist.AudioSource;
+import WeightedPlaylist.DuplicateFinder;
+import WeightedPlaylist.DurationIndex;
+import WeightedPlaylist.DurationProber;
+import WeightedPlaylist.LibraryScanner;
+import WeightedPlaylist.LoudnessAnalyzer;
 import WeightedPlaylist.MusicFile;
 import WeightedPlaylist.Playlist;
+import WeightedPlaylist.ShuffleQueue;
+import WeightedPlaylist.TagLibrary;
+import WeightedPlaylist.Tags;
+import WeightedPlaylist.TrackCache;
 
+import javafx.application.Platform;
 import javafx.scene.media.MediaPlayer;
 
 /**
- * This class is used to abstract the song selection.
+ * This class is used to abstract the song selection. Songs are picked, opened
+ * and rated on the player's own thread: the window only gives commands, which
+ * are run in the order given.
  */
 class MusicPlayer {
+	/**
+	 * The kinds of commands which are merged when given several times before
+	 * they are run.
+	 */
+	private enum Kind {
+		SKIP, PREVIOUS, PAUSE, FAVORITE
+	}
+
 	/**
 	 * The maximum number of songs to remember.
 	 */
 	private static final int historySize = 100;
+
+	/**
+	 * The number of queued songs after the next one which are copied ahead of
+	 * time from slow drives.
+	 */
+	private static final int prefetchSize = 3;
+
+	/**
+	 * The number of songs too long to play picked in a row before a song is
+	 * picked from those short enough instead.
+	 */
+	private static final int filterTries = 20;
 	
 	/**
-	 * The playlist from which songs are selected.
+	 * The playlist from which songs are selected. Null until it is built on
+	 * the player's thread.
+	 */
+	private volatile Playlist playlist = null;
+
+	/**
+	 * Picks songs ahead of time in the background, or null to pick each song
+	 * when it is needed.
 	 */
-	private Playlist playlist = null;
+	private ShuffleQueue shuffle = null;
+
+	/**
+	 * True once the work done in the background on every song has started.
+	 * Songs of folders loaded afterwards are analysed as they are found.
+	 */
+	private boolean analyzed = false;
+
+	/**
+	 * True to pick songs ahead of time once playing starts.
+	 */
+	private boolean precomputed = false;
+
+	/**
+	 * Loads the folders in the background, or null if they are loaded lazily.
+	 */
+	private LibraryScanner scanner = null;
+
+	/**
+	 * The longest songs played, in seconds. Songs whose length isn't known
+	 * yet are played.
+	 */
+	private double maxDuration = Double.POSITIVE_INFINITY;
+
+	/**
+	 * True once another folder has been opened. Set by the window while the
+	 * player's thread reads it.
+	 */
+	private volatile boolean stopped = false;
 	
 	/**
 	 * The last played music file.
@@ -29,9 +98,10 @@ class MusicPlayer {
 	private MusicFile prevMF = null;
 	
 	/**
-	 * The current music file.
+	 * The current music file. Read by the window while the player's thread
+	 * changes it.
 	 */
-	private MusicFile currMF = null;
+	private volatile MusicFile currMF = null;
 	
 	/**
 	 * The next music file to be played.
@@ -54,22 +124,138 @@ class MusicPlayer {
 	private MediaWindow mw = null;
 
 	/**
-	 * Creates a new music player from the give folder.
+	 * Runs the commands given by the window on the player's thread.
+	 */
+	private CommandQueue commands = null;
+
+	/**
+	 * Creates a new music player from the given folders, picking songs from
+	 * all of them. Unless folders are loaded lazily, they are loaded in the
+	 * background, and songs start playing as soon as enough are found. The
+	 * media window is told once they do, on its own thread.
 	 * 
-	 * @param folder A folder containing media files.
+	 * @param folders The folders containing media files.
 	 * @param mediaWindow The media window where the songs will be displayed.
+	 * @param lazy True to load sub folders only once a song is picked from them.
+	 * @param precomputed True to pick songs ahead of time in the background.
+	 * @param maxDuration The longest songs played, in seconds.
+	 * @param prepare Run on the player's thread before the playlist is built,
+	 *            unless another folder was opened first.
 	 */
-	protected MusicPlayer(File folder, MediaWindow mediaWindow) {
+	protected MusicPlayer(List<File> folders, MediaWindow mediaWindow, boolean lazy, boolean precomputed,
+			double maxDuration, Runnable prepare) {
 		mw = mediaWindow;
-		playlist = AudioSource.getPrimarySource(folder);
+		this.precomputed = precomputed;
+		this.maxDuration = maxDuration;
 		upNext = new LinkedList<MusicFile>();
 		lastPlayed = new LinkedList<MusicFile>();
+		commands = new CommandQueue(this::seekTo);
+		commands.execute(() -> {
+			// one player prepares at a time, in the order they were opened
+			synchronized (MusicPlayer.class) {
+				if (stopped) {
+					return;
+				}
+				prepare.run();
+			}
+			Playlist built = AudioSource.getPrimarySource(folders, lazy, !lazy);
+			if (built == null) {
+				return;
+			}
+			synchronized (built) {
+				playlist = built;
+				// stopPicking found no playlist to stop
+				if (stopped) {
+					return;
+				}
+				if (!lazy) {
+					scanner = new LibraryScanner(built, commands, this::start, this::analyze);
+				}
+			}
+			if (lazy) {
+				start();
+				analyze();
+			}
+		});
+	}
+
+	/**
+	 * Start playing, once the playlist has enough songs.
+	 */
+	private void start() {
+		if (stopped || currMF != null || !playlist.isValid()) {
+			return;
+		}
+		if (precomputed) {
+			shuffle = new ShuffleQueue(playlist);
+		}
 		prevMF = getValidSong();
 		currMF = getValidSong();
 		nextMF = getValidSong();
-		if (playlist.isValid()) {
-			play();
-		}	
+		play();
+		prefetch();
+		Platform.runLater(() -> mw.started(this));
+	}
+
+	/**
+	 * Start the work done in the background on every song, once every folder
+	 * is loaded, or once playing starts if folders are loaded lazily.
+	 */
+	private void analyze() {
+		if (stopped || !playlist.isValid()) {
+			return;
+		}
+		synchronized (playlist) {
+			// the songs loaded so far are all analysed now
+			playlist.takeFound();
+			analyzed = true;
+			LoudnessAnalyzer.analyze(playlist);
+			DuplicateFinder.find(playlist, this::linkCopies);
+			TagLibrary.scan(playlist);
+			DurationProber.probe(playlist);
+		}
+		// picked while only some folders were loaded
+		if (shuffle != null) {
+			shuffle.invalidate();
+		}
+	}
+
+	/**
+	 * Start the work done in the background on the songs of the folders
+	 * loaded since, which it would otherwise never reach.
+	 */
+	private void analyzeFound() {
+		if (!analyzed || stopped) {
+			return;
+		}
+		synchronized (playlist) {
+			List<MusicFile> found = playlist.takeFound();
+			if (found.isEmpty()) {
+				return;
+			}
+			LoudnessAnalyzer.add(found);
+			DuplicateFinder.add(playlist, found, this::linkCopies);
+			TagLibrary.add(found);
+			DurationProber.add(found);
+		}
+	}
+
+	/**
+	 * Link the copies found by the {@link DuplicateFinder} on the player's
+	 * thread, and pick the songs picked ahead of time again, since they were
+	 * picked before the copies shared their weight.
+	 * 
+	 * @param task Links the copies.
+	 */
+	private void linkCopies(Runnable task) {
+		commands.execute(() -> {
+			synchronized (playlist) {
+				task.run();
+			}
+			if (shuffle != null) {
+				shuffle.invalidate();
+			}
+		});
 	}
 
 	/**
@@ -80,15 +266,43 @@ class MusicPlayer {
 			return null;
 		}
 		MusicFile nextFile = null;
+		int tries = 0;
 		do {
-			nextFile = playlist.getSong();
+			nextFile = pick();
+			// passed over before it is opened
+			if (nextFile != null && nextFile.getDuration() > maxDuration) {
+				nextFile = ++tries < filterTries ? null : pickShort();
+			}
 			if (nextFile != null) {
 				finalize(nextFile);
 			}
 		} while (nextFile == null || !nextFile.isValid());
+		// picking may have loaded folders
+		analyzeFound();
 		return nextFile;
 	}
 
+	/**
+	 * Picks a song by its weight, without opening it.
+	 */
+	private MusicFile pick() {
+		if (shuffle == null) {
+			synchronized (playlist) {
+				return playlist.getSong();
+			}
+		}
+		return shuffle.take();
+	}
+
+	/**
+	 * Picks a song by its weight from only those known to be short enough,
+	 * for when most songs are too long. Any song is picked if none are.
+	 */
+	private MusicFile pickShort() {
+		MusicFile mf = DurationIndex.of(playlist).pick(0.0, maxDuration);
+		return mf != null ? mf : pick();
+	}
+
 	/**
 	 * Acquires resources for playing the music file.
 	 * 
@@ -97,15 +311,23 @@ class MusicPlayer {
 	private void finalize(MusicFile mf) {
 		mf.acquire();
 		mw.initMediaPlayer(mf.player());
+		// read here rather than on the FX thread, since it may read the file's header
+		Tags tags = mf.getTags();
+		String title = tags.getTitle();
+		if (title == null) {
+			int index = mf.getName().lastIndexOf(".");
+			title = mf.getName();
+			if (index != -1) {
+				title = title.substring(0, index);
+			}
+		} else if (tags.getArtist() != null) {
+			title = tags.getArtist() + " - " + title;
+		}
+		String shown = title;
 		mf.player().setOnPlaying(new Runnable() {
 			@Override
 			public void run() {
-				int index = mf.getName().lastIndexOf(".");
-				String title = mf.getName();
-				if (index != -1) {
-					title = title.substring(0, index);
-				}
-				mw.setTitle(title);
+				mw.setTitle(shown);
 			}
 		});
 	}
@@ -116,13 +338,19 @@ class MusicPlayer {
 	 * @return The ratio from 0.0 to 1.0 of song completion.
 	 */
 	protected double getRatio() {
-		return currMF.player().getCurrentTime().toSeconds() / currMF.player().getTotalDuration().toSeconds();
+		MusicFile mf = currMF;
+		MediaPlayer mp = mf == null ? null : mf.player();
+		// between songs
+		if (mp == null) {
+			return 0.0;
+		}
+		return mp.getCurrentTime().toSeconds() / mp.getTotalDuration().toSeconds();
 	}
 
 	/**
 	 * Plays the current song.
 	 */
-	protected void play() {
+	private void play() {
 		currMF.player().play();
 		if (currMF.player().getError() != null) {
 			currMF = nextMF;
@@ -132,9 +360,21 @@ class MusicPlayer {
 	}
 
 	/**
-	 * Pauses the current song.
+	 * Pauses the current song, or plays it if it is paused.
 	 */
 	protected void pause() {
+		// pausing twice changes nothing
+		commands.give(Kind.PAUSE, times -> {
+			if (times % 2 == 1) {
+				togglePause();
+			}
+		});
+	}
+
+	/**
+	 * Pauses the current song, or plays it if it is paused, right away.
+	 */
+	private void togglePause() {
 		if (currMF.player().getStatus() == MediaPlayer.Status.PAUSED
 				|| currMF.player().getStatus() == MediaPlayer.Status.STOPPED
 				|| currMF.player().getStatus() == MediaPlayer.Status.READY) {
@@ -148,26 +388,77 @@ class MusicPlayer {
 	 * Skips to the next song. Reduces likelihood of playing this song again.
 	 */
 	protected void skipNext() {
-		currMF.modifyWeight(0.5);
+		commands.cancelSeek();
+		commands.give(Kind.SKIP, this::skipAhead);
+	}
+
+	/**
+	 * Skips over a number of songs at once. Only the song being played is
+	 * less likely to be played again, and only the song landed on is opened:
+	 * the queued songs skipped over were never heard.
+	 * 
+	 * @param count The number of times the user skipped.
+	 */
+	private void skipAhead(int count) {
+		modifyWeight(0.5);
+		if (count > 1) {
+			nextMF.dispose();
+			for (int i = 2; i < count && !upNext.isEmpty(); i++) {
+				upNext.removeFirst();
+			}
+			nextMF = getNext();
+		}
 		playNext();
 	}
 
+	/**
+	 * Plays the next song once a song has ended or failed, unless another
+	 * song was chosen meanwhile.
+	 * 
+	 * @param mp The media player of the song which ended.
+	 */
+	protected void ended(MediaPlayer mp) {
+		commands.execute(() -> {
+			if (currMF != null && currMF.player() == mp) {
+				commands.cancelSeek();
+				playNext();
+			}
+		});
+	}
+
 	/**
 	 * Plays the next song. No impact on the likelihood of playing this song again.
 	 */
-	protected void playNext() {
+	private void playNext() {
 		currMF.player().stop();
 		remember(prevMF);
 		prevMF = currMF;
 		currMF = nextMF;
+		// copied while the last song played
+		if (currMF.hasNewCopy()) {
+			finalize(currMF);
+		}
 		play();
 		nextMF = getNext();
+		prefetch();
 	}
 
 	/**
 	 * Play the previously played song.
 	 */
 	protected void previous() {
+		commands.cancelSeek();
+		commands.give(Kind.PREVIOUS, times -> {
+			for (int i = 0; i < times; i++) {
+				stepBack();
+			}
+		});
+	}
+
+	/**
+	 * Play the previously played song right away.
+	 */
+	private void stepBack() {
 		if (hasPrev()) {
 			currMF.player().stop();
 			queue(nextMF);
@@ -175,6 +466,7 @@ class MusicPlayer {
 			currMF = prevMF;
 			play();
 			prevMF = getPrev();
+			prefetch();
 		}
 	}
 
@@ -182,24 +474,222 @@ class MusicPlayer {
 	 * Increase the likelihood of this song being played again.
 	 */
 	protected void favorite() {
-		currMF.modifyWeight(2.0);
+		commands.give(Kind.FAVORITE, times -> modifyWeight(Math.pow(2.0, times)));
+	}
+
+	/**
+	 * Increase the likelihood of every song in this song's folder being
+	 * played again.
+	 */
+	protected void favoriteFolder() {
+		commands.execute(() -> modifyFolderWeight(2.0));
+	}
+
+	/**
+	 * Skips to the next song. Reduces the likelihood of every song in this
+	 * song's folder being played again.
+	 */
+	protected void skipFolder() {
+		commands.cancelSeek();
+		commands.execute(() -> {
+			modifyFolderWeight(0.5);
+			playNext();
+		});
 	}
 
 	/**
 	 * Never play this song again. Go to the next song.
 	 */
 	protected void dontPlay() {
-		currMF.modifyWeight(0.0);
-		playNext();
+		commands.cancelSeek();
+		// never merged, as each is for a different song
+		commands.execute(() -> {
+			modifyWeight(0.0);
+			playNext();
+		});
 	}
 
 	/**
-	 * Skip to a specified point in this song.
+	 * Skip to a specified point in this song. Only the latest point is
+	 * skipped to if the user drags faster than the player seeks.
 	 * 
 	 * @param ratio A value from 0.0 (beginning) to 1.0 (end).
 	 */
 	protected void seek(double ratio) {
-		currMF.player().seek(currMF.player().getTotalDuration().multiply(ratio));
+		commands.seek(ratio);
+	}
+
+	/**
+	 * Skip to a specified point in this song right away.
+	 * 
+	 * @param ratio A value from 0.0 (beginning) to 1.0 (end).
+	 */
+	private void seekTo(double ratio) {
+		if (currMF != null && currMF.player() != null) {
+			currMF.player().seek(currMF.player().getTotalDuration().multiply(ratio));
+		}
+	}
+
+	/**
+	 * Find the songs and folders of this player's playlist whose names contain
+	 * the query, among those loaded so far.
+	 * 
+	 * @param query The text to look for.
+	 * @param limit The most results returned.
+	 * @return The matching songs and folders, best matches first.
+	 */
+	protected List<AudioSource> search(String query, int limit) {
+		Playlist current = playlist;
+		if (current == null) {
+			return new ArrayList<AudioSource>();
+		}
+		return current.getSearchIndex().search(query, limit);
+	}
+
+	/**
+	 * Play a song, or every song in a folder, after the current song.
+	 * 
+	 * @param source The song or folder chosen by the user.
+	 */
+	protected void playSoon(AudioSource source) {
+		commands.execute(() -> queueSoon(source));
+	}
+
+	/**
+	 * Queue a song, or every song in a folder, right after the current song.
+	 * 
+	 * @param source The song or folder chosen by the user.
+	 */
+	private void queueSoon(AudioSource source) {
+		List<MusicFile> files = null;
+		synchronized (playlist) {
+			files = source.getFiles();
+		}
+		analyzeFound();
+		queueSoon(files);
+	}
+
+	/**
+	 * Play songs chosen to fill a block of time after the current song, as
+	 * much of it as the songs allow without going over. The songs are picked
+	 * by their weights from those whose length is known, without opening
+	 * them.
+	 * 
+	 * @param minutes The length of the block.
+	 */
+	protected void fill(double minutes) {
+		commands.execute(() -> {
+			DurationIndex index = DurationIndex.of(playlist);
+			index.remove(currMF);
+			queueSoon(index.fill(minutes * 60.0, maxDuration));
+		});
+	}
+
+	/**
+	 * Only play songs up to a length from now on. Songs already queued are
+	 * played anyway.
+	 * 
+	 * @param seconds The longest songs played.
+	 */
+	protected void setMaxDuration(double seconds) {
+		commands.execute(() -> maxDuration = seconds);
+	}
+
+	/**
+	 * Queue songs right after the current song, in order.
+	 * 
+	 * @param files The songs to queue.
+	 */
+	private void queueSoon(List<MusicFile> files) {
+		if (files.isEmpty()) {
+			return;
+		}
+		queue(nextMF);
+		for (int i = files.size() - 1; i >= 0; i--) {
+			upNext.addFirst(files.get(i));
+		}
+		nextMF = getNext();
+		prefetch();
+	}
+
+	/**
+	 * Multiply the weight of the current song, and pick the songs after the
+	 * next few again if they are picked ahead of time.
+	 * 
+	 * @param modifier The weight multiplier.
+	 */
+	private void modifyWeight(double modifier) {
+		synchronized (playlist) {
+			currMF.modifyWeight(modifier);
+		}
+		if (shuffle != null) {
+			shuffle.invalidate();
+		}
+	}
+
+	/**
+	 * Multiply the weight of the current song's folder, and pick the songs
+	 * after the next few again if they are picked ahead of time.
+	 * 
+	 * @param modifier The weight multiplier.
+	 */
+	private void modifyFolderWeight(double modifier) {
+		synchronized (playlist) {
+			Playlist folder = currMF.getFolder();
+			if (folder != null) {
+				folder.modifyWeight(modifier);
+			}
+		}
+		if (shuffle != null) {
+			shuffle.invalidate();
+		}
+	}
+
+	/**
+	 * Stop loading folders and picking songs in the background, and never
+	 * start playing. Used when another folder is opened.
+	 */
+	protected void stopPicking() {
+		stopped = true;
+		Playlist current = playlist;
+		// not built yet, and never will be
+		if (current == null) {
+			return;
+		}
+		synchronized (current) {
+			if (scanner != null) {
+				scanner.stop();
+			}
+			if (shuffle != null) {
+				shuffle.stop();
+			}
+		}
+	}
+
+	/**
+	 * Stop the current song and everything done in the background. Used once
+	 * another folder's songs start playing. Commands already given are run
+	 * first; later ones are ignored.
+	 */
+	protected void close() {
+		stopPicking();
+		commands.stop(() -> {
+			if (currMF != null && currMF.player() != null) {
+				currMF.player().stop();
+			}
+		});
+	}
+
+	/**
+	 * Copy the next songs from slow drives before they are played.
+	 */
+	private void prefetch() {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		files.add(nextMF);
+		for (int i = 0; i < upNext.size() && i < prefetchSize; i++) {
+			files.add(upNext.get(i));
+		}
+		TrackCache.prefetch(files);
 	}
 
 	/**
@@ -262,11 +752,4 @@ class MusicPlayer {
 	private boolean hasPrev() {
 		return (lastPlayed.size() > 0);
 	}
-
-	/**
-	 * True iff there are at least three valid music files in the folder.
-	 */
-	protected boolean isValid() {
-		return playlist.isValid();
-	}
 }
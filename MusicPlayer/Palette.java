@@ -0,0 +1,105 @@
+package MusicPlayer;
+
+/**
+ * A precomputed lookup table of fully saturated colors. Avoids creating a new
+ * color object for every bin of every frame.
+ */
+final class Palette {
+	/**
+	 * The number of hues stored; one per degree.
+	 */
+	protected static final int hueSteps = 360;
+
+	/**
+	 * The number of brightness levels stored for each hue.
+	 */
+	protected static final int brightnessSteps = 256;
+
+	/**
+	 * The opaque ARGB colors, indexed by hue then brightness.
+	 */
+	private final int[] colors = new int[hueSteps * brightnessSteps];
+
+	/**
+	 * Create the palette.
+	 */
+	protected Palette() {
+		for (int h = 0; h < hueSteps; h++) {
+			for (int b = 0; b < brightnessSteps; b++) {
+				colors[h * brightnessSteps + b] = hsb(h, (double) b / (double) (brightnessSteps - 1));
+			}
+		}
+	}
+
+	/**
+	 * Look up the color closest to the given hue and brightness.
+	 *
+	 * @param hue
+	 *            The hue in degrees. Wraps around.
+	 * @param brightness
+	 *            The brightness from 0.0 to 1.0.
+	 * @return An opaque ARGB color.
+	 */
+	protected int color(double hue, double brightness) {
+		int h = ((int) hue) % hueSteps;
+		if (h < 0) {
+			h += hueSteps;
+		}
+		int b = (int) (brightness * (brightnessSteps - 1) + 0.5);
+		if (b < 0) {
+			b = 0;
+		} else if (b >= brightnessSteps) {
+			b = brightnessSteps - 1;
+		}
+		return colors[h * brightnessSteps + b];
+	}
+
+	/**
+	 * Converts a fully saturated hue and brightness to an opaque ARGB color.
+	 */
+	private static int hsb(double hue, double brightness) {
+		double sector = hue / 60.0;
+		int i = (int) sector;
+		double f = sector - i;
+		double p = 0.0;
+		double q = brightness * (1.0 - f);
+		double t = brightness * f;
+		double r = 0.0;
+		double g = 0.0;
+		double b = 0.0;
+		switch (i % 6) {
+		case 0:
+			r = brightness;
+			g = t;
+			b = p;
+			break;
+		case 1:
+			r = q;
+			g = brightness;
+			b = p;
+			break;
+		case 2:
+			r = p;
+			g = brightness;
+			b = t;
+			break;
+		case 3:
+			r = p;
+			g = q;
+			b = brightness;
+			break;
+		case 4:
+			r = t;
+			g = p;
+			b = brightness;
+			break;
+		default:
+			r = brightness;
+			g = p;
+			b = q;
+			break;
+		}
+		return 0xff000000 | ((int) (r * 255.0 + 0.5) << 16) | ((int) (g * 255.0 + 0.5) << 8)
+				| (int) (b * 255.0 + 0.5);
+	}
+}
@@ -0,0 +1,193 @@
+package MusicPlayer;
+
+/**
+ * Encapsulates the data needed for the bass-balls. Positions and directions
+ * are kept in primitive arrays so that thousands of orbs can be moved and
+ * drawn each frame without allocating.
+ */
+final class ParticleField {
+	/**
+	 * The size of each orb.
+	 */
+	protected double radius = 8.0;
+
+	/**
+	 * How far outside the screen an orb may travel before wrapping around.
+	 */
+	protected double diameter = radius * 2.0;
+
+	/**
+	 * The opacity shared by all orbs.
+	 */
+	protected double opacity = 0.0;
+
+	/**
+	 * The horizontal position of each orb from 0.0 to 1.0.
+	 */
+	protected final double[] x;
+
+	/**
+	 * The vertical position of each orb from 0.0 to 1.0.
+	 */
+	protected final double[] y;
+
+	/**
+	 * The direction of each orb in radians.
+	 */
+	protected final double[] direction;
+
+	/**
+	 * The number of orbs that are moved and drawn.
+	 */
+	protected int count = 0;
+
+	/**
+	 * The state of the random number generator.
+	 */
+	private long seed = 0;
+
+	/**
+	 * The sprite size the spans were computed for.
+	 */
+	private int spriteSize = -1;
+
+	/**
+	 * The first covered column of each row of the orb sprite.
+	 */
+	private int[] spanStart = new int[0];
+
+	/**
+	 * One past the last covered column of each row of the orb sprite.
+	 */
+	private int[] spanEnd = new int[0];
+
+	/**
+	 * Create the orbs in the center of the screen heading in random
+	 * directions.
+	 *
+	 * @param capacity
+	 *            The maximum number of orbs.
+	 * @param seed
+	 *            The seed for the random number generator.
+	 */
+	protected ParticleField(int capacity, long seed) {
+		x = new double[capacity];
+		y = new double[capacity];
+		direction = new double[capacity];
+		this.seed = seed == 0 ? 1 : seed;
+		for (int i = 0; i < capacity; i++) {
+			x[i] = 0.5;
+			y[i] = 0.5;
+			direction[i] = nextDouble() * 360.0;
+		}
+		count = capacity;
+	}
+
+	/**
+	 * The maximum number of orbs.
+	 */
+	protected int capacity() {
+		return x.length;
+	}
+
+	/**
+	 * Move every orb one step. Louder bass makes the orbs change direction
+	 * more erratically.
+	 *
+	 * @param bassAmplitude
+	 *            The loudness of the bass from 0.0 to 1.0.
+	 * @param width
+	 *            The width of the screen.
+	 * @param height
+	 *            The height of the screen.
+	 */
+	protected void update(double bassAmplitude, double width, double height) {
+		double screenWidth = (width + diameter) / width;
+		double screenHeight = (height + diameter) / height;
+		double speed = 0.002;
+		double turn = bassAmplitude * 5.0;
+		double circle = 2.0 * Math.PI;
+		for (int i = 0; i < count; i++) {
+			double d = direction[i] + (nextDouble() - 0.5) * turn * (1.0 - x[i]) + circle;
+			d %= circle;
+			direction[i] = d;
+			x[i] = (x[i] + Math.cos(d) * speed + screenWidth) % screenWidth;
+			y[i] = (y[i] + Math.sin(d) * speed + screenHeight) % screenHeight;
+		}
+	}
+
+	/**
+	 * Blend every orb into an opaque ARGB frame.
+	 *
+	 * @param pixels
+	 *            The frame's pixels.
+	 * @param width
+	 *            The width of the frame.
+	 * @param height
+	 *            The height of the frame.
+	 * @param scale
+	 *            The size of the frame relative to the screen.
+	 */
+	protected void draw(int[] pixels, int width, int height, double scale) {
+		int size = (int) (radius * scale + 0.5);
+		if (size <= 0 || count == 0) {
+			return;
+		}
+		if (size != spriteSize) {
+			buildSprite(size);
+		}
+
+		int alpha = (int) (opacity * 0.25 * 256.0);
+
+		double offset = diameter * scale;
+		for (int i = 0; i < count; i++) {
+			int left = (int) Math.floor(x[i] * width - offset);
+			int top = (int) Math.floor(y[i] * height - offset);
+			int rowStart = Integer.max(0, -top);
+			int rowEnd = Integer.min(size, height - top);
+			for (int row = rowStart; row < rowEnd; row++) {
+				int start = Integer.max(left + spanStart[row], 0);
+				int end = Integer.min(left + spanEnd[row], width);
+				int index = (top + row) * width;
+				for (int px = index + start; px < index + end; px++) {
+					// blend white over red and blue at once, then green
+					int pixel = pixels[px];
+					int inverse = ~pixel;
+					int rb = (pixel & 0xff00ff) + ((((inverse & 0xff00ff) * alpha) >>> 8) & 0xff00ff);
+					int g = (pixel & 0xff00) + ((((inverse & 0xff00) * alpha) >>> 8) & 0xff00);
+					pixels[px] = 0xff000000 | rb | g;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the covered columns of each row of a circle.
+	 *
+	 * @param size
+	 *            The diameter of the circle in pixels.
+	 */
+	private void buildSprite(int size) {
+		spriteSize = size;
+		spanStart = new int[size];
+		spanEnd = new int[size];
+		double r = size * 0.5;
+		for (int row = 0; row < size; row++) {
+			double dy = row + 0.5 - r;
+			double half = Math.sqrt(Double.max(0.0, r * r - dy * dy));
+			spanStart[row] = (int) Math.ceil(r - half - 0.5);
+			spanEnd[row] = (int) Math.floor(r + half - 0.5) + 1;
+		}
+	}
+
+	/**
+	 * Returns a random double between 0 and 1.
+	 */
+	private double nextDouble() {
+		// xorshift; cheaper than a shared Random in the update loop
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (seed >>> 11) * 0x1.0p-53;
+	}
+}
@@ -0,0 +1,455 @@
+package MusicPlayer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Blurs an ARGB pixel buffer like a box blur effect. Each pass keeps a running
+ * sum over the box, so the cost per pixel does not depend on the size of the
+ * box. The image is split into bands that are blurred in parallel.
+ */
+final class PixelBlur {
+	/**
+	 * The fewest rows or columns given to a single task.
+	 */
+	private static final int minLinesPerTask = 64;
+
+	/**
+	 * The largest radius whose sums fit in 16 bits per channel. Larger boxes
+	 * are applied at a lower resolution.
+	 */
+	private static final int maxRadius = 127;
+
+	/**
+	 * Selects the red and blue channels of a pixel, or the alpha and green
+	 * channels after shifting right by 8 bits.
+	 */
+	private static final int lanes = 0x00ff00ff;
+
+	/**
+	 * The running sums of each column kept by a vertical pass, reused by each
+	 * thread rather than allocated for every band of every frame.
+	 */
+	private static final ThreadLocal<int[]> columnSums = ThreadLocal.withInitial(() -> new int[0]);
+
+	/**
+	 * Performs a pass over a range of rows or columns.
+	 */
+	private interface LinePass {
+		void run(int first, int end);
+	}
+
+	/**
+	 * Splits a pass until the pieces are small enough.
+	 */
+	private static final class LineTask extends RecursiveAction {
+		/**
+		 * Identifies the version of the class, as serializable classes must.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The pass run over the lines.
+		 */
+		private final LinePass pass;
+
+		/**
+		 * The first line of the range.
+		 */
+		private final int first;
+
+		/**
+		 * The line after the last of the range.
+		 */
+		private final int end;
+
+		/**
+		 * Creates a task for a range of lines.
+		 */
+		private LineTask(LinePass pass, int first, int end) {
+			this.pass = pass;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - first <= minLinesPerTask) {
+				pass.run(first, end);
+			} else {
+				int middle = (first + end) >>> 1;
+				invokeAll(new LineTask(pass, first, middle), new LineTask(pass, middle, end));
+			}
+		}
+	}
+
+	/**
+	 * True iff bands are blurred on several threads.
+	 */
+	private final boolean parallel;
+
+	/**
+	 * Holds the image between the horizontal and vertical passes.
+	 */
+	private int[] between = new int[0];
+
+	/**
+	 * Holds the image at reduced resolution.
+	 */
+	private int[] small = new int[0];
+
+	/**
+	 * Holds the reduced image after it has been widened to full width.
+	 */
+	private int[] wide = new int[0];
+
+	/**
+	 * The source column to the left of each full width column.
+	 */
+	private int[] starts = new int[0];
+
+	/**
+	 * The weight of the source column to the right of each full width column.
+	 */
+	private int[] fractions = new int[0];
+
+	/**
+	 * The reduction {@link #starts} were computed for.
+	 */
+	private int startsFactor = 0;
+
+	/**
+	 * Create a blur.
+	 *
+	 * @param parallel
+	 *            True iff bands should be blurred on several threads.
+	 */
+	protected PixelBlur(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Blur an image in place.
+	 *
+	 * @param pixels
+	 *            The premultiplied ARGB pixels of the image.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param size
+	 *            The width and height of the box in pixels. Sizes of one or
+	 *            less leave the image unchanged.
+	 * @param iterations
+	 *            The number of times the box is applied.
+	 * @param downscale
+	 *            Blur at 1/downscale of the resolution, then scale back up.
+	 *            Use 1 for full resolution.
+	 */
+	protected void apply(int[] pixels, int width, int height, double size, int iterations, int downscale) {
+		if (size <= 1.0 || iterations <= 0) {
+			return;
+		}
+		int factor = Integer.max(1, downscale);
+		while (radius(size / factor) > maxRadius) {
+			factor *= 2;
+		}
+		if (factor == 1 || width < factor * 2 || height < factor * 2) {
+			blur(pixels, width, height, Integer.min(radius(size), maxRadius), iterations);
+			return;
+		}
+
+		int smallWidth = (width + factor - 1) / factor;
+		int smallHeight = (height + factor - 1) / factor;
+		if (small.length < smallWidth * smallHeight) {
+			small = new int[smallWidth * smallHeight];
+		}
+		if (wide.length < width * smallHeight) {
+			wide = new int[width * smallHeight];
+		}
+		int[] reduced = small;
+		int[] widened = wide;
+		int f = factor;
+		run(smallHeight, (first, end) -> shrink(pixels, width, height, reduced, smallWidth, f, first, end));
+		blur(reduced, smallWidth, smallHeight, radius(size / factor), iterations);
+		if (starts.length != width || startsFactor != factor) {
+			starts = new int[width];
+			fractions = new int[width];
+			startsFactor = factor;
+			for (int x = 0; x < width; x++) {
+				int position = position(x, factor);
+				starts[x] = Integer.min(position >> 8, smallWidth - 1);
+				fractions[x] = position & 0xff;
+			}
+		}
+		int[] columnStarts = starts;
+		int[] columnFractions = fractions;
+		run(smallHeight,
+				(first, end) -> widen(reduced, smallWidth, widened, width, columnStarts, columnFractions, first, end));
+		run(height, (first, end) -> heighten(widened, smallHeight, pixels, width, f, first, end));
+	}
+
+	/**
+	 * The number of pixels on each side of the center of a box.
+	 */
+	private static int radius(double size) {
+		return Integer.max(0, (int) Math.round(size) / 2);
+	}
+
+	/**
+	 * Apply horizontal and vertical passes. Both passes read and write along
+	 * rows.
+	 */
+	private void blur(int[] pixels, int width, int height, int radius, int iterations) {
+		if (radius <= 0) {
+			return;
+		}
+		if (between.length < width * height) {
+			between = new int[width * height];
+		}
+		int[] other = between;
+		for (int i = 0; i < iterations; i++) {
+			run(height, (first, end) -> boxRows(pixels, other, width, radius, first, end));
+			run(width, (first, end) -> boxColumns(other, pixels, width, height, radius, first, end));
+		}
+	}
+
+	/**
+	 * Run a pass over rows or columns, in parallel if enabled.
+	 */
+	private void run(int lines, LinePass pass) {
+		if (parallel && lines > minLinesPerTask && ForkJoinPool.getCommonPoolParallelism() > 1) {
+			ForkJoinPool.commonPool().invoke(new LineTask(pass, 0, lines));
+		} else {
+			pass.run(0, lines);
+		}
+	}
+
+	/**
+	 * The reciprocal of a count times 65536, rounded up so that a box full of
+	 * one color keeps that color.
+	 */
+	private static int reciprocal(int count) {
+		return ((1 << 16) + count - 1) / count;
+	}
+
+	/**
+	 * Divide two 16 bit sums packed into an int by the size of the box.
+	 *
+	 * @param sums
+	 *            The sums in the low and high 16 bits.
+	 * @param scale
+	 *            The {@link #reciprocal(int)} of the size of the box.
+	 * @return The two quotients in the low and third bytes.
+	 */
+	private static int divide(int sums, int scale) {
+		// with 32 bits between them the products cannot overlap
+		long product = (((long) (sums >>> 16) << 32) | (sums & 0xffff)) * scale;
+		return (int) ((product >>> 16) & 0xff) | (int) ((product >>> 32) & 0xff0000);
+	}
+
+	/**
+	 * Box blur a range of rows horizontally. Pixels outside the image count as
+	 * transparent.
+	 *
+	 * @param source
+	 *            The image to read.
+	 * @param target
+	 *            The image to write.
+	 * @param width
+	 *            The width of the image.
+	 * @param radius
+	 *            The number of pixels on each side of the center of the box.
+	 * @param firstRow
+	 *            The first row to blur.
+	 * @param endRow
+	 *            One past the last row to blur.
+	 */
+	private static void boxRows(int[] source, int[] target, int width, int radius, int firstRow, int endRow) {
+		// fixed point reciprocal so that each pixel needs no division
+		int scale = reciprocal(radius * 2 + 1);
+		for (int y = firstRow; y < endRow; y++) {
+			int row = y * width;
+			// two channels are summed in each int
+			int ag = 0;
+			int rb = 0;
+			for (int x = 0; x < radius && x < width; x++) {
+				int p = source[row + x];
+				ag += (p >>> 8) & lanes;
+				rb += p & lanes;
+			}
+			for (int x = 0; x < width; x++) {
+				int in = x + radius;
+				if (in < width) {
+					int p = source[row + in];
+					ag += (p >>> 8) & lanes;
+					rb += p & lanes;
+				}
+				target[row + x] = divide(ag, scale) << 8 | divide(rb, scale);
+				int out = x - radius;
+				if (out >= 0) {
+					int p = source[row + out];
+					ag -= (p >>> 8) & lanes;
+					rb -= p & lanes;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Box blur a range of columns vertically. A running sum is kept for each
+	 * column so that the image is still read one row at a time. Pixels outside
+	 * the image count as transparent.
+	 *
+	 * @param source
+	 *            The image to read.
+	 * @param target
+	 *            The image to write.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param radius
+	 *            The number of pixels on each side of the center of the box.
+	 * @param firstColumn
+	 *            The first column to blur.
+	 * @param endColumn
+	 *            One past the last column to blur.
+	 */
+	private static void boxColumns(int[] source, int[] target, int width, int height, int radius, int firstColumn,
+			int endColumn) {
+		int scale = reciprocal(radius * 2 + 1);
+		int columns = endColumn - firstColumn;
+		int[] sums = columnSums.get();
+		if (sums.length < columns * 2) {
+			sums = new int[columns * 2];
+			columnSums.set(sums);
+		} else {
+			Arrays.fill(sums, 0, columns * 2, 0);
+		}
+		// the alpha and green sums of each column, then the red and blue sums
+		for (int y = 0; y < radius && y < height; y++) {
+			int offset = y * width + firstColumn;
+			for (int x = 0; x < columns; x++) {
+				int p = source[offset + x];
+				sums[x] += (p >>> 8) & lanes;
+				sums[columns + x] += p & lanes;
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			int in = y + radius;
+			if (in < height) {
+				int offset = in * width + firstColumn;
+				for (int x = 0; x < columns; x++) {
+					int p = source[offset + x];
+					sums[x] += (p >>> 8) & lanes;
+					sums[columns + x] += p & lanes;
+				}
+			}
+			int row = y * width + firstColumn;
+			for (int x = 0; x < columns; x++) {
+				target[row + x] = divide(sums[x], scale) << 8 | divide(sums[columns + x], scale);
+			}
+			int out = y - radius;
+			if (out >= 0) {
+				int offset = out * width + firstColumn;
+				for (int x = 0; x < columns; x++) {
+					int p = source[offset + x];
+					sums[x] -= (p >>> 8) & lanes;
+					sums[columns + x] -= p & lanes;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Average blocks of pixels into a range of rows of a smaller image.
+	 */
+	private static void shrink(int[] source, int width, int height, int[] target, int targetWidth, int factor,
+			int firstRow, int endRow) {
+		int fullScale = reciprocal(factor * factor);
+		for (int ty = firstRow; ty < endRow; ty++) {
+			int y0 = ty * factor;
+			int y1 = Integer.min(y0 + factor, height);
+			for (int tx = 0; tx < targetWidth; tx++) {
+				int x0 = tx * factor;
+				int x1 = Integer.min(x0 + factor, width);
+				int ag = 0;
+				int rb = 0;
+				for (int y = y0; y < y1; y++) {
+					int row = y * width;
+					for (int x = x0; x < x1; x++) {
+						int p = source[row + x];
+						ag += (p >>> 8) & lanes;
+						rb += p & lanes;
+					}
+				}
+				// only blocks on the right and bottom edges are partial
+				int scale = y1 - y0 == factor && x1 - x0 == factor ? fullScale : reciprocal((y1 - y0) * (x1 - x0));
+				target[ty * targetWidth + tx] = divide(ag, scale) << 8 | divide(rb, scale);
+			}
+		}
+	}
+
+	/**
+	 * Linearly scale a range of rows of a smaller image up to full width.
+	 *
+	 * @param starts
+	 *            The source column to the left of each column.
+	 * @param fractions
+	 *            The weight of the source column to the right of each column.
+	 */
+	private static void widen(int[] source, int sourceWidth, int[] target, int width, int[] starts, int[] fractions,
+			int firstRow, int endRow) {
+		int last = sourceWidth - 1;
+		for (int y = firstRow; y < endRow; y++) {
+			int sourceRow = y * sourceWidth;
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				int x0 = starts[x];
+				target[row + x] = mix(source[sourceRow + x0], source[sourceRow + Integer.min(x0 + 1, last)],
+						fractions[x]);
+			}
+		}
+	}
+
+	/**
+	 * Linearly scale a range of rows of a widened image up to full height.
+	 */
+	private static void heighten(int[] source, int sourceHeight, int[] target, int width, int factor, int firstRow,
+			int endRow) {
+		for (int y = firstRow; y < endRow; y++) {
+			int position = position(y, factor);
+			int y0 = Integer.min(position >> 8, sourceHeight - 1);
+			int y1 = Integer.min(y0 + 1, sourceHeight - 1);
+			int fraction = position & 0xff;
+			int top = y0 * width;
+			int bottom = y1 * width;
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				target[row + x] = mix(source[top + x], source[bottom + x], fraction);
+			}
+		}
+	}
+
+	/**
+	 * The position of the center of a full resolution pixel in a reduced
+	 * image, in 1/256ths of a pixel.
+	 */
+	private static int position(int coordinate, int factor) {
+		return Integer.max(0, ((coordinate * 2 + 1) * 128) / factor - 128);
+	}
+
+	/**
+	 * Linearly interpolate between two ARGB pixels.
+	 *
+	 * @param fraction
+	 *            The weight of the second pixel from 0 to 255.
+	 */
+	private static int mix(int first, int second, int fraction) {
+		int rb = (((first & lanes) * (256 - fraction) + (second & lanes) * fraction) >>> 8) & lanes;
+		int ag = (((first >>> 8) & lanes) * (256 - fraction) + ((second >>> 8) & lanes) * fraction) & ~lanes;
+		return ag | rb;
+	}
+}
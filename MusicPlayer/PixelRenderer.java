@@ -0,0 +1,111 @@
+package MusicPlayer;
+
+import java.util.Arrays;
+
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Draws the music visualizer directly into a pixel buffer. Each frame is
+ * uploaded with a single pixel write instead of one canvas command per bin.
+ */
+final class PixelRenderer implements SpectrumRenderer {
+	/**
+	 * Displays the image this renderer draws into.
+	 */
+	private ImageView view = null;
+
+	/**
+	 * The image that is updated after each frame.
+	 */
+	private WritableImage image = null;
+
+	/**
+	 * The smoothed spectrum and orbs.
+	 */
+	private FramePipeline pipeline = null;
+
+	/**
+	 * The quality at which frames are drawn.
+	 */
+	private Quality quality = Quality.HIGH;
+
+	/**
+	 * The width of the area the image is displayed in.
+	 */
+	private double displayWidth = 1.0;
+
+	/**
+	 * The height of the area the image is displayed in.
+	 */
+	private double displayHeight = 1.0;
+
+	/**
+	 * The ARGB pixels of the frame being drawn.
+	 */
+	private int[] pixels = null;
+
+	/**
+	 * The width of the frame in pixels.
+	 */
+	private int width = 0;
+
+	/**
+	 * The height of the frame in pixels.
+	 */
+	private int height = 0;
+
+	/**
+	 * Create a pixel renderer.
+	 *
+	 * @param bandCount
+	 *            The initial number of bins into which the audio spectrum is
+	 *            divided.
+	 * @param speckCount
+	 *            The maximum number of orbs.
+	 */
+	protected PixelRenderer(int bandCount, int speckCount) {
+		pipeline = new FramePipeline(bandCount, speckCount, System.nanoTime());
+		view = new ImageView();
+		view.setSmooth(true);
+		resize(1.0, 1.0);
+	}
+
+	@Override
+	public Node getNode() {
+		return view;
+	}
+
+	@Override
+	public void resize(double w, double h) {
+		displayWidth = w;
+		displayHeight = h;
+		pipeline.particles.radius = Double.min(w, h) * 0.02;
+		width = Integer.max(1, (int) Math.ceil(w * quality.resolutionScale));
+		height = Integer.max(1, (int) Math.ceil(h * quality.resolutionScale));
+		pixels = new int[width * height];
+		Arrays.fill(pixels, 0xff000000);
+		image = new WritableImage(width, height);
+		view.setImage(image);
+		view.setFitWidth(w);
+		view.setFitHeight(h);
+	}
+
+	@Override
+	public void setQuality(Quality q) {
+		quality = q;
+		pipeline.particles.count = (int) (pipeline.particles.capacity() * q.particleScale);
+		resize(displayWidth, displayHeight);
+	}
+
+	@Override
+	public boolean draw(double[] amplitudes, double colorShift, boolean playing) {
+		boolean animating = pipeline.step(amplitudes, displayWidth, displayHeight, playing);
+		pipeline.paint(pixels, width, height, colorShift, quality);
+		image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0,
+				width);
+		return animating;
+	}
+}
@@ -0,0 +1,51 @@
+package MusicPlayer;
+
+/**
+ * The quality tiers at which the music visualizer can be drawn, from best to
+ * cheapest.
+ */
+enum Quality {
+	HIGH(1, 1.0, 1.0, 1.0), MEDIUM(2, 0.5, 0.75, 0.5), LOW(4, 0.0, 0.5, 0.25), MINIMAL(8, 0.0, 0.25, 0.0);
+
+	/**
+	 * The number of adjacent bins drawn as a single band.
+	 */
+	protected final int bandStride;
+
+	/**
+	 * The multiplier applied to the blur radius. No blur is applied at 0.0.
+	 */
+	protected final double blurScale;
+
+	/**
+	 * The size of the backing buffer relative to the window. The buffer is
+	 * scaled up when displayed.
+	 */
+	protected final double resolutionScale;
+
+	/**
+	 * The fraction of orbs that are drawn.
+	 */
+	protected final double particleScale;
+
+	private Quality(int bandStride, double blurScale, double resolutionScale, double particleScale) {
+		this.bandStride = bandStride;
+		this.blurScale = blurScale;
+		this.resolutionScale = resolutionScale;
+		this.particleScale = particleScale;
+	}
+
+	/**
+	 * The next cheaper tier, or this tier if it is the cheapest.
+	 */
+	protected Quality lower() {
+		return values()[Integer.min(ordinal() + 1, values().length - 1)];
+	}
+
+	/**
+	 * The next better tier, or this tier if it is the best.
+	 */
+	protected Quality higher() {
+		return values()[Integer.max(ordinal() - 1, 0)];
+	}
+}
@@ -0,0 +1,250 @@
+package MusicPlayer;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the quality of the music visualizer from the measured time between
+ * frames. Steps down when frames are late for a sustained period and steps
+ * back up when there is headroom.
+ * <p>
+ * Frames are late when they come slower than the display refreshes, which is
+ * taken from the median time between frames. A display refreshing slower than
+ * 60 times a second is told apart from slow frames by stepping down once: if
+ * frames don't come any faster, the display sets the pace, and the quality is
+ * restored.
+ */
+final class QualityGovernor {
+	/**
+	 * The time available for one frame at 60 frames per second, the fastest
+	 * pace frames are expected to keep.
+	 */
+	private static final long minFrameBudget = 1000000000L / 60L;
+
+	/**
+	 * The number of recent gaps between frames the median is taken over.
+	 */
+	private static final int gapWindow = 64;
+
+	/**
+	 * Gaps longer than this are pauses (e.g. the window was minimized) rather
+	 * than slow frames.
+	 */
+	private static final long maxFrameGap = 250000000L;
+
+	/**
+	 * The number of consecutive slow frames before the quality is reduced.
+	 */
+	private static final int overrunFrames = 30;
+
+	/**
+	 * The initial number of consecutive fast frames before the quality is
+	 * increased.
+	 */
+	private static final int headroomFrames = 120;
+
+	/**
+	 * The longest wait before retrying a better quality.
+	 */
+	private static final int maxHeadroomFrames = 3600;
+
+	/**
+	 * The current quality.
+	 */
+	private Quality quality = Quality.HIGH;
+
+	/**
+	 * The quality chosen by the user, or null to choose automatically.
+	 */
+	private Quality pinned = null;
+
+	/**
+	 * The time of the previous frame in nanoseconds.
+	 */
+	private long lastFrame = 0;
+
+	/**
+	 * The time available for one frame in nanoseconds: the time the display
+	 * takes to refresh, as far as it is known.
+	 */
+	private double frameBudget = minFrameBudget;
+
+	/**
+	 * The recent gaps between frames in nanoseconds.
+	 */
+	private final long[] gaps = new long[gapWindow];
+
+	/**
+	 * Where the next gap is recorded in {@link #gaps}.
+	 */
+	private int gapIndex = 0;
+
+	/**
+	 * The number of gaps recorded, up to the size of the window.
+	 */
+	private int gapCount = 0;
+
+	/**
+	 * The median gap before the quality was last reduced, or NaN unless the
+	 * reduction is still being checked for whether frames came any faster.
+	 */
+	private double gapBeforeDrop = Double.NaN;
+
+	/**
+	 * The number of frames since the reduction being checked.
+	 */
+	private int sinceDrop = 0;
+
+	/**
+	 * The smoothed time between frames in nanoseconds.
+	 */
+	private double frameTime = frameBudget;
+
+	/**
+	 * The number of consecutive slow frames.
+	 */
+	private int overruns = 0;
+
+	/**
+	 * The number of consecutive fast frames.
+	 */
+	private int headroom = 0;
+
+	/**
+	 * The number of fast frames needed before increasing the quality. Doubles
+	 * each time an increase has to be undone.
+	 */
+	private int upgradeDelay = headroomFrames;
+
+	/**
+	 * The number of frames since the quality was last increased.
+	 */
+	private int sinceUpgrade = Integer.MAX_VALUE;
+
+	/**
+	 * Record that a frame is being drawn.
+	 *
+	 * @param now
+	 *            The time of the frame in nanoseconds.
+	 * @return True iff the quality changed.
+	 */
+	protected boolean frame(long now) {
+		long gap = now - lastFrame;
+		lastFrame = now;
+		if (pinned != null || gap <= 0 || gap > maxFrameGap) {
+			return false;
+		}
+
+		gaps[gapIndex] = gap;
+		gapIndex = (gapIndex + 1) % gapWindow;
+		gapCount = Integer.min(gapCount + 1, gapWindow);
+
+		frameTime = frameTime * 0.9 + gap * 0.1;
+		if (sinceUpgrade < Integer.MAX_VALUE) {
+			sinceUpgrade++;
+		}
+
+		if (!Double.isNaN(gapBeforeDrop)) {
+			// a reduction is given a whole window to show whether it helped
+			if (++sinceDrop < gapWindow) {
+				return false;
+			}
+			double gapAfterDrop = median();
+			boolean faster = gapAfterDrop < gapBeforeDrop * 0.95;
+			gapBeforeDrop = Double.NaN;
+			if (!faster) {
+				// the display sets the pace, not the work spent on each frame
+				frameBudget = Double.max(frameBudget, gapAfterDrop);
+				quality = quality.higher();
+				reset();
+				return true;
+			}
+		} else if (gapCount == gapWindow && gapIndex == 0) {
+			double median = median();
+			if (median < frameBudget) {
+				// e.g. the window moved to a display which refreshes faster
+				frameBudget = Double.max(median, minFrameBudget);
+			}
+		}
+
+		if (frameTime > frameBudget * 1.2) {
+			overruns++;
+			headroom = 0;
+		} else if (frameTime < frameBudget * 1.05) {
+			headroom++;
+			overruns = 0;
+		} else {
+			overruns = 0;
+			headroom = 0;
+		}
+
+		if (overruns >= overrunFrames && quality != Quality.MINIMAL) {
+			// the last increase did not hold, so wait longer before the next
+			if (sinceUpgrade < upgradeDelay) {
+				upgradeDelay = Integer.min(upgradeDelay * 2, maxHeadroomFrames);
+			}
+			double before = median();
+			quality = quality.lower();
+			reset();
+			gapBeforeDrop = before;
+			sinceDrop = 0;
+			return true;
+		}
+
+		if (headroom >= upgradeDelay && quality != Quality.HIGH) {
+			quality = quality.higher();
+			reset();
+			sinceUpgrade = 0;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * The quality at which frames should be drawn.
+	 */
+	protected Quality getQuality() {
+		return quality;
+	}
+
+	/**
+	 * The quality chosen by the user, or null when chosen automatically.
+	 */
+	protected Quality getPinned() {
+		return pinned;
+	}
+
+	/**
+	 * Fix the quality at a particular tier.
+	 *
+	 * @param tier
+	 *            The tier to use, or null to choose automatically.
+	 */
+	protected void pin(Quality tier) {
+		pinned = tier;
+		if (tier != null) {
+			quality = tier;
+		}
+		upgradeDelay = headroomFrames;
+		reset();
+	}
+
+	/**
+	 * The median of the recent gaps between frames in nanoseconds.
+	 */
+	private double median() {
+		long[] sorted = Arrays.copyOf(gaps, gapCount);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * Start measuring again after a change in quality.
+	 */
+	private void reset() {
+		overruns = 0;
+		headroom = 0;
+		frameTime = frameBudget;
+		gapBeforeDrop = Double.NaN;
+	}
+}
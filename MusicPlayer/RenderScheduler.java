@@ -0,0 +1,172 @@
+package MusicPlayer;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.media.AudioSpectrumListener;
+import javafx.scene.media.MediaPlayer;
+
+/**
+ * Decides when the music visualizer needs to be drawn. Frames are only drawn
+ * when there is new spectrum data or something is still animating. The timer
+ * is stopped and the spectrum listener detached when nothing is playing or
+ * the window cannot be seen.
+ */
+final class RenderScheduler {
+	/**
+	 * The timer used to update the visuals of the music player.
+	 */
+	private AnimationTimer timer = null;
+
+	/**
+	 * The spectrum listener which updates the music visualizer.
+	 */
+	private AudioSpectrumListener visual = null;
+
+	/**
+	 * The media player which is currently playing, or null if none is.
+	 */
+	private MediaPlayer playing = null;
+
+	/**
+	 * True iff the timer has been started.
+	 */
+	private boolean running = false;
+
+	/**
+	 * True iff the window can be seen.
+	 */
+	private boolean visible = true;
+
+	/**
+	 * True iff the visuals need to be drawn in the next frame.
+	 */
+	private boolean dirty = true;
+
+	/**
+	 * Create a scheduler for the given timer and spectrum listener.
+	 *
+	 * @param timer
+	 *            The timer which draws the visuals.
+	 * @param visual
+	 *            The spectrum listener which provides new input.
+	 */
+	protected RenderScheduler(AnimationTimer timer, AudioSpectrumListener visual) {
+		this.timer = timer;
+		this.visual = visual;
+	}
+
+	/**
+	 * Follow a media player so the spectrum listener is only attached while
+	 * it is playing.
+	 *
+	 * @param mp
+	 *            A media player which may be played.
+	 */
+	protected void watch(MediaPlayer mp) {
+		mp.statusProperty().addListener((observable, oldValue, newValue) -> {
+			if (newValue == MediaPlayer.Status.PLAYING) {
+				if (playing != null && playing != mp) {
+					playing.setAudioSpectrumListener(null);
+				}
+				playing = mp;
+				if (visible) {
+					mp.setAudioSpectrumListener(visual);
+				}
+				invalidate();
+			} else if (mp == playing) {
+				playing = null;
+				if (newValue != MediaPlayer.Status.DISPOSED) {
+					mp.setAudioSpectrumListener(null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record whether the window can be seen. Stops all drawing when it
+	 * cannot.
+	 */
+	protected void setVisible(boolean isVisible) {
+		visible = isVisible;
+		if (visible) {
+			if (playing != null) {
+				playing.setAudioSpectrumListener(visual);
+			}
+			invalidate();
+		} else {
+			if (playing != null) {
+				playing.setAudioSpectrumListener(null);
+			}
+			stop();
+		}
+	}
+
+	/**
+	 * Record that the visuals need to be drawn again, e.g. because new
+	 * spectrum data has arrived.
+	 */
+	protected void invalidate() {
+		dirty = true;
+		requestFrame();
+	}
+
+	/**
+	 * Make sure frames are being delivered, e.g. so buttons can fade.
+	 */
+	protected void requestFrame() {
+		if (visible && !running) {
+			running = true;
+			timer.start();
+		}
+	}
+
+	/**
+	 * True iff a song is playing.
+	 */
+	protected boolean isPlaying() {
+		return playing != null;
+	}
+
+	/**
+	 * The media player which is currently playing, or null if none is.
+	 */
+	protected MediaPlayer getPlaying() {
+		return playing;
+	}
+
+	/**
+	 * Called at the start of each frame.
+	 *
+	 * @return True iff the visuals should be drawn in this frame.
+	 */
+	protected boolean beginFrame() {
+		boolean draw = dirty;
+		dirty = false;
+		return draw;
+	}
+
+	/**
+	 * Called at the end of each frame. Stops the timer when nothing is left to
+	 * animate.
+	 *
+	 * @param visualsAnimating
+	 *            True iff the visuals will change without new input.
+	 * @param othersAnimating
+	 *            True iff anything else on the screen is still changing.
+	 */
+	protected void endFrame(boolean visualsAnimating, boolean othersAnimating) {
+		dirty = dirty || visualsAnimating;
+		if (!dirty && !othersAnimating) {
+			stop();
+		}
+	}
+
+	/**
+	 * Stops delivering frames.
+	 */
+	private void stop() {
+		if (running) {
+			running = false;
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package MusicPlayer;
+
+import java.util.Random;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.effect.BoxBlur;
+import javafx.scene.image.WritableImage;
+import javafx.stage.Stage;
+
+/**
+ * Compares the cost of a visualizer frame between the available renderers.
+ * Each frame is followed by a snapshot so that the time includes the work
+ * done by the render thread and not only the queuing of commands. For the
+ * threaded renderer this measures the time the application thread is held.
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class RendererBenchmark extends Application {
+	/**
+	 * The resolutions to measure.
+	 */
+	private static final int[][] resolutions = { { 1920, 1080 }, { 3840, 2160 } };
+
+	/**
+	 * The number of bins into which the audio spectrum is divided.
+	 */
+	private static final int bandCount = 1024;
+
+	/**
+	 * The number of orbs drawn in each frame.
+	 */
+	private static final int speckCount = 4096;
+
+	/**
+	 * The number of frames drawn before measuring.
+	 */
+	private static final int warmupFrames = 30;
+
+	/**
+	 * The number of frames measured for each renderer and resolution.
+	 */
+	private static final int measuredFrames = 120;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The command line arguments.
+	 */
+	public static void main(String[] args) {
+		Application.launch(args);
+	}
+
+	@Override
+	public void start(Stage stage) throws Exception {
+		Random rand = new Random(0);
+
+		BoxBlur blur = new BoxBlur();
+		blur.setIterations(2);
+
+		SpectrumRenderer[] renderers = { new CanvasRenderer(bandCount, speckCount, blur),
+				new PixelRenderer(bandCount, speckCount), new ThreadedRenderer(bandCount, speckCount) };
+
+		for (int[] resolution : resolutions) {
+			int width = resolution[0];
+			int height = resolution[1];
+			double radius = Double.min(width, height) * 0.02;
+			blur.setHeight(radius * 0.5);
+			blur.setWidth(radius * 0.5);
+			WritableImage snapshot = new WritableImage(width, height);
+
+			for (SpectrumRenderer renderer : renderers) {
+				renderer.resize(width, height);
+				long start = 0;
+				for (int frame = 0; frame < warmupFrames + measuredFrames; frame++) {
+					if (frame == warmupFrames) {
+						start = System.nanoTime();
+					}
+					double[] amplitudes = new double[bandCount];
+					for (int i = 0; i < bandCount; i++) {
+						amplitudes[i] = rand.nextDouble();
+					}
+					renderer.draw(amplitudes, 360.0 * frame / (warmupFrames + measuredFrames), true);
+					renderer.getNode().snapshot(null, snapshot);
+				}
+				double frameMillis = (System.nanoTime() - start) / 1e6 / measuredFrames;
+				System.out.println(String.format("%dx%d %s: %.2f ms/frame", width, height,
+						renderer.getClass().getSimpleName(), frameMillis));
+			}
+		}
+
+		Platform.exit();
+	}
+}
@@ -0,0 +1,177 @@
+package MusicPlayer;
+
+/**
+ * Maps the bands of the audio spectrum onto the columns of the music
+ * visualizer. Low frequencies are stretched across more columns than high
+ * frequencies. Where a column covers several bands they can be combined
+ * instead of sampled.
+ */
+final class SpectrumMapper {
+	/**
+	 * How bands are combined into a column.
+	 */
+	enum Aggregation {
+		/**
+		 * Interpolate between the two bands nearest the column.
+		 */
+		INTERPOLATE,
+		/**
+		 * Take the loudest band in the column.
+		 */
+		MAX,
+		/**
+		 * Take the root mean square of the bands in the column.
+		 */
+		RMS
+	}
+
+	/**
+	 * Controls how strongly the low frequencies are stretched.
+	 */
+	private static final double scale = 50.0;
+
+	/**
+	 * The fraction of the spectrum that is shown.
+	 */
+	private static final double stretch = 0.5;
+
+	/**
+	 * The fewest bands that will be requested.
+	 */
+	protected static final int minBands = 64;
+
+	/**
+	 * The most bands that will be requested.
+	 */
+	protected static final int maxBands = 1024;
+
+	/**
+	 * The number of columns that are drawn.
+	 */
+	private final int columns;
+
+	/**
+	 * How bands are combined into a column.
+	 */
+	private final Aggregation aggregation;
+
+	/**
+	 * The number of bands the positions were computed for.
+	 */
+	private int bands = -1;
+
+	/**
+	 * The fractional band at which each column starts. Has one extra entry
+	 * for the end of the last column.
+	 */
+	private double[] positions = null;
+
+	/**
+	 * Create a mapper for the given number of columns.
+	 *
+	 * @param columns
+	 *            The number of columns that are drawn.
+	 * @param aggregation
+	 *            How bands are combined into a column.
+	 */
+	protected SpectrumMapper(int columns, Aggregation aggregation) {
+		this.columns = columns;
+		this.aggregation = aggregation;
+	}
+
+	/**
+	 * The number of columns that are drawn.
+	 */
+	protected int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * How bands are combined into a column.
+	 */
+	protected Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	/**
+	 * The fewest bands needed so that every column gets at least one band of
+	 * its own. Fewer bands are cheaper to analyze.
+	 *
+	 * @param columns
+	 *            The number of columns that are drawn.
+	 * @return A power of two between {@link #minBands} and {@link #maxBands}.
+	 */
+	protected static int bandsFor(int columns) {
+		// the highest columns are the narrowest; this is the slope there
+		double slope = stretch * Math.log(scale) * scale / (scale - 1.0);
+		int needed = (int) Math.ceil(columns / slope);
+		int bands = minBands;
+		while (bands < needed && bands < maxBands) {
+			bands *= 2;
+		}
+		return bands;
+	}
+
+	/**
+	 * Convert decibel magnitudes into the loudness of each column.
+	 *
+	 * @param magnitudes
+	 *            The magnitudes of each band from the spectrum listener.
+	 * @return The loudness of each column from 0.0 to 1.0.
+	 */
+	protected double[] map(float[] magnitudes) {
+		if (magnitudes.length != bands) {
+			layout(magnitudes.length);
+		}
+
+		double[] amplitudes = new double[columns];
+		for (int i = 0; i < columns; i++) {
+			double start = positions[i];
+			double end = positions[i + 1];
+			int index = (int) start;
+			if (aggregation == Aggregation.INTERPOLATE || end - index < 2.0) {
+				if (index + 1 >= bands) {
+					continue;
+				}
+				double ratio = start - (double) (index);
+				amplitudes[i] = loudness(magnitudes[index]) * (1.0 - ratio) + loudness(magnitudes[index + 1]) * ratio;
+			} else {
+				int last = Integer.min((int) Math.ceil(end) - 1, bands - 1);
+				double result = 0.0;
+				for (int j = index; j <= last; j++) {
+					double value = loudness(magnitudes[j]);
+					if (aggregation == Aggregation.MAX) {
+						result = Double.max(result, value);
+					} else {
+						result += value * value;
+					}
+				}
+				if (aggregation == Aggregation.RMS) {
+					result = Math.sqrt(result / (last - index + 1));
+				}
+				amplitudes[i] = result;
+			}
+		}
+		return amplitudes;
+	}
+
+	/**
+	 * Compute where each column starts for a given number of bands.
+	 */
+	private void layout(int bandCount) {
+		bands = bandCount;
+		positions = new double[columns + 1];
+		for (int i = 0; i <= columns; i++) {
+			double interpolate = (double) i / (double) columns;
+			interpolate = stretch * (Math.pow(scale, interpolate) - 1.0) / (scale - 1.0);
+			positions[i] = interpolate * (double) bands;
+		}
+	}
+
+	/**
+	 * Convert a decibel magnitude into a loudness from 0.0 to 1.0.
+	 */
+	private static double loudness(float magnitude) {
+		return Double.min(1.0, Math.sqrt(Math.abs((magnitude + 60.0) / 50.0)));
+	}
+}
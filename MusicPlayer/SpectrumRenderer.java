@@ -0,0 +1,45 @@
+package MusicPlayer;
+
+import javafx.scene.Node;
+
+/**
+ * Draws the frames of the music visualizer.
+ */
+interface SpectrumRenderer {
+	/**
+	 * The node onto which this renderer draws.
+	 */
+	Node getNode();
+
+	/**
+	 * Handle resizing.
+	 *
+	 * @param width
+	 *            The new width of the drawing area.
+	 * @param height
+	 *            The new height of the drawing area.
+	 */
+	void resize(double width, double height);
+
+	/**
+	 * Change how much work is spent drawing each frame.
+	 *
+	 * @param quality
+	 *            The quality at which to draw.
+	 */
+	void setQuality(Quality quality);
+
+	/**
+	 * Advance and draw a single frame of the music visualizer.
+	 *
+	 * @param amplitudes
+	 *            The loudness of each bin of the audio spectrum.
+	 * @param colorShift
+	 *            The shift in the hues due to the duration remaining in the
+	 *            song.
+	 * @param playing
+	 *            True iff a song is playing.
+	 * @return True iff the visuals will keep changing without new input.
+	 */
+	boolean draw(double[] amplitudes, double colorShift, boolean playing);
+}
@@ -0,0 +1,323 @@
+package MusicPlayer;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Draws the music visualizer on a worker thread. The application thread only
+ * hands over the latest spectrum and publishes finished frames, so input is
+ * handled just as quickly however long a frame takes to compute. Frames are
+ * shared with the display without copying.
+ */
+final class ThreadedRenderer implements SpectrumRenderer {
+	/**
+	 * The number of frame buffers: one displayed, one which the render thread
+	 * may still be reading, and one being drawn into.
+	 */
+	private static final int bufferCount = 3;
+
+	/**
+	 * A frame handed between the application thread and the worker.
+	 */
+	private static final class Frame {
+		/**
+		 * The spectrum to draw.
+		 */
+		private double[] amplitudes = null;
+
+		/**
+		 * The shift of the palette.
+		 */
+		private double colorShift = 0.0;
+
+		/**
+		 * True iff a song is playing.
+		 */
+		private boolean playing = false;
+
+		/**
+		 * The width of the area the frame is displayed in.
+		 */
+		private double displayWidth = 0.0;
+
+		/**
+		 * The height of the area the frame is displayed in.
+		 */
+		private double displayHeight = 0.0;
+
+		/**
+		 * The quality at which the frame is drawn.
+		 */
+		private Quality quality = Quality.HIGH;
+
+		/**
+		 * The ARGB pixels of the buffer the frame is drawn into.
+		 */
+		private int[] pixels = null;
+
+		/**
+		 * The width of the frame in pixels.
+		 */
+		private int width = 0;
+
+		/**
+		 * The height of the frame in pixels.
+		 */
+		private int height = 0;
+
+		/**
+		 * The buffer the frame is drawn into.
+		 */
+		private int slot = 0;
+
+		/**
+		 * The generation of the buffers when the frame was requested.
+		 */
+		private int generation = 0;
+
+		/**
+		 * Set by the worker: true iff the frame will keep changing without
+		 * new input.
+		 */
+		private boolean animating = false;
+	}
+
+	/**
+	 * Displays the most recently finished frame.
+	 */
+	private ImageView view = null;
+
+	/**
+	 * The quality at which frames are drawn.
+	 */
+	private Quality quality = Quality.HIGH;
+
+	/**
+	 * The width of the area the image is displayed in.
+	 */
+	private double displayWidth = 1.0;
+
+	/**
+	 * The height of the area the image is displayed in.
+	 */
+	private double displayHeight = 1.0;
+
+	/**
+	 * The width of the frames in pixels.
+	 */
+	private int width = 0;
+
+	/**
+	 * The height of the frames in pixels.
+	 */
+	private int height = 0;
+
+	/**
+	 * The ARGB pixels of each frame buffer.
+	 */
+	private int[][] pixels = null;
+
+	/**
+	 * Shares each frame buffer with the display.
+	 */
+	private ArrayList<PixelBuffer<IntBuffer>> buffers = null;
+
+	/**
+	 * The image backed by each frame buffer.
+	 */
+	private WritableImage[] images = null;
+
+	/**
+	 * The buffer being displayed.
+	 */
+	private int front = 0;
+
+	/**
+	 * The buffer that was displayed before {@link #front}.
+	 */
+	private int previous = 1;
+
+	/**
+	 * Incremented whenever the buffers are replaced so that frames drawn into
+	 * old buffers are not shown.
+	 */
+	private int generation = 0;
+
+	/**
+	 * True iff the last finished frame will keep changing without new input.
+	 */
+	private boolean animating = true;
+
+	/**
+	 * The spectrum last handed to the worker.
+	 */
+	private double[] submitted = null;
+
+	/**
+	 * Guards {@link #request}, {@link #finished} and {@link #busy}.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The frame waiting to be drawn by the worker.
+	 */
+	private Frame request = null;
+
+	/**
+	 * The frame the worker has finished but which has not been displayed.
+	 */
+	private Frame finished = null;
+
+	/**
+	 * True iff the worker is drawing a frame.
+	 */
+	private boolean busy = false;
+
+	/**
+	 * The smoothed spectrum and orbs. Only used by the worker.
+	 */
+	private FramePipeline pipeline = null;
+
+	/**
+	 * Create a threaded renderer and start its worker.
+	 *
+	 * @param bandCount
+	 *            The initial number of bins into which the audio spectrum is
+	 *            divided.
+	 * @param speckCount
+	 *            The maximum number of orbs.
+	 */
+	protected ThreadedRenderer(int bandCount, int speckCount) {
+		pipeline = new FramePipeline(bandCount, speckCount, System.nanoTime());
+		view = new ImageView();
+		view.setSmooth(true);
+		resize(1.0, 1.0);
+
+		Thread worker = new Thread(() -> work(), "Visualizer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@Override
+	public Node getNode() {
+		return view;
+	}
+
+	@Override
+	public void resize(double w, double h) {
+		displayWidth = w;
+		displayHeight = h;
+		width = Integer.max(1, (int) Math.ceil(w * quality.resolutionScale));
+		height = Integer.max(1, (int) Math.ceil(h * quality.resolutionScale));
+
+		pixels = new int[bufferCount][];
+		buffers = new ArrayList<PixelBuffer<IntBuffer>>();
+		images = new WritableImage[bufferCount];
+		for (int i = 0; i < bufferCount; i++) {
+			pixels[i] = new int[width * height];
+			Arrays.fill(pixels[i], 0xff000000);
+			buffers.add(new PixelBuffer<IntBuffer>(width, height, IntBuffer.wrap(pixels[i]),
+					PixelFormat.getIntArgbPreInstance()));
+			images[i] = new WritableImage(buffers.get(i));
+		}
+		generation++;
+		submitted = null;
+		front = 0;
+		previous = 1;
+		view.setImage(images[front]);
+		view.setFitWidth(w);
+		view.setFitHeight(h);
+	}
+
+	@Override
+	public void setQuality(Quality q) {
+		quality = q;
+		resize(displayWidth, displayHeight);
+	}
+
+	@Override
+	public boolean draw(double[] amplitudes, double colorShift, boolean playing) {
+		Frame done = null;
+		synchronized (lock) {
+			done = finished;
+			finished = null;
+		}
+
+		// show the finished frame; nothing is copied
+		if (done != null && done.generation == generation) {
+			buffers.get(done.slot).updateBuffer(buffer -> null);
+			view.setImage(images[done.slot]);
+			previous = front;
+			front = done.slot;
+			animating = done.animating;
+		}
+
+		// hand over the next frame unless the worker is still drawing
+		boolean stale = animating || amplitudes != submitted;
+		boolean waiting = false;
+		synchronized (lock) {
+			if (stale && !busy && request == null) {
+				Frame next = new Frame();
+				next.amplitudes = amplitudes;
+				next.colorShift = colorShift;
+				next.playing = playing;
+				next.displayWidth = displayWidth;
+				next.displayHeight = displayHeight;
+				next.quality = quality;
+				// the one buffer that is neither displayed nor possibly being read
+				next.slot = 0 + 1 + 2 - front - previous;
+				next.pixels = pixels[next.slot];
+				next.width = width;
+				next.height = height;
+				next.generation = generation;
+				request = next;
+				lock.notify();
+				submitted = amplitudes;
+				stale = false;
+			}
+			waiting = busy || request != null || finished != null;
+		}
+
+		// keep the frames coming until the worker's frame has been shown
+		return stale || waiting;
+	}
+
+	/**
+	 * Draws frames as they are requested. Runs on the worker thread.
+	 */
+	private void work() {
+		while (true) {
+			Frame frame = null;
+			synchronized (lock) {
+				while (request == null) {
+					try {
+						lock.wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				frame = request;
+				request = null;
+				busy = true;
+			}
+
+			pipeline.particles.radius = Double.min(frame.displayWidth, frame.displayHeight) * 0.02;
+			pipeline.particles.count = (int) (pipeline.particles.capacity() * frame.quality.particleScale);
+			frame.animating = pipeline.step(frame.amplitudes, frame.displayWidth, frame.displayHeight,
+					frame.playing);
+			pipeline.paint(frame.pixels, frame.width, frame.height, frame.colorShift, frame.quality);
+
+			synchronized (lock) {
+				finished = frame;
+				busy = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package MusicPlayer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the visualizer's frame pipeline without a display, so it can run
+ * on build servers. Frames are rendered from synthetic spectra, or from a
+ * recording with one frame of decibel magnitudes per line. The time and memory
+ * allocated by each stage are reported.
+ *
+ * Usage: VisualizerBenchmark [frames] [recording]
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class VisualizerBenchmark {
+	/**
+	 * The resolutions to measure.
+	 */
+	private static final int[][] resolutions = { { 1280, 720 }, { 1920, 1080 }, { 3840, 2160 } };
+
+	/**
+	 * The numbers of bands of synthetic spectra.
+	 */
+	private static final int[] bandCounts = { 64, 256, 1024 };
+
+	/**
+	 * The number of orbs, as in the media window.
+	 */
+	private static final int speckCount = 2048;
+
+	/**
+	 * The number of frames measured unless given on the command line.
+	 */
+	private static final int defaultFrames = 2000;
+
+	/**
+	 * The number of distinct synthetic spectra, played in a loop.
+	 */
+	private static final int syntheticFrames = 600;
+
+	/**
+	 * The names of the measured stages.
+	 */
+	private static final String[] stages = { "map", "smooth", "motion", "bands", "particles", "blur" };
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The number of measured frames, then optionally a recording.
+	 */
+	public static void main(String[] args) {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : defaultFrames;
+		int warmup = Integer.max(1, frames / 10);
+
+		List<float[][]> spectra = new ArrayList<float[][]>();
+		if (args.length > 1) {
+			try {
+				spectra.add(read(args[1]));
+			} catch (IOException | NumberFormatException ex) {
+				System.out.println("Could not read " + args[1] + ": " + ex.toString());
+				return;
+			}
+		} else {
+			for (int bands : bandCounts) {
+				spectra.add(synthesize(bands, new Random(bands)));
+			}
+		}
+
+		System.out.println(String.format("%d frames per run, %d orbs, %s quality, %d threads", frames, speckCount,
+				Quality.HIGH, Runtime.getRuntime().availableProcessors()));
+		for (int[] resolution : resolutions) {
+			for (float[][] spectrum : spectra) {
+				run(resolution[0], resolution[1], spectrum, warmup, frames);
+			}
+		}
+	}
+
+	/**
+	 * Render frames at one resolution and print the results.
+	 *
+	 * @param width
+	 *            The width of the frames.
+	 * @param height
+	 *            The height of the frames.
+	 * @param spectrum
+	 *            The magnitudes of each frame, played in a loop.
+	 * @param warmup
+	 *            The number of frames rendered before measuring.
+	 * @param frames
+	 *            The number of frames measured.
+	 */
+	private static void run(int width, int height, float[][] spectrum, int warmup, int frames) {
+		Quality quality = Quality.HIGH;
+		int bufferWidth = Integer.max(1, (int) Math.ceil(width * quality.resolutionScale));
+		int bufferHeight = Integer.max(1, (int) Math.ceil(height * quality.resolutionScale));
+		// one column per pixel, as the media window does unless interpolating
+		SpectrumMapper mapper = new SpectrumMapper(bufferWidth, SpectrumMapper.Aggregation.MAX);
+		FramePipeline pipeline = new FramePipeline(mapper.getColumns(), speckCount, 1);
+		pipeline.particles.radius = Double.min(width, height) * 0.02;
+		int[] pixels = new int[bufferWidth * bufferHeight];
+
+		Allocations allocations = new Allocations();
+		long[] times = new long[stages.length];
+		long[] bytes = new long[stages.length];
+		long totalBytes = 0;
+		long start = 0;
+
+		for (int frame = 0; frame < warmup + frames; frame++) {
+			if (frame == warmup) {
+				times = new long[stages.length];
+				bytes = new long[stages.length];
+				totalBytes = allocations.all();
+				start = System.nanoTime();
+			}
+			float[] magnitudes = spectrum[frame % spectrum.length];
+			double colorShift = (360.0 * frame) / (warmup + frames);
+
+			long before = allocations.current();
+			long time = System.nanoTime();
+			double[] amplitudes = mapper.map(magnitudes);
+			time = record(times, bytes, 0, time, before, allocations);
+			before = allocations.current();
+			double bassAmplitude = pipeline.smooth(amplitudes);
+			time = record(times, bytes, 1, time, before, allocations);
+			before = allocations.current();
+			pipeline.particles.update(bassAmplitude, width, height);
+			time = record(times, bytes, 2, time, before, allocations);
+			before = allocations.current();
+			pipeline.paintBands(pixels, bufferWidth, bufferHeight, colorShift, quality);
+			time = record(times, bytes, 3, time, before, allocations);
+			before = allocations.current();
+			pipeline.particles.draw(pixels, bufferWidth, bufferHeight, quality.resolutionScale);
+			time = record(times, bytes, 4, time, before, allocations);
+			before = allocations.current();
+			pipeline.blur(pixels, bufferWidth, bufferHeight, quality);
+			record(times, bytes, 5, time, before, allocations);
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		totalBytes = allocations.all() - totalBytes;
+		long total = 0;
+		for (long time : times) {
+			total += time;
+		}
+		System.out.println(String.format("%dx%d, %d bands, %d columns: %.3f ms/frame, %s/s allocated", width,
+				height, spectrum[0].length, mapper.getColumns(), total / 1e6 / frames,
+				allocations.supported() ? size(totalBytes / seconds) : "?"));
+		for (int i = 0; i < stages.length; i++) {
+			System.out.println(String.format("  %-10s %8.3f ms/frame %10s/frame", stages[i], times[i] / 1e6 / frames,
+					allocations.supported() ? size((double) bytes[i] / frames) : "?"));
+		}
+	}
+
+	/**
+	 * Add the time and memory used by a stage.
+	 *
+	 * @return The time at which the stage ended.
+	 */
+	private static long record(long[] times, long[] bytes, int stage, long start, long before,
+			Allocations allocations) {
+		long end = System.nanoTime();
+		times[stage] += end - start;
+		bytes[stage] += allocations.current() - before;
+		// don't count the time spent asking about allocations
+		return System.nanoTime();
+	}
+
+	/**
+	 * Format a number of bytes.
+	 */
+	private static String size(double bytes) {
+		if (bytes >= 1024.0 * 1024.0) {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+		} else if (bytes >= 1024.0) {
+			return String.format("%.1f KB", bytes / 1024.0);
+		}
+		return String.format("%.0f B", bytes);
+	}
+
+	/**
+	 * Create a looping sequence of spectra with a beat in the bass and noise in
+	 * the treble.
+	 *
+	 * @param bands
+	 *            The number of bands of each spectrum.
+	 * @param rand
+	 *            The source of the noise.
+	 * @return The decibel magnitudes of each frame.
+	 */
+	private static float[][] synthesize(int bands, Random rand) {
+		float[][] spectrum = new float[syntheticFrames][bands];
+		for (int frame = 0; frame < syntheticFrames; frame++) {
+			// a beat twice a second at 60 frames per second
+			double beat = Math.pow(1.0 - (frame % 30) / 30.0, 2.0);
+			for (int i = 0; i < bands; i++) {
+				double position = (double) i / (double) bands;
+				double level = 0.5 * beat * Math.pow(1.0 - position, 8.0)
+						+ 0.3 * (0.5 + 0.5 * Math.sin(frame * 0.05 + position * 20.0)) * (1.0 - position)
+						+ 0.2 * rand.nextDouble();
+				spectrum[frame][i] = (float) (-60.0 + 60.0 * Double.min(1.0, level));
+			}
+		}
+		return spectrum;
+	}
+
+	/**
+	 * Read recorded spectra, one frame of whitespace separated decibel
+	 * magnitudes per line.
+	 *
+	 * @param path
+	 *            The path of the recording.
+	 * @return The magnitudes of each frame.
+	 */
+	private static float[][] read(String path) throws IOException {
+		List<float[]> frames = new ArrayList<float[]>();
+		for (String line : Files.readAllLines(Paths.get(path))) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] values = line.split("\\s+");
+			float[] magnitudes = new float[values.length];
+			for (int i = 0; i < values.length; i++) {
+				magnitudes[i] = Float.parseFloat(values[i]);
+			}
+			if (!frames.isEmpty() && magnitudes.length != frames.get(0).length) {
+				throw new IOException("line " + (frames.size() + 1) + " has " + magnitudes.length + " bands");
+			}
+			frames.add(magnitudes);
+		}
+		if (frames.isEmpty()) {
+			throw new IOException("no frames");
+		}
+		return frames.toArray(new float[frames.size()][]);
+	}
+
+	/**
+	 * Reads how much memory threads have allocated, where the virtual machine
+	 * supports it.
+	 */
+	private static final class Allocations {
+		/**
+		 * The thread bean, or null if allocations can't be measured.
+		 */
+		private final com.sun.management.ThreadMXBean bean;
+
+		/**
+		 * The id of the thread running the benchmark.
+		 */
+		private final long thread = Thread.currentThread().getId();
+
+		private Allocations() {
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+				bean = (com.sun.management.ThreadMXBean) threads;
+				bean.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				bean = null;
+			}
+		}
+
+		/**
+		 * True iff allocations can be measured.
+		 */
+		private boolean supported() {
+			return bean != null;
+		}
+
+		/**
+		 * The bytes allocated by the benchmark thread. Allocating nothing
+		 * itself, this can be called between stages.
+		 */
+		private long current() {
+			return bean == null ? 0 : bean.getThreadAllocatedBytes(thread);
+		}
+
+		/**
+		 * The bytes allocated by all live threads, including those that help
+		 * to blur.
+		 */
+		private long all() {
+			if (bean == null) {
+				return 0;
+			}
+			long total = 0;
+			for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+				total += Long.max(0, bytes);
+			}
+			return total;
+		}
+	}
+}
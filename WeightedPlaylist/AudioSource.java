@@ -1,7 +1,11 @@
 package WeightedPlaylist;
 
 import java.io.File;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -14,24 +18,114 @@ public abstract class AudioSource {
 	private static final Random random = new Random();
 
 	/**
-	 * A list of folders to be rebalanced once initialized.
+	 * Used during song selection.
 	 */
-	private static ArrayList<Playlist> toBalance = null;
+	private double cumulWeight = Double.NaN;
 
 	/**
-	 * Used during song selection.
+	 * The folder this audio source is in, or null for the primary source.
 	 */
-	private double cumulWeight = Double.NaN;
+	private Playlist parent = null;
 
 	/**
-	 * This file or folder this audio source represents.
+	 * The node of the file or folder this audio source represents in the
+	 * {@link PathStore}.
 	 */
-	private File file = null;
+	private final int path;
 
 	/**
-	 * The name of this audio source's file or folder.
+	 * How the folders of one primary source are loaded. It is shared by every
+	 * folder in the primary source and guarded by its lock, so that the old
+	 * primary source can still be played while the next one is loaded.
 	 */
-	private String name = null;
+	static final class Loading {
+		/**
+		 * True iff folders whose song count is remembered are only loaded once
+		 * a song is picked from them.
+		 */
+		private final boolean lazy;
+
+		/**
+		 * True while every folder is only loaded once a song is picked from it
+		 * or the library scan reaches it, so that songs play before the scan
+		 * ends.
+		 */
+		private boolean progressive;
+
+		/**
+		 * The folders found while loading a folder, to be rebalanced once it
+		 * is loaded.
+		 */
+		private ArrayList<Playlist> toBalance = new ArrayList<Playlist>();
+
+		/**
+		 * The folders loaded when a song was picked from them, least recently
+		 * used first.
+		 */
+		final LinkedHashMap<Playlist, Boolean> loaded = new LinkedHashMap<Playlist, Boolean>(16, 0.75f, true);
+
+		/**
+		 * Cleared by the garbage collector when memory runs low, which is when
+		 * loaded folders are unloaded.
+		 */
+		SoftReference<Object> memoryPressure = new SoftReference<Object>(new Object());
+
+		/**
+		 * Finds the songs and folders loaded so far by name.
+		 */
+		final SearchIndex index = new SearchIndex();
+
+		/**
+		 * The songs loaded since the primary source was created, until they
+		 * are taken to be analysed. Null while it is created.
+		 */
+		ArrayList<MusicFile> found = null;
+
+		/**
+		 * Start loading a primary source.
+		 * 
+		 * @param lazy
+		 *            True to load folders only once a song is picked from
+		 *            them.
+		 * @param progressive
+		 *            True to leave folders to be loaded by a
+		 *            {@link LibraryScanner}.
+		 */
+		private Loading(boolean lazy, boolean progressive) {
+			this.lazy = lazy;
+			this.progressive = progressive;
+		}
+
+		/**
+		 * Loads a folder's contents after the primary source was created. The
+		 * folders found in it are given their remembered weights.
+		 * 
+		 * @param loader
+		 *            Finds the folder's contents.
+		 */
+		void load(Runnable loader) {
+			ArrayList<Playlist> outer = toBalance;
+			toBalance = new ArrayList<Playlist>();
+			loader.run();
+			for (Playlist pl : toBalance) {
+				pl.setWeight(pl.getCumulWeight());
+			}
+			toBalance = outer;
+		}
+
+		/**
+		 * Load folders as usual from now on, once a {@link LibraryScanner} has
+		 * loaded every folder of a progressively loaded primary source. Unless
+		 * folders are loaded lazily, they are no longer unloaded either.
+		 */
+		void endProgressive() {
+			progressive = false;
+			if (!lazy) {
+				loaded.clear();
+				memoryPressure = new SoftReference<Object>(new Object());
+			}
+		}
+	}
 
 	/**
 	 * The total count of valid songs in this audio source.
@@ -51,6 +145,16 @@ public abstract class AudioSource {
 	 */
 	protected abstract void balanceWeight(double multiplier);
 
+	/**
+	 * Multiply this audio source and all its children's weight by a multiplier
+	 * without updating the folders above it. Used by folders which add up
+	 * their children afterwards.
+	 * 
+	 * @param multiplier
+	 *            The weight multiplier.
+	 */
+	protected abstract void scaleWeight(double multiplier);
+
 	/**
 	 * Ensure the weight of this audio source is equal to total.
 	 * 
@@ -87,6 +191,23 @@ public abstract class AudioSource {
 	 */
 	protected abstract String getFileString();
 
+	/**
+	 * Save the line {@link #getFileString()} would give in the
+	 * {@link WeightStore}.
+	 * 
+	 * @param folder
+	 *            The store's record of the folder this audio source is in.
+	 */
+	protected abstract void store(int folder);
+
+	/**
+	 * Adds all valid music files in this audio source to a list.
+	 * 
+	 * @param files
+	 *            The list to add to.
+	 */
+	protected abstract void addFiles(List<MusicFile> files);
+
 	/**
 	 * Gets a playlist that will act as a primary audio source.
 	 * 
@@ -95,20 +216,87 @@ public abstract class AudioSource {
 	 * @return A playlist object with songs.
 	 */
 	public static Playlist getPrimarySource(File topDir) {
-		if (!topDir.isDirectory()) {
+		return getPrimarySource(topDir, false);
+	}
+
+	/**
+	 * Gets a playlist that will act as a primary audio source.
+	 * 
+	 * @param topDir
+	 *            The playlist directory.
+	 * @param lazyLoading
+	 *            True to load folders only once a song is picked from them.
+	 *            Folders which have never been counted are still loaded.
+	 * @return A playlist object with songs.
+	 */
+	public static Playlist getPrimarySource(File topDir, boolean lazyLoading) {
+		return getPrimarySource(topDir, lazyLoading, false);
+	}
+
+	/**
+	 * Gets a playlist that will act as a primary audio source.
+	 * 
+	 * @param topDir
+	 *            The playlist directory.
+	 * @param lazyLoading
+	 *            True to load folders only once a song is picked from them.
+	 *            Folders which have never been counted are still loaded.
+	 * @param progressiveLoading
+	 *            True to load only the top folder, leaving the rest to be
+	 *            loaded by a {@link LibraryScanner}. Folders are weighted by
+	 *            their remembered counts until then; folders which have never
+	 *            been counted have no songs until then.
+	 * @return A playlist object with songs.
+	 */
+	public static Playlist getPrimarySource(File topDir, boolean lazyLoading, boolean progressiveLoading) {
+		return getPrimarySource(Collections.singletonList(topDir), lazyLoading, progressiveLoading);
+	}
+
+	/**
+	 * Gets a library made of several folders that will act as a primary audio
+	 * source. Songs are picked from all of them, each folder weighted by its
+	 * own relative weight, which is remembered in the user's home folder.
+	 * 
+	 * @param roots
+	 *            The playlist directories. Those that don't exist are left
+	 *            out.
+	 * @param lazyLoading
+	 *            True to load folders only once a song is picked from them.
+	 *            Folders which have never been counted are still loaded.
+	 * @param progressiveLoading
+	 *            True to load only the top folders, leaving the rest to be
+	 *            loaded by a {@link LibraryScanner}, which scans every
+	 *            directory at once.
+	 * @return A playlist object with songs, or null if none of the
+	 *         directories exist.
+	 */
+	public static Playlist getPrimarySource(List<File> roots, boolean lazyLoading, boolean progressiveLoading) {
+		ArrayList<File> folders = new ArrayList<File>();
+		for (File root : roots) {
+			File folder = root.getAbsoluteFile();
+			if (folder.isDirectory() && !folders.contains(folder)) {
+				folders.add(folder);
+			}
+		}
+		if (folders.isEmpty()) {
 			return null;
 		}
-		toBalance = new ArrayList<Playlist>();
-		Playlist temp = new Playlist(topDir);
+		Loading loading = new Loading(lazyLoading, progressiveLoading);
+		Playlist temp = null;
+		if (folders.size() == 1) {
+			temp = new Playlist(loading, PathStore.root(folders.get(0)));
+		} else {
+			temp = new Playlist(loading, folders);
+		}
 		if (temp.isValid()) {
 			temp.setWeight(temp.getCount());
-			for (Playlist pl : toBalance) {
+			for (Playlist pl : loading.toBalance) {
 				pl.setWeight(pl.getCumulWeight());
 			}
 			temp.updateWeights();
 		}
-		toBalance.clear();
-		toBalance = null;
+		loading.toBalance.clear();
+		loading.found = new ArrayList<MusicFile>();
 		return temp;
 	}
 
@@ -116,22 +304,70 @@ public abstract class AudioSource {
 	 * The string representing the file or folder of this audio source.
 	 */
 	public final String getName() {
-		return name;
+		return PathStore.name(path);
+	}
+
+	/**
+	 * All the valid music files in this audio source.
+	 */
+	public List<MusicFile> getFiles() {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		addFiles(files);
+		return files;
 	}
 
 	/**
-	 * The file object representing the source for this object.=
+	 * The file object representing the source for this object. It is built
+	 * each time it is needed.
 	 */
 	protected final File getFile() {
-		return file;
+		return PathStore.file(path);
+	}
+
+	/**
+	 * The folder this audio source is in, or null for the primary source.
+	 */
+	protected final Playlist getParent() {
+		return parent;
+	}
+
+	/**
+	 * Used by a folder to claim the audio sources found in it.
+	 */
+	protected final void setParent(Playlist parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * Tell the folders above this audio source that its count or weight
+	 * changed.
+	 * 
+	 * @param count
+	 *            The number of valid songs before the change.
+	 * @param weight
+	 *            The total weight before the change.
+	 */
+	protected final void notifyParent(int count, double weight) {
+		if (parent != null && (getCount() != count || getWeight() != weight)) {
+			parent.changed(getCount() - count, getWeight() - weight);
+		}
+	}
+
+	/**
+	 * The node of the source for this object in the {@link PathStore}.
+	 */
+	protected final int getPath() {
+		return path;
 	}
 
 	/**
 	 * The constructor used by inheriting objects.
+	 * 
+	 * @param path
+	 *            The node of the file or folder in the {@link PathStore}.
 	 */
-	protected AudioSource(File source) {
-		file = source.getAbsoluteFile();
-		name = file.getName();
+	protected AudioSource(int path) {
+		this.path = path;
 	}
 
 	/**
@@ -153,21 +389,38 @@ public abstract class AudioSource {
 	 * Loads a particular file into an audio source object. It is given the
 	 * specified initial weight.
 	 * 
+	 * @param loading
+	 *            How the folders of the primary source are loaded.
 	 * @param source
-	 *            The file or folder source.
+	 *            The node of the file or folder source.
+	 * @param isDirectory
+	 *            True iff the source is a folder.
 	 * @param weight
 	 *            The initial weight of the audio source.
+	 * @param count
+	 *            The number of songs last found in a folder, or -1 if unknown.
 	 * @return An audio source object.
 	 */
-	protected static AudioSource getSource(File source, double weight) {
-		if (source.isDirectory()) {
-			Playlist playlist = new Playlist(source);
+	protected static AudioSource getSource(Loading loading, int source, boolean isDirectory, double weight,
+			int count) {
+		if (isDirectory) {
+			Playlist playlist = null;
+			if ((loading.lazy && count >= 0) || loading.progressive) {
+				playlist = new Playlist(loading, source, count, weight);
+			} else {
+				playlist = new Playlist(loading, source);
+			}
 			playlist.setCumulWeight(playlist.getCount() * weight);
-			toBalance.add(playlist);
+			loading.toBalance.add(playlist);
+			loading.index.add(playlist);
 			return playlist;
 		} else {
 			MusicFile musicFile = new MusicFile(source);
 			musicFile.setWeight(weight);
+			loading.index.add(musicFile);
+			if (loading.found != null) {
+				loading.found.add(musicFile);
+			}
 			return musicFile;
 		}
 	}
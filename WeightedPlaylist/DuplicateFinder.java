@@ -0,0 +1,491 @@
+package WeightedPlaylist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Logging.Logger;
+
+/**
+ * Finds songs whose files have the same contents, so that copies in different
+ * folders act as one song. Files are compared by size, then by a hash of their
+ * first and last blocks, and only then by a hash of their whole contents.
+ * Hashes are cached in the user's home directory by path, size and
+ * modification time, so rescans only read new or changed files. The cache
+ * holds the files of every library opened, so switching libraries doesn't
+ * read them all again. Searches run one at a time, each starting from the
+ * cache the one before saved.
+ */
+public final class DuplicateFinder {
+	/**
+	 * The number of bytes hashed at each end of a file for the partial hash.
+	 */
+	private static final int blockSize = 64 * 1024;
+
+	/**
+	 * The most bytes mapped into memory at once for the full hash.
+	 */
+	private static final long windowSize = 64L * 1024L * 1024L;
+
+	/**
+	 * Identifies the cache file's format.
+	 */
+	private static final int cacheVersion = 0x61776831;
+
+	/**
+	 * Guards {@link #generation} and {@link #worker}.
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Counts the searches started for a playlist. Searches queued for a
+	 * playlist are skipped once another playlist is searched.
+	 */
+	private static int generation = 0;
+
+	/**
+	 * Runs the searches one at a time, so that each reads the cache the one
+	 * before saved.
+	 */
+	private static ExecutorService worker = null;
+
+	/**
+	 * What is known about a file.
+	 */
+	private static final class Entry {
+		/**
+		 * The song, or null for an entry read from the cache.
+		 */
+		private final MusicFile musicFile;
+
+		/**
+		 * The size of the song's file.
+		 */
+		private long size = 0;
+
+		/**
+		 * The time the song's file was last modified.
+		 */
+		private long modified = 0;
+
+		/**
+		 * The hash of the first and last blocks, or null until it is found.
+		 */
+		private byte[] partial = null;
+
+		/**
+		 * The hash of the whole file, or null until it is found.
+		 */
+		private byte[] full = null;
+
+		/**
+		 * Creates an entry for a song.
+		 */
+		private Entry(MusicFile musicFile) {
+			this.musicFile = musicFile;
+		}
+	}
+
+	/**
+	 * Start looking for copies among the songs of a playlist. Any search
+	 * already running is stopped.
+	 *
+	 * @param playlist
+	 *            The playlist to search.
+	 * @param apply
+	 *            Runs the task that links the copies found, on the thread that
+	 *            selects songs.
+	 */
+	public static void find(Playlist playlist, Executor apply) {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		playlist.addFiles(files);
+		synchronized (lock) {
+			int search = ++generation;
+			worker().execute(() -> link(search(files, null, search), apply));
+		}
+	}
+
+	/**
+	 * Also look for copies of songs found since the search started, such as
+	 * those of folders loaded later, once it is done. They are compared with
+	 * the songs of the playlist which were searched before.
+	 *
+	 * @param playlist
+	 *            The playlist the songs are in.
+	 * @param found
+	 *            The songs to look for copies of.
+	 * @param apply
+	 *            Runs the task that links the copies found, on the thread that
+	 *            selects songs.
+	 */
+	public static void add(Playlist playlist, List<MusicFile> found, Executor apply) {
+		if (found.isEmpty()) {
+			return;
+		}
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		playlist.addFiles(files);
+		synchronized (lock) {
+			int search = generation;
+			worker().execute(() -> link(search(found, files, search), apply));
+		}
+	}
+
+	/**
+	 * The thread searching for copies, started the first time it is needed.
+	 */
+	private static ExecutorService worker() {
+		if (worker == null) {
+			worker = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Duplicates");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+		}
+		return worker;
+	}
+
+	/**
+	 * Link the copies found, if there are any.
+	 */
+	private static void link(List<List<MusicFile>> copies, Executor apply) {
+		if (!copies.isEmpty()) {
+			apply.execute(() -> {
+				for (List<MusicFile> group : copies) {
+					MusicFile.share(group);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Find groups of files with the same contents, unless another search has
+	 * started since.
+	 *
+	 * @param files
+	 *            The files to compare.
+	 * @param others
+	 *            Files searched before, compared only with those of the same
+	 *            size as one of the files by the size cached for them. Null if
+	 *            there are none.
+	 * @param search
+	 *            The search this is part of.
+	 * @return The groups of two or more copies.
+	 */
+	private static List<List<MusicFile>> search(List<MusicFile> files, List<MusicFile> others, int search) {
+		synchronized (lock) {
+			if (search != generation) {
+				return new ArrayList<List<MusicFile>>();
+			}
+		}
+		File cacheFile = new File(System.getProperty("user.home")).getAbsoluteFile().toPath()
+				.resolve("awed.hashes").toFile();
+		Map<String, Entry> cached = load(cacheFile);
+		if (others != null) {
+			HashSet<Long> sizes = new HashSet<Long>();
+			HashSet<MusicFile> compared = new HashSet<MusicFile>(files);
+			for (MusicFile mf : files) {
+				sizes.add(mf.getFile().length());
+			}
+			files = new ArrayList<MusicFile>(files);
+			for (MusicFile mf : others) {
+				Entry old = cached.get(mf.getFile().getPath());
+				if (old != null && sizes.contains(old.size) && compared.add(mf)) {
+					files.add(mf);
+				}
+			}
+		}
+
+		// files of different sizes can't be copies
+		HashMap<Long, List<Entry>> bySize = new HashMap<Long, List<Entry>>();
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		for (MusicFile mf : files) {
+			Entry entry = new Entry(mf);
+			File file = mf.getFile();
+			entry.size = file.length();
+			entry.modified = file.lastModified();
+			Entry old = cached.get(file.getPath());
+			if (old != null && old.size == entry.size && old.modified == entry.modified) {
+				entry.partial = old.partial;
+				entry.full = old.full;
+			}
+			entries.add(entry);
+			bySize.computeIfAbsent(entry.size, size -> new ArrayList<Entry>()).add(entry);
+		}
+
+		ExecutorService pool = pool();
+		List<List<MusicFile>> copies = new ArrayList<List<MusicFile>>();
+		try {
+			List<List<Entry>> candidates = collisions(bySize.values());
+			hash(pool, candidates, false);
+			candidates = collisions(group(candidates, false));
+			hash(pool, candidates, true);
+			for (List<Entry> group : collisions(group(candidates, true))) {
+				List<MusicFile> musicFiles = new ArrayList<MusicFile>();
+				for (Entry entry : group) {
+					musicFiles.add(entry.musicFile);
+				}
+				copies.add(musicFiles);
+			}
+		} catch (InterruptedException ex) {
+			return copies;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// files of other libraries are kept unless they were deleted
+		cached.keySet().removeIf(DuplicateFinder::isDeleted);
+		for (Entry entry : entries) {
+			cached.put(entry.musicFile.getFile().getPath(), entry);
+		}
+		save(cacheFile, cached);
+		return copies;
+	}
+
+	/**
+	 * The groups with more than one file.
+	 */
+	private static List<List<Entry>> collisions(Iterable<List<Entry>> groups) {
+		List<List<Entry>> result = new ArrayList<List<Entry>>();
+		for (List<Entry> group : groups) {
+			if (group.size() > 1) {
+				result.add(group);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Split groups of files by hash. Files which could not be hashed are left
+	 * out.
+	 *
+	 * @param groups
+	 *            Groups of files of the same size.
+	 * @param full
+	 *            True to split by the full hash, false for the partial hash.
+	 */
+	private static Iterable<List<Entry>> group(List<List<Entry>> groups, boolean full) {
+		HashMap<String, List<Entry>> byHash = new HashMap<String, List<Entry>>();
+		for (List<Entry> group : groups) {
+			for (Entry entry : group) {
+				byte[] hash = full ? entry.full : entry.partial;
+				if (hash != null) {
+					String key = entry.size + " " + Base64.getEncoder().encodeToString(hash);
+					byHash.computeIfAbsent(key, k -> new ArrayList<Entry>()).add(entry);
+				}
+			}
+		}
+		return byHash.values();
+	}
+
+	/**
+	 * Hash every file in the groups which has no hash yet, in parallel.
+	 */
+	private static void hash(ExecutorService pool, List<List<Entry>> groups, boolean full)
+			throws InterruptedException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (List<Entry> group : groups) {
+			for (Entry entry : group) {
+				if ((full ? entry.full : entry.partial) == null) {
+					tasks.add(() -> {
+						try {
+							if (!full) {
+								entry.partial = hash(entry.musicFile.getFile(), entry.size, false);
+							} else if (entry.size <= 2L * blockSize) {
+								// the partial hash already covered every byte
+								entry.full = entry.partial;
+							} else {
+								entry.full = hash(entry.musicFile.getFile(), entry.size, true);
+							}
+						} catch (Exception ex) {
+							Logger.log(ex.toString());
+						}
+						return null;
+					});
+				}
+			}
+		}
+		pool.invokeAll(tasks);
+	}
+
+	/**
+	 * Hash a file's contents through memory mapped reads.
+	 *
+	 * @param file
+	 *            The file to hash.
+	 * @param size
+	 *            The size of the file.
+	 * @param full
+	 *            True to hash the whole file, false to hash only the first
+	 *            and last blocks.
+	 * @return The SHA-256 of the bytes read.
+	 */
+	private static byte[] hash(File file, long size, boolean full) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (full) {
+				for (long position = 0; position < size; position += windowSize) {
+					MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Long.min(windowSize, size - position));
+					digest.update(window);
+				}
+			} else {
+				long head = Long.min(blockSize, size);
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, head));
+				long tail = Long.max(head, size - blockSize);
+				if (tail < size) {
+					digest.update(channel.map(FileChannel.MapMode.READ_ONLY, tail, size - tail));
+				}
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Create the threads that hash files.
+	 */
+	private static ExecutorService pool() {
+		AtomicInteger counter = new AtomicInteger();
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "Duplicates " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Read the cached hashes.
+	 *
+	 * @return The cached entries by absolute path.
+	 */
+	private static Map<String, Entry> load(File cacheFile) {
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		if (!cacheFile.exists()) {
+			return entries;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != cacheVersion) {
+				return entries;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				Entry entry = new Entry(null);
+				entry.size = in.readLong();
+				entry.modified = in.readLong();
+				entry.partial = readHash(in);
+				entry.full = readHash(in);
+				entries.put(path, entry);
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+		return entries;
+	}
+
+	/**
+	 * True iff a cached file is gone from a folder which still exists. Files
+	 * on drives which aren't mounted are kept.
+	 */
+	private static boolean isDeleted(String path) {
+		File file = new File(path);
+		File folder = file.getParentFile();
+		return folder != null && folder.isDirectory() && !file.exists();
+	}
+
+	/**
+	 * Replace the cache with the given hashes.
+	 *
+	 * @param entries
+	 *            The hashes by absolute path.
+	 */
+	private static void save(File cacheFile, Map<String, Entry> entries) {
+		// named apart from any other copy of the player saving at the same time
+		File temporary = null;
+		try {
+			temporary = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp")
+					.toFile();
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			return;
+		}
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(cacheVersion);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				Entry value = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(value.size);
+				out.writeLong(value.modified);
+				writeHash(out, value.partial);
+				writeHash(out, value.full);
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			temporary.delete();
+			return;
+		}
+		try {
+			Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Read a hash which may be missing.
+	 */
+	private static byte[] readHash(DataInputStream in) throws IOException {
+		int length = in.readUnsignedByte();
+		if (length == 0) {
+			return null;
+		}
+		byte[] hash = new byte[length];
+		in.readFully(hash);
+		return hash;
+	}
+
+	/**
+	 * Write a hash which may be missing.
+	 */
+	private static void writeHash(DataOutputStream out, byte[] hash) throws IOException {
+		if (hash == null) {
+			out.writeByte(0);
+		} else {
+			out.writeByte(hash.length);
+			out.write(hash);
+		}
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private DuplicateFinder() {
+	}
+}
@@ -0,0 +1,298 @@
+package WeightedPlaylist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The songs of a playlist whose lengths are known, grouped by length, so that
+ * songs can be picked by their weights from only those of some lengths. The
+ * index is a snapshot of the weights when it was made, and opens no songs.
+ * Copies of a song share its weight, as they do when songs are selected.
+ * Filling a block of time takes one pass over the songs to make the index,
+ * then for each song picked one pass over the groups and over the songs of
+ * the one group the remaining time falls in, and one pass over the songs to
+ * leave out the song and its copies.
+ */
+public final class DurationIndex {
+	/**
+	 * The seconds of song lengths in each group.
+	 */
+	private static final double bucketWidth = 15.0;
+
+	/**
+	 * The number of groups. The last one holds every song of 20 minutes or
+	 * more.
+	 */
+	private static final int bucketCount = 81;
+
+	/**
+	 * The songs of each group.
+	 */
+	private final List<List<MusicFile>> songs = new ArrayList<List<MusicFile>>();
+
+	/**
+	 * The weight of each song, in the same order as {@link #songs}.
+	 */
+	private final double[][] weights = new double[bucketCount][];
+
+	/**
+	 * The length in seconds of each song, in the same order as
+	 * {@link #songs}.
+	 */
+	private final double[][] durations = new double[bucketCount][];
+
+	/**
+	 * The total weight of each group.
+	 */
+	private final double[] totals = new double[bucketCount];
+
+	/**
+	 * The number of songs which could be played but whose length isn't known
+	 * yet.
+	 */
+	private int unknown = 0;
+
+	/**
+	 * Index the loaded songs of a playlist which could be picked.
+	 *
+	 * @param playlist
+	 *            The playlist whose songs are indexed.
+	 * @return The index.
+	 */
+	public static DurationIndex of(Playlist playlist) {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		ArrayList<Double> fileWeights = new ArrayList<Double>();
+		synchronized (playlist) {
+			playlist.addFiles(files);
+			for (MusicFile mf : files) {
+				fileWeights.add(mf.getSharedWeight());
+			}
+		}
+		return new DurationIndex(files, fileWeights);
+	}
+
+	/**
+	 * Index songs by their lengths, leaving out those without weight.
+	 */
+	private DurationIndex(List<MusicFile> files, List<Double> fileWeights) {
+		double[] lengths = new double[files.size()];
+		int[] sizes = new int[bucketCount];
+		for (int i = 0; i < files.size(); i++) {
+			lengths[i] = DurationProber.duration(files.get(i).getFile());
+			double weight = fileWeights.get(i);
+			if (Double.isNaN(weight) || weight <= 0.0) {
+				continue;
+			}
+			if (Double.isNaN(lengths[i])) {
+				unknown++;
+			} else {
+				sizes[bucket(lengths[i])]++;
+			}
+		}
+		for (int b = 0; b < bucketCount; b++) {
+			songs.add(new ArrayList<MusicFile>(sizes[b]));
+			weights[b] = new double[sizes[b]];
+			durations[b] = new double[sizes[b]];
+		}
+		for (int i = 0; i < files.size(); i++) {
+			double weight = fileWeights.get(i);
+			if (Double.isNaN(weight) || weight <= 0.0 || Double.isNaN(lengths[i])) {
+				continue;
+			}
+			int b = bucket(lengths[i]);
+			int slot = songs.get(b).size();
+			songs.get(b).add(files.get(i));
+			weights[b][slot] = weight;
+			durations[b][slot] = lengths[i];
+			totals[b] += weight;
+		}
+	}
+
+	/**
+	 * The number of songs indexed.
+	 */
+	public int size() {
+		int size = 0;
+		for (List<MusicFile> bucket : songs) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	/**
+	 * The number of songs left out because their length isn't known yet.
+	 */
+	public int getUnknown() {
+		return unknown;
+	}
+
+	/**
+	 * Pick a song by the weights of the songs of some lengths.
+	 *
+	 * @param min
+	 *            The shortest length allowed, in seconds.
+	 * @param max
+	 *            The longest length allowed, in seconds.
+	 * @return A song, or null if there are none of those lengths.
+	 */
+	public MusicFile pick(double min, double max) {
+		int[] found = find(min, max);
+		return found == null ? null : songs.get(found[0]).get(found[1]);
+	}
+
+	/**
+	 * Leave a song and its copies out of the index, such as the one playing.
+	 *
+	 * @param mf
+	 *            The song to leave out.
+	 * @return True iff the song or a copy of it was indexed.
+	 */
+	public boolean remove(MusicFile mf) {
+		boolean removed = false;
+		for (int b = 0; b < bucketCount; b++) {
+			List<MusicFile> bucket = songs.get(b);
+			// the last song takes the place of the one removed
+			for (int i = bucket.size() - 1; i >= 0; i--) {
+				if (bucket.get(i).isCopyOf(mf)) {
+					remove(b, i);
+					removed = true;
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Pick songs by their weights to play one after another within some time,
+	 * each no longer than the time left, until none is short enough. Each song
+	 * is picked at most once, through only one of its copies, and the songs
+	 * picked are left out of the index with their copies.
+	 *
+	 * @param seconds
+	 *            The time to fill.
+	 * @param longest
+	 *            The longest songs which may be picked, in seconds.
+	 * @return The songs in the order they were picked.
+	 */
+	public List<MusicFile> fill(double seconds, double longest) {
+		ArrayList<MusicFile> block = new ArrayList<MusicFile>();
+		double left = seconds;
+		int[] found = null;
+		while ((found = find(0.0, Double.min(left, longest))) != null) {
+			MusicFile mf = songs.get(found[0]).get(found[1]);
+			block.add(mf);
+			left -= durations[found[0]][found[1]];
+			remove(mf);
+		}
+		return block;
+	}
+
+	/**
+	 * Find a song by the weights of the songs of some lengths.
+	 *
+	 * @return The song's group and place in it, or null if there are none.
+	 */
+	private int[] find(double min, double max) {
+		if (Double.isNaN(min) || Double.isNaN(max) || max < min) {
+			return null;
+		}
+		int low = bucket(min);
+		int high = bucket(max);
+		// only some songs of the groups at either end may fit
+		double lowTotal = partial(low, min, max);
+		double highTotal = high == low ? 0.0 : partial(high, min, max);
+		double total = lowTotal + highTotal;
+		for (int b = low + 1; b < high; b++) {
+			total += totals[b];
+		}
+		if (total <= 0.0) {
+			return null;
+		}
+
+		double residual = AudioSource.random() * total;
+		int last = -1;
+		for (int b = low; b <= high; b++) {
+			boolean whole = b != low && b != high;
+			double bucketTotal = whole ? totals[b] : (b == low ? lowTotal : highTotal);
+			if (bucketTotal <= 0.0) {
+				continue;
+			}
+			last = b;
+			if (residual >= bucketTotal) {
+				residual -= bucketTotal;
+				continue;
+			}
+			int slot = choose(b, whole ? 0.0 : min, whole ? Double.POSITIVE_INFINITY : max, residual);
+			if (slot >= 0) {
+				return new int[] { b, slot };
+			}
+		}
+		// rounding left the residual past the last song
+		int slot = choose(last, min, max, Double.POSITIVE_INFINITY);
+		return slot >= 0 ? new int[] { last, slot } : null;
+	}
+
+	/**
+	 * The total weight of the songs of a group within some lengths.
+	 */
+	private double partial(int b, double min, double max) {
+		double total = 0.0;
+		for (int i = 0; i < songs.get(b).size(); i++) {
+			if (durations[b][i] >= min && durations[b][i] <= max) {
+				total += weights[b][i];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Choose the song of a group within some lengths at which a residual
+	 * weight runs out, or the last one within them.
+	 *
+	 * @return The song's place in the group, or -1 if none is within the
+	 *         lengths.
+	 */
+	private int choose(int b, double min, double max, double residual) {
+		int chosen = -1;
+		for (int i = 0; i < songs.get(b).size(); i++) {
+			if (durations[b][i] < min || durations[b][i] > max) {
+				continue;
+			}
+			chosen = i;
+			residual -= weights[b][i];
+			if (residual < 0.0) {
+				break;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Leave a song out of its group by moving the last song of the group into
+	 * its place.
+	 */
+	private void remove(int b, int slot) {
+		List<MusicFile> bucket = songs.get(b);
+		int last = bucket.size() - 1;
+		bucket.set(slot, bucket.get(last));
+		bucket.remove(last);
+		weights[b][slot] = weights[b][last];
+		durations[b][slot] = durations[b][last];
+		// summed again so that rounding doesn't build up
+		double total = 0.0;
+		for (int i = 0; i < last; i++) {
+			total += weights[b][i];
+		}
+		totals[b] = total;
+	}
+
+	/**
+	 * The group of songs of a length.
+	 */
+	private static int bucket(double seconds) {
+		if (seconds <= 0.0) {
+			return 0;
+		}
+		return (int) Math.min(bucketCount - 1, Math.floor(seconds / bucketWidth));
+	}
+}
@@ -0,0 +1,302 @@
+package WeightedPlaylist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+
+import Logging.Logger;
+
+/**
+ * Finds the length of every song in the background, so that songs can be
+ * chosen by length without opening them. The length is estimated from the
+ * file's header when its tags are read; only songs whose header doesn't tell
+ * are opened in a media player, one at a time. A song's exact length replaces
+ * the estimate once it is opened to be played. Lengths are cached in the
+ * user's home directory by path, size and modification time.
+ */
+public final class DurationProber {
+	/**
+	 * Identifies the cache file's format.
+	 */
+	private static final int cacheVersion = 0x61776431;
+
+	/**
+	 * The longest a media player is given to open a song, in milliseconds.
+	 */
+	private static final long probeTimeout = 5000;
+
+	/**
+	 * How many seconds a song's exact length must differ from the one known
+	 * to be stored again.
+	 */
+	private static final double tolerance = 0.5;
+
+	/**
+	 * The length in seconds of each song found so far by absolute path.
+	 */
+	private static final Map<String, Double> durations = new ConcurrentHashMap<String, Double>();
+
+	/**
+	 * Guards {@link #generation}, {@link #worker} and {@link #recorder}.
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Counts the probes started. A probe stops once another one starts.
+	 */
+	private static int generation = 0;
+
+	/**
+	 * Probes songs and stores their lengths, one at a time.
+	 */
+	private static ExecutorService worker = null;
+
+	/**
+	 * Stores the exact lengths of songs as they are opened to be played, so
+	 * that they needn't wait for a probe to finish.
+	 */
+	private static ExecutorService recorder = null;
+
+	/**
+	 * The lengths cached in the user's home directory.
+	 */
+	private static final RecordCache<Entry> cache = new RecordCache<Entry>("awed.durations", cacheVersion,
+			new RecordCache.Format<Entry>() {
+				@Override
+				public Entry read(DataInputStream in) throws IOException {
+					Entry entry = new Entry();
+					entry.size = in.readLong();
+					entry.modified = in.readLong();
+					entry.seconds = in.readFloat();
+					return entry;
+				}
+
+				@Override
+				public void write(DataOutputStream out, Entry entry) throws IOException {
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeFloat(entry.seconds);
+				}
+			});
+
+	/**
+	 * A cached length of a song.
+	 */
+	private static final class Entry {
+		/**
+		 * The size of the song's file when its length was found.
+		 */
+		private long size = 0;
+
+		/**
+		 * The time the song's file was last modified when its length was
+		 * found.
+		 */
+		private long modified = 0;
+
+		/**
+		 * The song's length in seconds, or NaN if it can't be found.
+		 */
+		private float seconds = Float.NaN;
+	}
+
+	/**
+	 * Start finding the length of every song in a playlist. Any probe already
+	 * running is stopped.
+	 *
+	 * @param playlist
+	 *            The playlist whose songs are probed.
+	 */
+	public static void probe(Playlist playlist) {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		playlist.addFiles(files);
+		synchronized (lock) {
+			int probe = ++generation;
+			worker().execute(() -> probe(files, probe));
+		}
+	}
+
+	/**
+	 * Also find the length of songs found since the probe started, such as
+	 * those of folders loaded later, once it is done.
+	 *
+	 * @param files
+	 *            The songs to probe.
+	 */
+	public static void add(List<MusicFile> files) {
+		ArrayList<MusicFile> unknown = new ArrayList<MusicFile>();
+		for (MusicFile mf : files) {
+			if (!durations.containsKey(mf.getFile().getPath())) {
+				unknown.add(mf);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return;
+		}
+		synchronized (lock) {
+			int probe = generation;
+			worker().execute(() -> probe(unknown, probe));
+		}
+	}
+
+	/**
+	 * The length of a song.
+	 *
+	 * @param file
+	 *            The song's file.
+	 * @return The length in seconds, or NaN if it isn't known yet.
+	 */
+	public static double duration(File file) {
+		return durations.getOrDefault(file.getPath(), Double.NaN);
+	}
+
+	/**
+	 * Remember the exact length of a song, as reported once it was opened.
+	 *
+	 * @param file
+	 *            The song's file.
+	 * @param seconds
+	 *            The song's length.
+	 */
+	protected static void record(File file, double seconds) {
+		if (Double.isNaN(seconds) || Double.isInfinite(seconds) || seconds <= 0.0) {
+			return;
+		}
+		Double known = durations.put(file.getPath(), seconds);
+		if (known != null && Math.abs(known - seconds) < tolerance) {
+			return;
+		}
+		synchronized (lock) {
+			// kept off the thread playing the song, and not queued behind a probe
+			if (recorder == null) {
+				recorder = executor("Duration records");
+			}
+			recorder.execute(() -> {
+				Entry entry = new Entry();
+				entry.size = file.length();
+				entry.modified = file.lastModified();
+				entry.seconds = (float) seconds;
+				cache.store(file.getPath(), entry);
+			});
+		}
+	}
+
+	/**
+	 * The thread probing songs, started the first time it is needed.
+	 */
+	private static ExecutorService worker() {
+		if (worker == null) {
+			worker = executor("Durations");
+		}
+		return worker;
+	}
+
+	/**
+	 * Start a thread which runs tasks one at a time in the background.
+	 *
+	 * @param name
+	 *            The thread's name.
+	 */
+	private static ExecutorService executor(String name) {
+		return Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Find the length of each song which isn't cached, until another probe
+	 * starts.
+	 */
+	private static void probe(List<MusicFile> files, int probe) {
+		Map<String, Entry> cached = cache.load();
+		for (MusicFile mf : files) {
+			synchronized (lock) {
+				if (probe != generation) {
+					return;
+				}
+			}
+			File file = mf.getFile();
+			if (durations.containsKey(file.getPath())) {
+				continue;
+			}
+			Entry entry = cached.get(file.getPath());
+			if (entry == null || entry.size != file.length() || entry.modified != file.lastModified()) {
+				entry = new Entry();
+				entry.size = file.length();
+				entry.modified = file.lastModified();
+				double seconds = TagLibrary.get(file).getDuration();
+				if (Double.isNaN(seconds)) {
+					try {
+						seconds = open(file);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				entry.seconds = (float) seconds;
+				// timed out; tried again next time
+				if (!Double.isInfinite(seconds)) {
+					cache.store(file.getPath(), entry);
+				}
+			}
+			if (!Float.isNaN(entry.seconds) && !Float.isInfinite(entry.seconds) && entry.seconds > 0.0f) {
+				durations.putIfAbsent(file.getPath(), (double) entry.seconds);
+			}
+		}
+	}
+
+	/**
+	 * Open a song in a media player to find its length.
+	 *
+	 * @return The length in seconds, NaN if the song can't be played, or
+	 *         infinity if the media player didn't answer in time.
+	 */
+	private static double open(File file) throws InterruptedException {
+		MediaPlayer mp = null;
+		try {
+			Media media = new Media(file.toURI().toASCIIString());
+			mp = new MediaPlayer(media);
+			CountDownLatch ready = new CountDownLatch(1);
+			mp.setOnReady(ready::countDown);
+			mp.setOnError(ready::countDown);
+			if (mp.getStatus() != MediaPlayer.Status.UNKNOWN || mp.getError() != null) {
+				ready.countDown();
+			}
+			if (!ready.await(probeTimeout, TimeUnit.MILLISECONDS)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			double seconds = media.getDuration().toSeconds();
+			return mp.getError() == null && seconds > 0.0 ? seconds : Double.NaN;
+		} catch (InterruptedException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			// stored as unknown so that it isn't opened again
+			Logger.log(ex.toString());
+			return Double.NaN;
+		} finally {
+			if (mp != null) {
+				mp.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private DurationProber() {
+	}
+}
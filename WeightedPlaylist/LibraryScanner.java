@@ -0,0 +1,122 @@
+package WeightedPlaylist;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the folders of a progressively loaded primary source in the
+ * background, one folder at a time while holding the playlist's lock, so that
+ * songs can be picked from the folders already loaded meanwhile. Folders are
+ * loaded deepest first in a random order, so that the first songs are found
+ * soon and aren't always from the same folders. Each folder of a library is
+ * scanned by its own thread, which reads from the disk without holding the
+ * lock, so that a slow drive doesn't hold up the others.
+ */
+public final class LibraryScanner {
+	/**
+	 * The playlist being scanned. Also the lock guarding it.
+	 */
+	private final Playlist playlist;
+
+	/**
+	 * True once the scan has been stopped. Guarded by the playlist.
+	 */
+	private boolean stopped = false;
+
+	/**
+	 * True once the playlist has had enough songs to play. Guarded by the
+	 * playlist.
+	 */
+	private boolean isReady = false;
+
+	/**
+	 * The number of folders of the library still being scanned. Guarded by
+	 * the playlist.
+	 */
+	private int scanning = 0;
+
+	/**
+	 * Start scanning a playlist opened with progressive loading.
+	 *
+	 * @param playlist
+	 *            The primary source to scan.
+	 * @param apply
+	 *            Runs the tasks below on the thread that selects songs.
+	 * @param ready
+	 *            Run once, as soon as the playlist has enough songs to play.
+	 * @param done
+	 *            Run once every folder has been loaded.
+	 */
+	public LibraryScanner(Playlist playlist, Executor apply, Runnable ready, Runnable done) {
+		this.playlist = playlist;
+		List<Playlist> roots = null;
+		synchronized (playlist) {
+			roots = playlist.getRoots();
+			scanning = roots.size();
+		}
+		for (int i = 0; i < roots.size(); i++) {
+			Playlist root = roots.get(i);
+			Thread thread = new Thread(() -> scan(root, apply, ready, done), "Scan " + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop scanning. Once this returns no more folders are loaded by the scan.
+	 */
+	public void stop() {
+		synchronized (playlist) {
+			stopped = true;
+		}
+	}
+
+	/**
+	 * Load every folder within one folder of the library. The last scan to
+	 * end finishes up.
+	 */
+	private void scan(Playlist root, Executor apply, Runnable ready, Runnable done) {
+		ArrayDeque<Playlist> folders = new ArrayDeque<Playlist>();
+		folders.add(root);
+		while (!folders.isEmpty()) {
+			Playlist folder = folders.pop();
+			Playlist.Listing listing = folder.read();
+			synchronized (playlist) {
+				if (stopped) {
+					return;
+				}
+				List<Playlist> inner = folder.scanFolder(listing);
+				Collections.shuffle(inner);
+				for (Playlist child : inner) {
+					folders.push(child);
+				}
+				if (!isReady && playlist.isValid()) {
+					isReady = true;
+					// a library never counted before could not be weighed when opened
+					playlist.updateWeights();
+					apply.execute(ready);
+				}
+			}
+		}
+
+		synchronized (playlist) {
+			scanning--;
+			if (stopped || scanning > 0) {
+				return;
+			}
+			// folders unloaded while the scan went on
+			playlist.expandAll();
+			playlist.endProgressive();
+			if (playlist.isValid()) {
+				// weigh every folder by its actual count
+				playlist.updateWeights();
+				if (!isReady) {
+					apply.execute(ready);
+				}
+			}
+		}
+		apply.execute(done);
+	}
+}
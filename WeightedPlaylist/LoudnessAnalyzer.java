@@ -0,0 +1,373 @@
+package WeightedPlaylist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import Logging.Logger;
+
+/**
+ * Measures the loudness of songs in the background so that they can be played
+ * at similar volumes. Only formats readable through javax.sound.sampled are
+ * measured. Results are cached in the user's home directory by path, size and
+ * modification time, so each song is only decoded once.
+ */
+public final class LoudnessAnalyzer {
+	/**
+	 * The loudness in LUFS that songs are turned down to. Louder songs are
+	 * turned down; quieter songs can't be turned up.
+	 */
+	private static final double referenceLoudness = -16.0;
+
+	/**
+	 * The most bytes per second read by all analysis threads together, so that
+	 * playback never waits on the disk.
+	 */
+	private static final long maxBytesPerSecond = 8L * 1024L * 1024L;
+
+	/**
+	 * How far the analysis may get ahead of the rate limit after being idle.
+	 */
+	private static final long burstNanos = 250000000L;
+
+	/**
+	 * The number of bytes decoded at a time.
+	 */
+	private static final int chunkSize = 64 * 1024;
+
+	/**
+	 * How long an analysis thread waits for another song before it stops, in
+	 * milliseconds.
+	 */
+	private static final long idleTimeout = 1000;
+
+	/**
+	 * Identifies the cache file's format.
+	 */
+	private static final int cacheVersion = 0x61776c31;
+
+	/**
+	 * The extensions of the files that can be measured.
+	 */
+	private static final String[] extensions = { ".wav", ".wave", ".aif", ".aiff", ".aifc", ".au", ".snd" };
+
+	/**
+	 * The volume of each measured song by absolute path.
+	 */
+	private static final Map<String, Double> gains = new ConcurrentHashMap<String, Double>();
+
+	/**
+	 * Guards {@link #throttleTime}.
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * The time at which the bytes read so far will have been within the rate
+	 * limit.
+	 */
+	private static long throttleTime = 0;
+
+	/**
+	 * Runs the current analysis. Its threads stop once every song has been
+	 * measured, and are started again for songs added later.
+	 */
+	private static ExecutorService workers = null;
+
+	/**
+	 * The measurements cached in the user's home directory.
+	 */
+	private static final RecordCache<Entry> cache = new RecordCache<Entry>("awed.loudness", cacheVersion,
+			new RecordCache.Format<Entry>() {
+				@Override
+				public Entry read(DataInputStream in) throws IOException {
+					Entry entry = new Entry();
+					entry.size = in.readLong();
+					entry.modified = in.readLong();
+					entry.loudness = in.readFloat();
+					entry.peak = in.readFloat();
+					return entry;
+				}
+
+				@Override
+				public void write(DataOutputStream out, Entry entry) throws IOException {
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeFloat(entry.loudness);
+					out.writeFloat(entry.peak);
+				}
+			});
+
+	/**
+	 * A measurement of a song.
+	 */
+	private static final class Entry {
+		/**
+		 * The size of the song's file when it was measured.
+		 */
+		private long size = 0;
+
+		/**
+		 * The time the song's file was last modified when it was measured.
+		 */
+		private long modified = 0;
+
+		/**
+		 * The integrated loudness in LUFS, or NaN if the song couldn't be
+		 * measured.
+		 */
+		private float loudness = Float.NaN;
+
+		/**
+		 * The highest sample, from 0.0 to 1.0, or NaN if the song couldn't be
+		 * measured.
+		 */
+		private float peak = Float.NaN;
+	}
+
+	/**
+	 * Start measuring every song in a playlist which has not been measured.
+	 * Any analysis already running is stopped.
+	 *
+	 * @param playlist
+	 *            The playlist whose songs are measured.
+	 */
+	public static synchronized void analyze(Playlist playlist) {
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		playlist.addFiles(files);
+		measureAll(files);
+	}
+
+	/**
+	 * Also measure songs found since the analysis started, such as those of
+	 * folders loaded later.
+	 *
+	 * @param files
+	 *            The songs to measure.
+	 */
+	public static synchronized void add(List<MusicFile> files) {
+		ArrayList<MusicFile> unmeasured = new ArrayList<MusicFile>();
+		for (MusicFile mf : files) {
+			File file = mf.getFile();
+			if (measurable(file) && !gains.containsKey(file.getPath())) {
+				unmeasured.add(mf);
+			}
+		}
+		if (!unmeasured.isEmpty()) {
+			measureAll(unmeasured);
+		}
+	}
+
+	/**
+	 * Measure the songs which aren't cached, on the threads of the current
+	 * analysis.
+	 */
+	private static void measureAll(List<MusicFile> files) {
+		if (workers == null) {
+			// leave a core for playback and the visualizer
+			int threads = Integer.max(1, Runtime.getRuntime().availableProcessors() - 1);
+			AtomicInteger counter = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, idleTimeout, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), runnable -> {
+						Thread thread = new Thread(runnable, "Loudness " + counter.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			workers = pool;
+		}
+		ExecutorService pool = workers;
+
+		// reading the cache and checking files is also kept off the caller
+		pool.execute(() -> {
+			Map<String, Entry> cached = cache.load();
+			for (MusicFile mf : files) {
+				File file = mf.getFile();
+				if (!measurable(file)) {
+					continue;
+				}
+				Entry entry = cached.get(file.getPath());
+				if (entry != null && entry.size == file.length() && entry.modified == file.lastModified()) {
+					publish(file, entry);
+				} else {
+					try {
+						pool.execute(() -> measure(file));
+					} catch (RejectedExecutionException ex) {
+						// a new analysis has started
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * The volume at which a song should be played.
+	 *
+	 * @param file
+	 *            The song's file.
+	 * @return A volume from 0.0 to 1.0; 1.0 if the song hasn't been measured.
+	 */
+	protected static double gain(File file) {
+		return gains.getOrDefault(file.getPath(), 1.0);
+	}
+
+	/**
+	 * True iff the file has an extension that javax.sound.sampled can read.
+	 */
+	private static boolean measurable(File file) {
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		for (String extension : extensions) {
+			if (name.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Make a measurement available to songs when they are acquired.
+	 */
+	private static void publish(File file, Entry entry) {
+		if (!Float.isNaN(entry.loudness) && !Float.isInfinite(entry.loudness)) {
+			gains.put(file.getPath(), Double.min(1.0, Math.pow(10.0, (referenceLoudness - entry.loudness) / 20.0)));
+		}
+	}
+
+	/**
+	 * Decode a song, measure it and store the result.
+	 */
+	private static void measure(File file) {
+		Entry entry = new Entry();
+		entry.size = file.length();
+		entry.modified = file.lastModified();
+		try (AudioInputStream stream = open(file)) {
+			AudioFormat format = stream.getFormat();
+			int channels = format.getChannels();
+			int sampleBytes = format.getSampleSizeInBits() / 8;
+			int frameBytes = format.getFrameSize();
+			boolean isFloat = format.getEncoding() == AudioFormat.Encoding.PCM_FLOAT;
+			boolean signed = format.getEncoding() != AudioFormat.Encoding.PCM_UNSIGNED;
+			boolean bigEndian = format.isBigEndian();
+
+			LoudnessMeter meter = new LoudnessMeter(format.getSampleRate(), channels);
+			byte[] data = new byte[(chunkSize / frameBytes) * frameBytes];
+			double[] samples = new double[(data.length / frameBytes) * channels];
+			int length = 0;
+			int read = 0;
+			while ((read = stream.read(data, length, data.length - length)) != -1) {
+				length += read;
+				int frames = length / frameBytes;
+				for (int i = 0; i < frames * channels; i++) {
+					samples[i] = sample(data, i * sampleBytes, sampleBytes, isFloat, signed, bigEndian);
+				}
+				meter.add(samples, frames);
+				// keep a partial frame for the next read
+				int used = frames * frameBytes;
+				System.arraycopy(data, used, data, 0, length - used);
+				length -= used;
+				throttle(read);
+			}
+			entry.loudness = (float) meter.integrated();
+			entry.peak = (float) meter.peak();
+		} catch (InterruptedException ex) {
+			// stopped; the song is measured next time
+			return;
+		} catch (Exception ex) {
+			// stored as unmeasurable so that it isn't decoded again
+			Logger.log(ex.toString());
+		}
+		cache.store(file.getPath(), entry);
+		publish(file, entry);
+	}
+
+	/**
+	 * Open a file as linear PCM.
+	 */
+	private static AudioInputStream open(File file) throws Exception {
+		AudioInputStream stream = AudioSystem.getAudioInputStream(file);
+		AudioFormat format = stream.getFormat();
+		AudioFormat.Encoding encoding = format.getEncoding();
+		boolean linear = encoding == AudioFormat.Encoding.PCM_SIGNED || encoding == AudioFormat.Encoding.PCM_UNSIGNED
+				|| (encoding == AudioFormat.Encoding.PCM_FLOAT && format.getSampleSizeInBits() == 32);
+		if (linear && format.getSampleSizeInBits() % 8 == 0) {
+			return stream;
+		}
+		// such as mu-law in AU files
+		AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+		return AudioSystem.getAudioInputStream(pcm, stream);
+	}
+
+	/**
+	 * Decode one sample.
+	 *
+	 * @return The sample from -1.0 to 1.0.
+	 */
+	private static double sample(byte[] data, int offset, int bytes, boolean isFloat, boolean signed,
+			boolean bigEndian) {
+		int value = 0;
+		for (int i = 0; i < bytes; i++) {
+			int b = data[offset + (bigEndian ? i : bytes - 1 - i)] & 0xff;
+			value = (value << 8) | b;
+		}
+		if (isFloat) {
+			return Float.intBitsToFloat(value);
+		}
+		int shift = 32 - bytes * 8;
+		if (signed) {
+			// sign extend
+			value = (value << shift) >> shift;
+		} else {
+			value -= 1 << (bytes * 8 - 1);
+		}
+		return value / (double) (1L << (bytes * 8 - 1));
+	}
+
+	/**
+	 * Wait until reading more bytes is within the rate limit.
+	 *
+	 * @param bytes
+	 *            The number of bytes just read.
+	 */
+	private static void throttle(long bytes) throws InterruptedException {
+		long wait = 0;
+		synchronized (lock) {
+			long now = System.nanoTime();
+			throttleTime = Long.max(throttleTime, now - burstNanos);
+			throttleTime += bytes * 1000000000L / maxBytesPerSecond;
+			wait = throttleTime - now;
+		}
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+		}
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private LoudnessAnalyzer() {
+	}
+}
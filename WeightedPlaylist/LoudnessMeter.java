@@ -0,0 +1,234 @@
+package WeightedPlaylist;
+
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness and peak of audio samples. Loudness follows
+ * ITU-R BS.1770: channels are K-weighted, averaged over overlapping 400 ms
+ * blocks, and quiet blocks are gated out.
+ */
+final class LoudnessMeter {
+	/**
+	 * Blocks quieter than this are silence and not measured.
+	 */
+	private static final double absoluteGate = -70.0;
+
+	/**
+	 * Blocks this much quieter than the average are not measured.
+	 */
+	private static final double relativeGate = -10.0;
+
+	/**
+	 * The number of steps in each 400 ms block; blocks overlap by 75%.
+	 */
+	private static final int stepsPerBlock = 4;
+
+	/**
+	 * The number of channels.
+	 */
+	private final int channels;
+
+	/**
+	 * The number of frames in each 100 ms step.
+	 */
+	private final int stepFrames;
+
+	/**
+	 * The weight of each channel in the total power.
+	 */
+	private final double[] channelWeights;
+
+	/**
+	 * The coefficients b0, b1, b2, a1 and a2 of the high shelf filter, which
+	 * models the head.
+	 */
+	private final double[] shelf;
+
+	/**
+	 * The coefficients b0, b1, b2, a1 and a2 of the high pass filter.
+	 */
+	private final double[] pass;
+
+	/**
+	 * The last two inputs and outputs of each filter for each channel.
+	 */
+	private final double[][] state;
+
+	/**
+	 * The weighted power of the current step for each channel.
+	 */
+	private final double[] stepPower;
+
+	/**
+	 * The number of frames in the current step.
+	 */
+	private int frames = 0;
+
+	/**
+	 * The summed power of each finished step.
+	 */
+	private double[] steps = new double[64];
+
+	/**
+	 * The number of finished steps.
+	 */
+	private int stepCount = 0;
+
+	/**
+	 * The largest magnitude of any sample.
+	 */
+	private double peak = 0.0;
+
+	/**
+	 * Create a meter for audio with the given format.
+	 *
+	 * @param sampleRate
+	 *            The number of frames per second.
+	 * @param channels
+	 *            The number of channels in each frame.
+	 */
+	protected LoudnessMeter(double sampleRate, int channels) {
+		this.channels = channels;
+		stepFrames = Integer.max(1, (int) Math.round(sampleRate / 10.0));
+		channelWeights = new double[channels];
+		Arrays.fill(channelWeights, 1.0);
+		if (channels == 6) {
+			// 5.1: the LFE is ignored and the surrounds are louder
+			channelWeights[3] = 0.0;
+			channelWeights[4] = 1.41;
+			channelWeights[5] = 1.41;
+		}
+
+		// the filters from the standard, recomputed for this sample rate
+		double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1.0 + k / q + k * k;
+		shelf = new double[] { (vh + vb * k / q + k * k) / a0, 2.0 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+				2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0 };
+
+		k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1.0 + k / q + k * k;
+		pass = new double[] { 1.0, -2.0, 1.0, 2.0 * (k * k - 1.0) / a0, (1.0 - k / q + k * k) / a0 };
+
+		state = new double[channels][8];
+		stepPower = new double[channels];
+	}
+
+	/**
+	 * Add interleaved samples.
+	 *
+	 * @param samples
+	 *            The samples from -1.0 to 1.0, one per channel for each frame.
+	 * @param frameCount
+	 *            The number of frames to add.
+	 */
+	protected void add(double[] samples, int frameCount) {
+		for (int frame = 0; frame < frameCount; frame++) {
+			for (int c = 0; c < channels; c++) {
+				double x = samples[frame * channels + c];
+				peak = Double.max(peak, Math.abs(x));
+				double[] s = state[c];
+				double y = shelf[0] * x + shelf[1] * s[0] + shelf[2] * s[1] - shelf[3] * s[2] - shelf[4] * s[3];
+				s[1] = s[0];
+				s[0] = x;
+				s[3] = s[2];
+				s[2] = y;
+				double z = pass[0] * y + pass[1] * s[4] + pass[2] * s[5] - pass[3] * s[6] - pass[4] * s[7];
+				s[5] = s[4];
+				s[4] = y;
+				s[7] = s[6];
+				s[6] = z;
+				stepPower[c] += z * z;
+			}
+			frames++;
+			if (frames == stepFrames) {
+				finishStep();
+			}
+		}
+	}
+
+	/**
+	 * Store the power of the current step.
+	 */
+	private void finishStep() {
+		double power = 0.0;
+		for (int c = 0; c < channels; c++) {
+			power += channelWeights[c] * stepPower[c];
+			stepPower[c] = 0.0;
+		}
+		if (stepCount == steps.length) {
+			steps = Arrays.copyOf(steps, stepCount * 2);
+		}
+		steps[stepCount++] = power / stepFrames;
+		frames = 0;
+	}
+
+	/**
+	 * The integrated loudness of everything added.
+	 *
+	 * @return The loudness in LUFS, or negative infinity for silence.
+	 */
+	protected double integrated() {
+		int blocks = stepCount - stepsPerBlock + 1;
+		if (blocks <= 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		double[] powers = new double[blocks];
+		for (int i = 0; i < blocks; i++) {
+			double power = 0.0;
+			for (int j = 0; j < stepsPerBlock; j++) {
+				power += steps[i + j];
+			}
+			powers[i] = power / stepsPerBlock;
+		}
+
+		double gate = power(absoluteGate);
+		double gated = mean(powers, gate);
+		if (Double.isNaN(gated)) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		gate = Double.max(gate, power(loudness(gated) + relativeGate));
+		return loudness(mean(powers, gate));
+	}
+
+	/**
+	 * The largest magnitude of any sample.
+	 *
+	 * @return The peak in decibels relative to full scale.
+	 */
+	protected double peak() {
+		return 20.0 * Math.log10(peak);
+	}
+
+	/**
+	 * The mean of the powers above a gate, or NaN if there are none.
+	 */
+	private static double mean(double[] powers, double gate) {
+		double sum = 0.0;
+		int count = 0;
+		for (double power : powers) {
+			if (power > gate) {
+				sum += power;
+				count++;
+			}
+		}
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * Convert a mean square into a loudness in LUFS.
+	 */
+	private static double loudness(double power) {
+		return -0.691 + 10.0 * Math.log10(power);
+	}
+
+	/**
+	 * Convert a loudness in LUFS into a mean square.
+	 */
+	private static double power(double loudness) {
+		return Math.pow(10.0, (loudness + 0.691) / 10.0);
+	}
+}
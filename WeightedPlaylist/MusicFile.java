@@ -1,6 +1,7 @@
 package WeightedPlaylist;
 
 import java.io.File;
+import java.util.List;
 
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
@@ -9,6 +10,22 @@ import javafx.scene.media.MediaPlayer;
  * Represents a file that contains playable audio.
  */
 public final class MusicFile extends AudioSource {
+	/**
+	 * The milliseconds in a day.
+	 */
+	private static final double dayLength = 24 * 60 * 60 * 1000;
+
+	/**
+	 * How close to 1.0 a rating must have decayed to be forgotten when it is
+	 * loaded.
+	 */
+	private static final double forgotten = 0.001;
+
+	/**
+	 * The time in milliseconds it takes for ratings to decay halfway back to
+	 * 1.0. Infinite if they never decay.
+	 */
+	private static double halfLife = 90 * dayLength;
 	
 	/**
 	 * True iff this file can actually be played.
@@ -16,10 +33,22 @@ public final class MusicFile extends AudioSource {
 	private boolean isValid = true;
 
 	/**
-	 * The relative likelihood of this file being played. 1.0 is average.
+	 * The relative likelihood of this file being played. 1.0 is average. The
+	 * rating is applied on top of it.
 	 */
 	private double weight = 0.0;
 
+	/**
+	 * The multiplier the user gave this song's weight by favoring or skipping
+	 * it, as of {@link #rated}. It decays back to 1.0 over time.
+	 */
+	private double rating = 1.0;
+
+	/**
+	 * The time in milliseconds the rating was last changed.
+	 */
+	private long rated = 0;
+
 	/**
 	 * The media player used to play this file.
 	 */
@@ -30,6 +59,18 @@ public final class MusicFile extends AudioSource {
 	 */
 	private Media media = null;
 
+	/**
+	 * True iff {@link #media} was created from a copy in the
+	 * {@link TrackCache}.
+	 */
+	private boolean fromCache = false;
+
+	/**
+	 * Every file with the same contents as this one, including this one. Null
+	 * if there are no copies.
+	 */
+	private List<MusicFile> copies = null;
+
 	/**
 	 * Acquire the resources needed to play this song immediately.
 	 */
@@ -43,11 +84,20 @@ public final class MusicFile extends AudioSource {
 		}
 		
 		try {
-			media = new Media(getFile().toURI().toASCIIString());
+			File own = getFile();
+			File file = TrackCache.local(own);
+			fromCache = file != own;
+			media = new Media(file.toURI().toASCIIString());
 			mediaPlayer = new MediaPlayer(media);
 			if (media.getError() != null || mediaPlayer.getError() != null) {
 				throw new Exception();
 			}
+			// measured in the background; unmeasured songs play at full volume
+			mediaPlayer.setVolume(LoudnessAnalyzer.gain(getFile()));
+			// exact once the media is ready, unlike the estimate from the header
+			media.durationProperty().addListener((observable, oldValue, newValue) -> {
+				DurationProber.record(own, newValue.toSeconds());
+			});
 		} catch (Exception ex) {
 			if (mediaPlayer != null) {
 				mediaPlayer.dispose();
@@ -69,6 +119,39 @@ public final class MusicFile extends AudioSource {
 		}
 	}
 
+	/**
+	 * True iff this song was acquired from its own file, but has since been
+	 * copied to the {@link TrackCache} and should be acquired again.
+	 */
+	public boolean hasNewCopy() {
+		return isValid && !fromCache && TrackCache.isCached(getFile());
+	}
+
+	/**
+	 * Returns the folder this song is in, loading it again if it was
+	 * unloaded.
+	 */
+	public Playlist getFolder() {
+		MusicFile loaded = Playlist.reload(this);
+		return loaded == null ? null : loaded.getParent();
+	}
+
+	/**
+	 * Returns the song's tags, read from its file's header if they weren't
+	 * already known.
+	 */
+	public Tags getTags() {
+		return TagLibrary.get(getFile());
+	}
+
+	/**
+	 * Returns the song's length in seconds, or NaN if it hasn't been found
+	 * yet.
+	 */
+	public double getDuration() {
+		return DurationProber.duration(getFile());
+	}
+
 	/**
 	 * Disposes of resources allocated to this object.
 	 */
@@ -80,26 +163,200 @@ public final class MusicFile extends AudioSource {
 	}
 
 	/**
-	 * Multiply the current weight by a value.
+	 * Multiply the current weight of this song and all its copies by a value.
+	 * The change decays over time unless the value is 0.0, which stops the
+	 * song from ever being played again. If the song's folder was unloaded
+	 * since it was picked, the song is changed as it is loaded now.
 	 */
 	public void modifyWeight(double modifier) {
-		balanceWeight(modifier);
+		MusicFile loaded = Playlist.reload(this);
+		if (loaded != this) {
+			if (loaded != null) {
+				loaded.modifyWeight(modifier);
+			}
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (copies == null) {
+			rate(modifier, now);
+		} else {
+			for (MusicFile copy : copies) {
+				copy.rate(modifier, now);
+			}
+		}
+	}
+
+	/**
+	 * Set how quickly the changes made by {@link #modifyWeight(double)} are
+	 * forgotten. Set before a primary source is loaded.
+	 * 
+	 * @param days
+	 *            The days it takes for a change to decay halfway, or 0.0 to
+	 *            never forget.
+	 */
+	public static void setHalfLife(double days) {
+		halfLife = days > 0.0 ? days * dayLength : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Multiply this song's current rating by a value.
+	 * 
+	 * @param modifier
+	 *            The multiplier, or 0.0 to never play the song again.
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	private void rate(double modifier, long now) {
+		if (!isValid) {
+			return;
+		}
+		int count = getCount();
+		double oldWeight = getWeight();
+		if (modifier == 0.0) {
+			weight = 0.0;
+		} else {
+			rating = getRating(now) * modifier;
+			rated = now;
+		}
+		notifyParent(count, oldWeight);
+		// a single write, rather than saving the whole folder
+		if (WeightStore.isOpen()) {
+			if (getParent() != null) {
+				getParent().settle();
+			}
+			store(WeightStore.folder(getFile().getParentFile()));
+		}
+	}
+
+	/**
+	 * This song's rating at a given time. It is evaluated when it is needed
+	 * rather than updated as time goes on, so that decay costs nothing until
+	 * then.
+	 * 
+	 * @param now
+	 *            The time in milliseconds.
+	 */
+	private double getRating(long now) {
+		if (rating == 1.0) {
+			return 1.0;
+		}
+		double age = Long.max(now - rated, 0);
+		return 1.0 + (rating - 1.0) * Math.pow(0.5, age / halfLife);
+	}
+
+	/**
+	 * Restore the rating stored in a line of a preferences file, if there is
+	 * one. A rating which has decayed away is forgotten.
+	 * 
+	 * @param token
+	 *            The weight stored in the line.
+	 */
+	protected void parseRating(String token) {
+		int star = token.indexOf('*');
+		int at = token.indexOf('@', star);
+		if (star == -1 || at == -1) {
+			return;
+		}
+		try {
+			rating = Double.parseDouble(token.substring(star + 1, at));
+			rated = Long.parseLong(token.substring(at + 1));
+		} catch (NumberFormatException ex) {
+			rating = 1.0;
+		}
+		if (Double.isNaN(rating) || Double.isInfinite(rating) || rating <= 0.0) {
+			rating = 1.0;
+		}
+		double current = getRating(System.currentTimeMillis());
+		if (Math.abs(current - 1.0) < forgotten) {
+			rating = 1.0;
+			weight *= current;
+		}
+	}
+
+	/**
+	 * True iff the other file is this song or one of its copies.
+	 */
+	protected boolean isCopyOf(MusicFile other) {
+		return other == this || (copies != null && copies.contains(other));
+	}
+
+	/**
+	 * This song's share of its weight when songs are selected. All copies
+	 * together are as likely as one song; invalid ones are never picked, so
+	 * they get no share.
+	 */
+	protected double getSharedWeight() {
+		if (copies != null) {
+			int valid = 0;
+			for (MusicFile copy : copies) {
+				if (copy.isValid) {
+					valid++;
+				}
+			}
+			return getWeight() / Integer.max(valid, 1);
+		}
+		return getWeight();
+	}
+
+	/**
+	 * Make files with the same contents act as one song. They are given the
+	 * same weight, and share it when songs are selected.
+	 * 
+	 * @param copies
+	 *            The files with the same contents.
+	 */
+	protected static void share(List<MusicFile> copies) {
+		// copies in different folders are compared by their actual weights
+		for (MusicFile copy : copies) {
+			if (copy.getParent() != null) {
+				copy.getParent().settle();
+			}
+		}
+		double total = 0.0;
+		int count = 0;
+		MusicFile latest = null;
+		for (MusicFile copy : copies) {
+			if (copy.isValid) {
+				total += copy.weight;
+				count++;
+				if (latest == null || copy.rated > latest.rated) {
+					latest = copy;
+				}
+			}
+		}
+		for (MusicFile copy : copies) {
+			copy.copies = copies;
+			if (count > 0) {
+				int oldCount = copy.getCount();
+				double oldWeight = copy.getWeight();
+				copy.weight = total / count;
+				copy.rating = latest.rating;
+				copy.rated = latest.rated;
+				copy.notifyParent(oldCount, oldWeight);
+			}
+		}
 	}
 	
 	/**
 	 * Used to ensure this file is never played again.
 	 */
 	private void invalidate() {
+		int count = getCount();
+		double oldWeight = getWeight();
 		isValid = false;
 		weight = Double.NaN;
+		notifyParent(count, oldWeight);
+		if (getParent() != null) {
+			getParent().getSearchIndex().remove(this);
+		}
 	}
 	
 	/**
 	 * Creates a new MusicFile from the specified file.
 	 * 
-	 * @param source The file to attempt to play.
+	 * @param source The node of the file to attempt to play.
 	 */
-	protected MusicFile(File source) {
+	protected MusicFile(int source) {
 		super(source);
 		if (Double.isNaN(weight)) {
 			isValid = false;
@@ -121,6 +378,16 @@ public final class MusicFile extends AudioSource {
 		}
 	}
 
+	@Override
+	protected void scaleWeight(double multiplier) {
+		if (isValid) {
+			weight *= multiplier;
+			if (Double.isNaN(weight)) {
+				isValid = false;
+			}
+		}
+	}
+
 	@Override
 	protected int getCount() {
 		if (isValid) {
@@ -133,7 +400,7 @@ public final class MusicFile extends AudioSource {
 	@Override
 	protected double getWeight() {
 		if (isValid) {
-			return weight;
+			return weight * getRating(System.currentTimeMillis());
 		} else {
 			return 0.0;
 		}
@@ -141,10 +408,14 @@ public final class MusicFile extends AudioSource {
 
 	@Override
 	protected void setWeight(double total) {
-		weight = total;
+		int count = getCount();
+		double oldWeight = getWeight();
+		// the rating stays as it is
+		weight = total / getRating(System.currentTimeMillis());
 		if (Double.isNaN(weight)) {
 			isValid = false;
 		}
+		notifyParent(count, oldWeight);
 	}
 
 	@Override
@@ -157,12 +428,28 @@ public final class MusicFile extends AudioSource {
 
 	@Override
 	protected double updateCumulative() {
-		return getWeight();
+		return getSharedWeight();
+	}
+
+	@Override
+	protected void addFiles(List<MusicFile> files) {
+		if (isValid) {
+			files.add(this);
+		}
 	}
 
 	@Override
 	protected String getFileString() {
+		if (rating != 1.0) {
+			// decayed when it is loaded again
+			return Double.toString(weight) + "*" + Double.toString(rating) + "@" + rated + " " + getName();
+		}
 		return Double.toString(weight) + " " + getName();
 	}
 
+	@Override
+	protected void store(int folder) {
+		WeightStore.put(folder, getName(), weight, -1, rating, rated);
+	}
+
 }
@@ -0,0 +1,189 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the memory used to hold the paths of a synthetic library as a file
+ * and a name per song, as audio sources once did, with the memory used by the
+ * {@link PathStore}. No files are created.
+ *
+ * Usage: PathBenchmark [songs]
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class PathBenchmark {
+	/**
+	 * The number of songs unless given on the command line.
+	 */
+	private static final int defaultSongs = 1000000;
+
+	/**
+	 * The songs in each album.
+	 */
+	private static final int songsPerAlbum = 12;
+
+	/**
+	 * The albums by each artist.
+	 */
+	private static final int albumsPerArtist = 6;
+
+	/**
+	 * The folder the synthetic library is in.
+	 */
+	private static final String libraryPath = "/home/listener/Music/Library/Collection";
+
+	/**
+	 * Album names shared by many artists.
+	 */
+	private static final String[] commonAlbums = { "Greatest Hits", "Live", "Unplugged", "Demos", "Singles" };
+
+	/**
+	 * The number of songs whose files are built to time it.
+	 */
+	private static final int builtFiles = 100000;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The number of songs.
+	 */
+	public static void main(String[] args) {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : defaultSongs;
+
+		long before = usedHeap();
+		Object[] old = buildFiles(songs);
+		long fileBytes = usedHeap() - before;
+		// the files are only measured; keep them until then
+		System.out.println(String.format("%d songs in %d folders", songs, ((String[]) old[1]).length - songs));
+		old = null;
+
+		before = usedHeap();
+		int[] nodes = buildNodes(songs);
+		long storeBytes = usedHeap() - before;
+
+		System.out.println(String.format("file and name per source: %8.1f MB (%.0f bytes per source)",
+				fileBytes / 1e6, fileBytes / (double) nodes.length));
+		System.out.println(String.format("path store:               %8.1f MB (%.0f bytes per source)",
+				storeBytes / 1e6, storeBytes / (double) nodes.length));
+		System.out.println(String.format("saved:                    %8.1f MB (%.0f%%)", (fileBytes - storeBytes) / 1e6,
+				100.0 * (fileBytes - storeBytes) / fileBytes));
+
+		Random random = new Random(1);
+		long length = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < builtFiles; i++) {
+			length += PathStore.file(nodes[random.nextInt(nodes.length)]).getPath().length();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("building a file:          %8.2f us (%d characters on average)",
+				elapsed / 1e3 / builtFiles, length / builtFiles));
+	}
+
+	/**
+	 * Hold the library as a file and a name per folder and song.
+	 *
+	 * @return The files, then the names.
+	 */
+	private static Object[] buildFiles(int songs) {
+		String[] names = names(songs);
+		File[] files = new File[names.length];
+		String[] ownNames = new String[names.length];
+		int[] parents = parents(songs);
+		for (int i = 0; i < names.length; i++) {
+			File parent = parents[i] == -1 ? new File(libraryPath) : files[parents[i]];
+			files[i] = new File(parent, names[i]).getAbsoluteFile();
+			ownNames[i] = files[i].getName();
+		}
+		return new Object[] { files, ownNames };
+	}
+
+	/**
+	 * Hold the library in the path store.
+	 *
+	 * @return The node of each folder and song.
+	 */
+	private static int[] buildNodes(int songs) {
+		String[] names = names(songs);
+		int[] nodes = new int[names.length];
+		int[] parents = parents(songs);
+		int library = PathStore.root(new File(libraryPath));
+		for (int i = 0; i < names.length; i++) {
+			nodes[i] = PathStore.child(parents[i] == -1 ? library : nodes[parents[i]], names[i]);
+		}
+		return nodes;
+	}
+
+	/**
+	 * The names of the artist folders, album folders and songs, with every
+	 * folder before the things in it.
+	 */
+	private static String[] names(int songs) {
+		Random random = new Random(songs);
+		int albums = (songs + songsPerAlbum - 1) / songsPerAlbum;
+		int artists = (albums + albumsPerArtist - 1) / albumsPerArtist;
+		String[] names = new String[artists + albums + songs];
+		int index = 0;
+		for (int artist = 0; artist < artists; artist++) {
+			names[index++] = "Artist " + artist + " and the " + word(random);
+		}
+		for (int album = 0; album < albums; album++) {
+			if (random.nextInt(4) == 0) {
+				names[index++] = commonAlbums[random.nextInt(commonAlbums.length)];
+			} else {
+				names[index++] = word(random) + " " + word(random) + " (" + (1960 + random.nextInt(60)) + ")";
+			}
+		}
+		for (int song = 0; song < songs; song++) {
+			names[index++] = String.format("%02d - %s %s %s.flac", song % songsPerAlbum + 1, word(random),
+					word(random), word(random));
+		}
+		return names;
+	}
+
+	/**
+	 * The index of the folder each name in {@link #names(int)} is in, or -1
+	 * for the library.
+	 */
+	private static int[] parents(int songs) {
+		int albums = (songs + songsPerAlbum - 1) / songsPerAlbum;
+		int artists = (albums + albumsPerArtist - 1) / albumsPerArtist;
+		int[] parents = new int[artists + albums + songs];
+		int index = 0;
+		for (int artist = 0; artist < artists; artist++) {
+			parents[index++] = -1;
+		}
+		for (int album = 0; album < albums; album++) {
+			parents[index++] = album / albumsPerArtist;
+		}
+		for (int song = 0; song < songs; song++) {
+			parents[index++] = artists + song / songsPerAlbum;
+		}
+		return parents;
+	}
+
+	/**
+	 * A random word.
+	 */
+	private static String word(Random random) {
+		char[] word = new char[3 + random.nextInt(7)];
+		word[0] = (char) ('A' + random.nextInt(26));
+		for (int i = 1; i < word.length; i++) {
+			word[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(word);
+	}
+
+	/**
+	 * The bytes of heap in use after collecting garbage.
+	 */
+	private static long usedHeap() {
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,246 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores the paths of songs and folders compactly. Each path is a node which
+ * holds only the index of its parent's node and the index of its own name.
+ * Names are stored once each as UTF-8 bytes in a shared arena, so a name such
+ * as "Disc 1" used by many folders costs nothing after the first. Files are
+ * only built when they are needed.
+ */
+final class PathStore {
+	/**
+	 * The parent of a node which is a top folder.
+	 */
+	private static final int noParent = -1;
+
+	/**
+	 * The initial number of nodes and names there is room for.
+	 */
+	private static final int initialCapacity = 1024;
+
+	/**
+	 * The UTF-8 bytes of every name, one after another.
+	 */
+	private static byte[] arena = new byte[initialCapacity * 16];
+
+	/**
+	 * The number of bytes used in the arena.
+	 */
+	private static int arenaSize = 0;
+
+	/**
+	 * Where each name starts in the arena. A name ends where the next one
+	 * starts.
+	 */
+	private static int[] nameStarts = new int[initialCapacity + 1];
+
+	/**
+	 * The number of names stored.
+	 */
+	private static int nameCount = 0;
+
+	/**
+	 * An open addressed table of name indexes plus one, by the hash of the
+	 * name's bytes. Zero marks an empty slot.
+	 */
+	private static int[] nameTable = new int[initialCapacity * 2];
+
+	/**
+	 * The node of each node's parent.
+	 */
+	private static int[] parents = new int[initialCapacity];
+
+	/**
+	 * The name index of each node.
+	 */
+	private static int[] names = new int[initialCapacity];
+
+	/**
+	 * The number of nodes stored.
+	 */
+	private static int nodeCount = 0;
+
+	/**
+	 * An open addressed table of nodes plus one, by the hash of their parent
+	 * and name, so that loading a folder again reuses its nodes.
+	 */
+	private static int[] nodeTable = new int[initialCapacity * 2];
+
+	/**
+	 * The node of a top folder.
+	 *
+	 * @param dir
+	 *            The folder.
+	 * @return The folder's node.
+	 */
+	protected static int root(File dir) {
+		File absolute = dir.getAbsoluteFile();
+		File parent = absolute.getParentFile();
+		if (parent == null) {
+			return child(noParent, absolute.getPath());
+		}
+		// so that the folder's node is named like any other
+		return child(child(noParent, parent.getPath()), absolute.getName());
+	}
+
+	/**
+	 * The node of a file or folder in a folder.
+	 *
+	 * @param parent
+	 *            The folder's node.
+	 * @param name
+	 *            The name of the file or folder.
+	 * @return The node of the file or folder.
+	 */
+	protected static synchronized int child(int parent, String name) {
+		int nameIndex = intern(name.getBytes(StandardCharsets.UTF_8));
+		int mask = nodeTable.length - 1;
+		int slot = hash(parent * 31 + nameIndex) & mask;
+		while (nodeTable[slot] != 0) {
+			int node = nodeTable[slot] - 1;
+			if (parents[node] == parent && names[node] == nameIndex) {
+				return node;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (nodeCount == parents.length) {
+			parents = Arrays.copyOf(parents, nodeCount * 2);
+			names = Arrays.copyOf(names, nodeCount * 2);
+		}
+		int node = nodeCount++;
+		parents[node] = parent;
+		names[node] = nameIndex;
+		nodeTable[slot] = node + 1;
+		if (nodeCount * 2 > nodeTable.length) {
+			nodeTable = new int[nodeTable.length * 2];
+			for (int i = 0; i < nodeCount; i++) {
+				nodeTable[free(nodeTable, hash(parents[i] * 31 + names[i]))] = i + 1;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * The name of a file or folder.
+	 */
+	protected static synchronized String name(int node) {
+		int nameIndex = names[node];
+		int start = nameStarts[nameIndex];
+		return new String(arena, start, nameStarts[nameIndex + 1] - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build the absolute file of a node.
+	 */
+	protected static synchronized File file(int node) {
+		int depth = 0;
+		for (int n = node; n != noParent; n = parents[n]) {
+			depth++;
+		}
+		int[] chain = new int[depth];
+		for (int n = node; n != noParent; n = parents[n]) {
+			chain[--depth] = n;
+		}
+		StringBuilder path = new StringBuilder();
+		for (int n : chain) {
+			if (path.length() > 0 && path.charAt(path.length() - 1) != File.separatorChar) {
+				path.append(File.separatorChar);
+			}
+			path.append(name(n));
+		}
+		return new File(path.toString());
+	}
+
+	/**
+	 * The index of a name, storing it if it is new.
+	 */
+	private static int intern(byte[] bytes) {
+		int mask = nameTable.length - 1;
+		int slot = hash(Arrays.hashCode(bytes)) & mask;
+		while (nameTable[slot] != 0) {
+			int nameIndex = nameTable[slot] - 1;
+			if (matches(nameIndex, bytes)) {
+				return nameIndex;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (arenaSize + bytes.length > arena.length) {
+			arena = Arrays.copyOf(arena, Integer.max(arena.length * 2, arenaSize + bytes.length));
+		}
+		System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+		arenaSize += bytes.length;
+		if (nameCount + 1 == nameStarts.length) {
+			nameStarts = Arrays.copyOf(nameStarts, nameStarts.length * 2);
+		}
+		int nameIndex = nameCount++;
+		nameStarts[nameCount] = arenaSize;
+		nameTable[slot] = nameIndex + 1;
+		if (nameCount * 2 > nameTable.length) {
+			nameTable = new int[nameTable.length * 2];
+			for (int i = 0; i < nameCount; i++) {
+				int hash = hash(hashCode(nameStarts[i], nameStarts[i + 1]));
+				nameTable[free(nameTable, hash)] = i + 1;
+			}
+		}
+		return nameIndex;
+	}
+
+	/**
+	 * True iff a stored name has the given bytes.
+	 */
+	private static boolean matches(int nameIndex, byte[] bytes) {
+		int start = nameStarts[nameIndex];
+		if (nameStarts[nameIndex + 1] - start != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (arena[start + i] != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The same hash as {@link Arrays#hashCode(byte[])} for bytes in the arena.
+	 */
+	private static int hashCode(int start, int end) {
+		int hash = 1;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + arena[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * The first empty slot of a table at or after a hash.
+	 */
+	private static int free(int[] table, int hash) {
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Spread the bits of a hash code over the table.
+	 */
+	private static int hash(int code) {
+		int hash = code * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private PathStore() {
+	}
+}
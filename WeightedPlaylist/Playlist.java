@@ -4,10 +4,14 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import Logging.Logger;
@@ -17,16 +21,79 @@ import Logging.Logger;
  */
 public final class Playlist extends AudioSource {
 	/**
-	 * The file where the user's preferences for songs in this folder are
+	 * The number of most recently used folders which are never unloaded.
+	 */
+	private static final int minLoaded = 16;
+
+	/**
+	 * The name of the file in each folder where the user's preferences are
 	 * stored.
 	 */
-	private File preferences = null;
+	private static final String preferencesName = "awed.txt";
 
 	/**
-	 * The audio sources found within this folder.
+	 * The name of the file in the user's home folder where the relative
+	 * weights of the folders making up a library are stored.
+	 */
+	private static final String libraryName = "awed.library";
+
+	/**
+	 * How the folders of the primary source this folder is in are loaded.
+	 */
+	private final Loading loading;
+
+	/**
+	 * The audio sources found within this folder. Null until the folder is
+	 * loaded.
 	 */
 	private ArrayList<AudioSource> audioSources = null;
 
+	/**
+	 * The number of valid songs in this folder. Kept up to date as songs
+	 * change, and remembered while the folder isn't loaded.
+	 */
+	private int songCount = 0;
+
+	/**
+	 * The total weight of the songs in this folder. Kept up to date as songs
+	 * change, added up again as their ratings decay each time a song is
+	 * picked, and remembered while the folder isn't loaded.
+	 */
+	private double songWeight = 0.0;
+
+	/**
+	 * A multiplier already applied to {@link #songWeight} but not yet to the
+	 * audio sources in this folder, so that a folder is rescaled without
+	 * visiting everything in it. Their weights relative to each other are
+	 * right regardless, which is all picking a song needs. 1.0 when nothing
+	 * is pending.
+	 */
+	private double pending = 1.0;
+
+	/**
+	 * The relative weight of a folder which has never been counted, kept
+	 * until it is loaded. NaN once the folder has been counted.
+	 */
+	private double uncountedWeight = Double.NaN;
+
+	/**
+	 * True iff this playlist is a library made of several folders, which
+	 * needn't be anywhere near each other.
+	 */
+	private boolean isLibrary = false;
+
+	/**
+	 * The lines remembered for folders which were part of a library before
+	 * but aren't now. Null unless this is a library.
+	 */
+	private ArrayList<String> otherRoots = null;
+
+	/**
+	 * True once this folder has been unloaded, after which its preferences
+	 * may have changed since they were read.
+	 */
+	private boolean unloaded = false;
+
 	/**
 	 * True iff this folder has a valid song within.
 	 */
@@ -47,65 +114,210 @@ public final class Playlist extends AudioSource {
 	 */
 	private MusicFile twoPlayed = null;
 
+	/**
+	 * A folder's contents and preferences as read from the disk.
+	 */
+	static final class Listing {
+		/**
+		 * The lines of the folder's preferences file.
+		 */
+		private final ArrayList<String> lines = new ArrayList<String>();
+
+		/**
+		 * The names of the files and folders in the folder, in the order they
+		 * were listed, each mapped to true iff it is a folder. Null if the
+		 * folder could not be listed.
+		 */
+		private LinkedHashMap<String, Boolean> children = null;
+	}
+
 	/**
 	 * Load all the songs in the given folder and ready for playing.
 	 * 
-	 * @param dir The folder to be opened.
+	 * @param loading How the folders of the primary source are loaded.
+	 * @param dir The node of the folder to be opened.
 	 */
-	protected Playlist(File dir) {
+	protected Playlist(Loading loading, int dir) {
 		super(dir);
-		HashMap<String, AudioSource> sourceMap = new HashMap<String, AudioSource>();
+		this.loading = loading;
+		load();
+	}
+
+	/**
+	 * Represent a folder without loading it. It is loaded once a song is
+	 * picked from it. A folder which has never been counted has no songs
+	 * until it is loaded.
+	 * 
+	 * @param loading How the folders of the primary source are loaded.
+	 * @param dir The node of the folder.
+	 * @param count The number of valid songs last found in the folder, or -1
+	 *            if it has never been counted.
+	 * @param weight The relative weight of the folder.
+	 */
+	protected Playlist(Loading loading, int dir, int count, double weight) {
+		super(dir);
+		this.loading = loading;
+		if (count < 0) {
+			uncountedWeight = weight;
+			count = 0;
+		}
+		songCount = count;
+		songWeight = count;
+		isValid = count >= 3;
+	}
+
+	/**
+	 * Load a library made of several folders. Each folder is weighted by the
+	 * relative weight remembered for it in the user's home folder, while the
+	 * preferences for everything in it stay in its own preferences files.
+	 * 
+	 * @param loading How the folders of the primary source are loaded.
+	 * @param roots The folders, which must exist.
+	 */
+	protected Playlist(Loading loading, List<File> roots) {
+		super(PathStore.root(new File(System.getProperty("user.home"), libraryName)));
+		this.loading = loading;
+		isLibrary = true;
+		HashMap<String, String> remembered = new LinkedHashMap<String, String>();
 		try {
-			if (!getFile().isDirectory()) {
-				throw new Exception("A folder containing songs must be selected to play.");
+			File preferences = getPreferences();
+			if (preferences.exists()) {
+				Scanner fileReader = new Scanner(preferences);
+				while (fileReader.hasNextLine()) {
+					String line = fileReader.nextLine();
+					String parts[] = line.split(" ", 2);
+					if (parts.length == 2) {
+						remembered.put(parts[1], line);
+					}
+				}
+				fileReader.close();
+			}
+		} catch (Exception ex) {
+			Logger.log(ex.toString());
+		}
+
+		audioSources = new ArrayList<AudioSource>();
+		for (File root : roots) {
+			String line = remembered.remove(root.getAbsolutePath());
+			double weight = 1.0;
+			int count = -1;
+			if (line != null) {
+				String token = line.split(" ", 2)[0];
+				weight = parseRelativeWeight(token);
+				count = parseCount(token);
+			}
+			audioSources.add(AudioSource.getSource(loading, PathStore.root(root), true, weight, count));
+		}
+		// kept for when they are added again
+		otherRoots = new ArrayList<String>(remembered.values());
+
+		for (AudioSource as : audioSources) {
+			as.setParent(this);
+		}
+		recount();
+		isValid = getCount() >= 3;
+	}
+
+	/**
+	 * Find the songs and folders in this folder.
+	 */
+	private void load() {
+		load(read());
+	}
+
+	/**
+	 * Read this folder's contents and preferences from the disk. Only the file
+	 * system is touched, so the playlist's lock needn't be held, and a slow
+	 * drive doesn't hold up anything else.
+	 * 
+	 * @return What was found.
+	 */
+	protected Listing read() {
+		Listing listing = new Listing();
+		File dir = getFile();
+		if (!dir.isDirectory()) {
+			return listing;
+		}
+		File[] files = dir.listFiles();
+		if (files != null) {
+			listing.children = new LinkedHashMap<String, Boolean>();
+			for (File child : files) {
+				// the preferences aren't a song
+				if (!child.getName().equals(preferencesName)) {
+					listing.children.put(child.getName(), child.isDirectory());
+				}
 			}
-			preferences = getFile().toPath().resolve("awed.txt").toFile();
+		}
+
+		if (WeightStore.isOpen()) {
+			if (listing.children != null) {
+				listing.lines.addAll(WeightStore.lines(dir, listing.children.keySet()));
+			}
+			return listing;
+		}
+		try {
+			File preferences = getPreferences();
 
 			// to make sure all sources are enumerated
 			if (!preferences.exists()) {
 				preferences.createNewFile();
 			} else {
-				// read in everything that has been seen
 				Scanner fileReader = new Scanner(preferences);
 				while (fileReader.hasNextLine()) {
-					String line = fileReader.nextLine();
-					String parts[] = line.split(" ", 2);
-					if (parts.length != 2) {
-						continue;
-					}
-					File path = getFile().toPath().resolve(parts[1]).toFile();
-					double childWeight = 1.0;
-					try {
-						childWeight = Double.parseDouble(parts[0]);
-					} catch (Exception e) {
-						childWeight = 1.0;
-					}
-					if (Double.isInfinite(childWeight) || childWeight < 0.0) {
-						childWeight = 1.0;
-					}
-					AudioSource source = AudioSource.getSource(path, childWeight);
-					sourceMap.put(source.getName(), source);
+					listing.lines.add(fileReader.nextLine());
 				}
 				fileReader.close();
-
 			}
 		} catch (Exception ex) {
 			Logger.log(ex.toString());
 		}
 
+		return listing;
+	}
+
+	/**
+	 * Find the songs and folders in this folder from what was read from the
+	 * disk.
+	 * 
+	 * @param listing The folder's contents and preferences.
+	 */
+	private void load(Listing listing) {
+		HashMap<String, AudioSource> sourceMap = new HashMap<String, AudioSource>();
+		audioSources = new ArrayList<AudioSource>();
 		try {
-			audioSources = new ArrayList<AudioSource>();
+			if (listing.children == null) {
+				throw new Exception("A folder containing songs must be selected to play.");
+			}
+
+			// read in everything that has been seen, unless it is gone
+			for (String line : listing.lines) {
+				String parts[] = line.split(" ", 2);
+				if (parts.length != 2 || !listing.children.containsKey(parts[1])) {
+					continue;
+				}
+				AudioSource source = AudioSource.getSource(loading, PathStore.child(getPath(), parts[1]),
+						listing.children.get(parts[1]), parseRelativeWeight(parts[0]), parseCount(parts[0]));
+				if (source instanceof MusicFile) {
+					((MusicFile) source).parseRating(parts[0]);
+				}
+				sourceMap.put(source.getName(), source);
+			}
 
 			// get all the audio sources
-			for (File child : getFile().listFiles()) {
-				AudioSource source = sourceMap.get(child.getName());
+			for (Map.Entry<String, Boolean> child : listing.children.entrySet()) {
+				AudioSource source = sourceMap.remove(child.getKey());
 				// if it is new
 				if (source == null) {
-					audioSources.add(AudioSource.getSource(child, 1.0));
-				} else {
-					audioSources.add(source);
+					source = AudioSource.getSource(loading, PathStore.child(getPath(), child.getKey()), child.getValue(), 1.0,
+							-1);
 				}
+				audioSources.add(source);
+			}
+
+			for (AudioSource as : audioSources) {
+				as.setParent(this);
 			}
+			recount();
 
 			isValid = true;
 		} catch (Exception ex) {
@@ -118,11 +330,343 @@ public final class Playlist extends AudioSource {
 		}
 	}
 
+	/**
+	 * Load this folder, if it isn't, so that songs can be picked from it. The
+	 * songs keep the relative weight this folder had.
+	 */
+	private void expand() {
+		expand(null);
+	}
+
+	/**
+	 * Load this folder, if it isn't, from what was read from the disk.
+	 * 
+	 * @param listing The folder's contents and preferences, or null to read
+	 *            them now.
+	 */
+	private void expand(Listing listing) {
+		if (audioSources != null) {
+			return;
+		}
+		double relativeWeight = 1.0;
+		if (!Double.isNaN(uncountedWeight)) {
+			relativeWeight = uncountedWeight;
+			uncountedWeight = Double.NaN;
+		} else if (songCount > 0 && !Double.isNaN(songWeight)) {
+			relativeWeight = songWeight / songCount;
+		}
+		int oldCount = songCount;
+		double oldWeight = songWeight;
+
+		// the folders above only see the change once it is complete
+		Playlist parent = getParent();
+		setParent(null);
+		loading.load(() -> load(listing == null ? read() : listing));
+		setWeight(relativeWeight * getCount());
+		setParent(parent);
+		if (parent != null) {
+			parent.changed(songCount - oldCount, songWeight - oldWeight);
+		}
+
+		if (isValid) {
+			updateCumulative();
+		}
+	}
+
+	/**
+	 * Update the count and weight of this folder and the folders above it
+	 * after something in it changed. Folders are valid while they have enough
+	 * songs, so that folders fill up as the library is scanned.
+	 * 
+	 * @param count The change in the number of valid songs.
+	 * @param weight The change in the total weight of something in this
+	 *            folder, before the multiplier pending here.
+	 */
+	protected void changed(int count, double weight) {
+		for (Playlist playlist = this; playlist != null; playlist = playlist.getParent()) {
+			weight *= playlist.pending;
+			playlist.songCount += count;
+			playlist.songWeight += weight;
+			if (playlist.audioSources != null) {
+				playlist.isValid = playlist.songCount >= 3;
+			}
+		}
+	}
+
+	/**
+	 * Load this folder, if it isn't, without marking it as recently used.
+	 * Used to scan the library in the background.
+	 * 
+	 * @param listing The folder's contents and preferences, read beforehand
+	 *            without holding the lock.
+	 * @return The folders in this folder.
+	 */
+	protected List<Playlist> scanFolder(Listing listing) {
+		if (audioSources == null) {
+			// its preferences may have been saved since they were read
+			expand(unloaded ? null : listing);
+		}
+		ArrayList<Playlist> folders = new ArrayList<Playlist>();
+		if (audioSources != null) {
+			for (AudioSource as : audioSources) {
+				if (as instanceof Playlist) {
+					folders.add((Playlist) as);
+				}
+			}
+		}
+		return folders;
+	}
+
+	/**
+	 * The folders a library is made of, or this folder alone if it isn't a
+	 * library. They are scanned separately, so that a slow drive doesn't hold
+	 * up the others.
+	 */
+	protected List<Playlist> getRoots() {
+		ArrayList<Playlist> roots = new ArrayList<Playlist>();
+		if (!isLibrary) {
+			roots.add(this);
+			return roots;
+		}
+		for (AudioSource as : audioSources) {
+			roots.add((Playlist) as);
+		}
+		return roots;
+	}
+
+	/**
+	 * Add up the counts and weights of everything in this folder.
+	 */
+	private void recount() {
+		int count = 0;
+		double weight = 0.0;
+		for (AudioSource as : audioSources) {
+			count += as.getCount();
+			weight += as.getWeight();
+		}
+		songCount = count;
+		songWeight = weight * pending;
+	}
+
+	/**
+	 * Unload the least recently used half of the folders loaded when a song was
+	 * picked from them, if memory is running low. The most recently used
+	 * folders stay, since the songs the player holds are likely from them.
+	 */
+	private void unloadIfNeeded() {
+		LinkedHashMap<Playlist, Boolean> loaded = loading.loaded;
+		if (loading.memoryPressure.get() != null) {
+			return;
+		}
+		loading.memoryPressure = new SoftReference<Object>(new Object());
+		int count = Integer.min(loaded.size() / 2, loaded.size() - minLoaded);
+		if (count <= 0) {
+			return;
+		}
+		ArrayList<Playlist> eldest = new ArrayList<Playlist>(count);
+		for (Playlist playlist : loaded.keySet()) {
+			if (eldest.size() == count) {
+				break;
+			}
+			eldest.add(playlist);
+		}
+		for (Playlist playlist : eldest) {
+			// may already be gone with a folder above it
+			if (loaded.remove(playlist) != null) {
+				playlist.collapse();
+			}
+		}
+	}
+
+	/**
+	 * Save this folder's preferences and go back to representing it by its
+	 * count and weight alone.
+	 */
+	private void collapse() {
+		// saved with the multipliers of the folders above
+		settle();
+		updateFile();
+		unloaded = true;
+		release();
+		audioSources = null;
+		onePlayed = null;
+		twoPlayed = null;
+	}
+
+	/**
+	 * The song loaded in place of a song which may have been unloaded with
+	 * one of the folders it is in, since the player can still hold it. Those
+	 * folders are loaded again, so that changes to the song are saved.
+	 *
+	 * @param song A song picked from a primary source.
+	 * @return The song as it is loaded now, which is the same song unless its
+	 *         folder was unloaded, or null if it is gone.
+	 */
+	protected static MusicFile reload(MusicFile song) {
+		// from the song up to the primary source, which is never unloaded
+		ArrayList<AudioSource> chain = new ArrayList<AudioSource>();
+		AudioSource top = song;
+		while (top.getParent() != null) {
+			chain.add(top);
+			top = top.getParent();
+		}
+		AudioSource current = top;
+		for (int i = chain.size() - 1; i >= 0 && current instanceof Playlist; i--) {
+			Playlist folder = (Playlist) current;
+			if (folder.audioSources == null) {
+				folder.expand();
+				folder.loading.loaded.put(folder, Boolean.TRUE);
+			}
+			AudioSource wanted = chain.get(i);
+			current = null;
+			for (AudioSource as : folder.audioSources) {
+				if (as == wanted) {
+					current = as;
+					break;
+				} else if (as.getName().equals(wanted.getName()) && as.getClass() == wanted.getClass()) {
+					// the folder was loaded again since
+					current = as;
+				}
+			}
+		}
+		return current instanceof MusicFile ? (MusicFile) current : null;
+	}
+
+	/**
+	 * Load folders as usual from now on, once a {@link LibraryScanner} has
+	 * loaded every folder of this progressively loaded primary source.
+	 */
+	protected void endProgressive() {
+		loading.endProgressive();
+	}
+
+	/**
+	 * The valid songs of the folders loaded since this was last called, or
+	 * since the primary source was created. Songs are only analysed in the
+	 * background once their folders are loaded. Used only on the top
+	 * playlist.
+	 */
+	public List<MusicFile> takeFound() {
+		ArrayList<MusicFile> found = new ArrayList<MusicFile>();
+		for (MusicFile mf : loading.found) {
+			if (mf.isValid()) {
+				found.add(mf);
+			}
+		}
+		loading.found = new ArrayList<MusicFile>();
+		return found;
+	}
+
+	/**
+	 * Finds the songs and folders of the primary source this folder is in by
+	 * name, as far as they have been loaded.
+	 */
+	public SearchIndex getSearchIndex() {
+		return loading.index;
+	}
+
+	/**
+	 * Remove this folder and everything in it from the search index.
+	 */
+	private void unindex() {
+		loading.index.remove(this);
+		release();
+	}
+
+	/**
+	 * Forget everything in this folder: remove it from the search index and
+	 * from the loaded folders.
+	 */
+	private void release() {
+		if (audioSources != null) {
+			for (AudioSource as : audioSources) {
+				if (as instanceof Playlist) {
+					loading.loaded.remove(as);
+					((Playlist) as).unindex();
+				} else {
+					loading.index.remove(as);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The file where the user's preferences for songs in this folder are
+	 * stored.
+	 */
+	private File getPreferences() {
+		if (isLibrary) {
+			return getFile();
+		}
+		return getFile().toPath().resolve(preferencesName).toFile();
+	}
+
+	/**
+	 * The weight stored in a line of a preferences file. A folder's count or
+	 * a song's rating may follow it.
+	 */
+	private static double parseWeight(String token) {
+		int index = token.indexOf(':');
+		if (index == -1) {
+			index = token.indexOf('*');
+		}
+		return Double.parseDouble(index == -1 ? token : token.substring(0, index));
+	}
+
+	/**
+	 * The relative weight stored in a line of a preferences file, or 1.0 if it
+	 * can't be used.
+	 */
+	private static double parseRelativeWeight(String token) {
+		double weight = 1.0;
+		try {
+			weight = parseWeight(token);
+		} catch (Exception e) {
+			weight = 1.0;
+		}
+		if (Double.isInfinite(weight) || weight < 0.0) {
+			weight = 1.0;
+		}
+		return weight;
+	}
+
+	/**
+	 * The number of songs stored in a line of a preferences file for a folder,
+	 * or -1 if there is none.
+	 */
+	private static int parseCount(String token) {
+		int index = token.indexOf(':');
+		if (index == -1) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(token.substring(index + 1));
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
 	/**
 	 * Update the file representing the user's preferences.
 	 */
-	private void updateFile() {
-		try (FileWriter fw = new FileWriter(preferences, false);
+	protected void updateFile() {
+		push();
+		// nothing has changed in a folder that isn't loaded
+		if (audioSources == null) {
+			return;
+		}
+		// only what changed is written; a library's folders stay in its file
+		if (WeightStore.isOpen() && !isLibrary) {
+			int folder = WeightStore.folder(getFile());
+			for (AudioSource as : audioSources) {
+				if (as instanceof Playlist) {
+					((Playlist) as).updateFile();
+				}
+				as.store(folder);
+			}
+			return;
+		}
+		try (FileWriter fw = new FileWriter(getPreferences(), false);
 				BufferedWriter bw = new BufferedWriter(fw);
 				PrintWriter pw = new PrintWriter(bw);) {
 
@@ -171,6 +715,11 @@ public final class Playlist extends AudioSource {
 				}
 				pw.println(as.getFileString());
 			}
+			if (isLibrary) {
+				for (String line : otherRoots) {
+					pw.println(line);
+				}
+			}
 
 			pw.flush();
 			pw.close();
@@ -184,9 +733,10 @@ public final class Playlist extends AudioSource {
 	 * Get a valid song from this playlist.
 	 */
 	public MusicFile getSong() {
+		unloadIfNeeded();
 		MusicFile next = getSong(AudioSource.random());
 		int failCount = 0;
-		while (next.equals(onePlayed) || next.equals(twoPlayed)) {
+		while (next == null || next.isCopyOf(onePlayed) || next.isCopyOf(twoPlayed)) {
 			next = getSong(AudioSource.random());
 			failCount++;
 			if (failCount >= 10) {
@@ -199,12 +749,46 @@ public final class Playlist extends AudioSource {
 		return next;
 	}
 
+	/**
+	 * Update all weights for a song picked ahead of time by the weights as
+	 * they were, as {@link #getSong()} does before each pick. Used only on the
+	 * top playlist.
+	 *
+	 * @param next The song about to be played.
+	 */
+	protected void taken(MusicFile next) {
+		unloadIfNeeded();
+		updateWeights();
+		onePlayed = twoPlayed;
+		twoPlayed = next;
+	}
+
 	@Override
 	protected MusicFile getSong(double residual) {
+		if (audioSources == null) {
+			expand();
+			loading.loaded.put(this, Boolean.TRUE);
+			if (!isValid) {
+				return null;
+			}
+		} else if (loading.loaded.containsKey(this)) {
+			// mark as recently used
+			loading.loaded.get(this);
+		}
 		if (!Double.isNaN(totalWeight)) {
 			updateWeights();
 		}
+		return pick(residual);
+	}
 
+	/**
+	 * Pick a song from this loaded folder by the weights as they are, without
+	 * updating them first. The residual is rescaled to the share of the audio
+	 * source it falls in and passed down to it.
+	 * 
+	 * @param residual A random number from 0 to 1.
+	 */
+	protected MusicFile pick(double residual) {
 		int index = 0;
 		for (int i = 0; i < audioSources.size(); i++) {
 			if (residual <= audioSources.get(i).getCumulWeight()) {
@@ -233,31 +817,96 @@ public final class Playlist extends AudioSource {
 
 	@Override
 	protected void balanceWeight(double multiplier) {
-		for (AudioSource as : audioSources) {
-			as.balanceWeight(multiplier);
+		int count = songCount;
+		double weight = songWeight;
+		scaleWeight(multiplier);
+		if (getParent() != null) {
+			getParent().changed(songCount - count, songWeight - weight);
 		}
 	}
 
 	@Override
-	protected int getCount() {
-		int count = 0;
+	protected void scaleWeight(double multiplier) {
+		songWeight *= multiplier;
+		// applied to what is in it once that is read or saved
+		if (audioSources != null) {
+			pending *= multiplier;
+		}
+	}
+
+	/**
+	 * Apply the multiplier pending in this folder to the audio sources in it.
+	 * The folders in it only take it on as their own pending multiplier.
+	 */
+	private void push() {
+		if (pending == 1.0 || audioSources == null) {
+			return;
+		}
+		double multiplier = pending;
+		pending = 1.0;
 		for (AudioSource as : audioSources) {
-			count += as.getCount();
+			as.scaleWeight(multiplier);
+		}
+		// also clears any rounding from the changes added up since
+		recount();
+	}
+
+	/**
+	 * Apply the multipliers pending in this folder and the folders above it,
+	 * so that the audio sources in it have their actual weights. Needed before
+	 * they are read or saved other than from the top playlist down. Only the
+	 * audio sources directly in those folders are visited.
+	 */
+	protected void settle() {
+		if (getParent() != null) {
+			getParent().settle();
+		}
+		push();
+	}
+
+	/**
+	 * Multiply the weight of every song in this folder by a value. Unlike a
+	 * song's rating, the change doesn't decay. It takes as long however many
+	 * songs the folder holds; they are only updated once they are saved.
+	 * 
+	 * @param modifier The multiplier, greater than 0.0.
+	 */
+	public void modifyWeight(double modifier) {
+		if (!(modifier > 0.0) || Double.isInfinite(modifier)) {
+			return;
+		}
+		balanceWeight(modifier);
+		// a single write, as songs are rated; otherwise saved with the folder above
+		Playlist parent = getParent();
+		if (WeightStore.isOpen() && parent != null && !parent.isLibrary) {
+			parent.settle();
+			store(WeightStore.folder(getFile().getParentFile()));
 		}
-		return count;
+	}
+
+	@Override
+	protected int getCount() {
+		return songCount;
 	}
 
 	@Override
 	protected double getWeight() {
-		double totalWeight = 0.0;
-		for (AudioSource as : audioSources) {
-			totalWeight += as.getWeight();
-		}
-		return totalWeight;
+		return songWeight;
 	}
 
 	@Override
 	protected void setWeight(double total) {
+		if (audioSources == null) {
+			if (getParent() != null) {
+				getParent().changed(0, total - songWeight);
+			}
+			songWeight = total;
+			return;
+		}
+		// there is nothing to share the weight among until songs are found
+		if (getWeight() <= 0.0) {
+			return;
+		}
 		double multiplier = total / getWeight();
 		balanceWeight(multiplier);
 	}
@@ -271,36 +920,42 @@ public final class Playlist extends AudioSource {
 	 * Used only on the top playlist to update all weights.
 	 */
 	protected void updateWeights() {
-		if (Double.isNaN(totalWeight)) {
+		// a library's folders are weighed against each other alone
+		if (Double.isNaN(totalWeight) && !isLibrary) {
 			try {
+				ArrayList<String> lines = new ArrayList<String>();
 				File parent = getFile().toPath().resolve("../awed.txt").normalize().toAbsolutePath().toFile();
-				if (parent.exists()) {
+				if (WeightStore.isOpen()) {
+					lines.addAll(WeightStore.lines(getFile().getParentFile(), Collections.singletonList(getName())));
+				} else if (parent.exists()) {
 					Scanner fileReader = new Scanner(parent);
 					while (fileReader.hasNextLine()) {
-						String line = fileReader.nextLine();
-						String parts[] = line.split(" ", 2);
-						if (parts.length != 2) {
-							continue;
-						}
-						File path = getFile().getParentFile().toPath().resolve(parts[1]).toFile();
-						if (path.getAbsoluteFile().equals(getFile())) {
-							double childWeight = 1.0;
-							try {
-								childWeight = Double.parseDouble(parts[0]);
-							} catch (Exception e) {
-								childWeight = 1.0;
-							}
-							totalWeight = childWeight;
-						}
+						lines.add(fileReader.nextLine());
 					}
 					fileReader.close();
 				}
+				for (String line : lines) {
+					String parts[] = line.split(" ", 2);
+					if (parts.length != 2) {
+						continue;
+					}
+					File path = getFile().getParentFile().toPath().resolve(parts[1]).toFile();
+					if (path.getAbsoluteFile().equals(getFile())) {
+						double childWeight = 1.0;
+						try {
+							childWeight = parseWeight(parts[0]);
+						} catch (Exception e) {
+							childWeight = 1.0;
+						}
+						totalWeight = childWeight;
+					}
+				}
 			} catch (Exception ex) {
 				Logger.log(ex.toString());
 			}
-			if (Double.isInfinite(totalWeight) || totalWeight < 0.0 || Double.isNaN(totalWeight)) {
-				totalWeight = 1.0;
-			}
+		}
+		if (Double.isInfinite(totalWeight) || totalWeight < 0.0 || Double.isNaN(totalWeight)) {
+			totalWeight = 1.0;
 		}
 		setWeight(totalWeight * getCount());
 		updateFile();
@@ -309,14 +964,29 @@ public final class Playlist extends AudioSource {
 
 	@Override
 	protected double updateCumulative() {
+		if (audioSources == null) {
+			return songWeight;
+		}
 		double cumulativeWeight = 0;
+		double weight = 0.0;
 		for (int i = 0; i < audioSources.size(); i++) {
 			AudioSource as = audioSources.get(i);
 			double temp = as.updateCumulative();
-			if (!Double.isNaN(temp)) {
+			// invalid folders are skipped when picking, so they get no share
+			if (as.isValid() && !Double.isNaN(temp)) {
 				cumulativeWeight += temp;
 			}
 			as.setCumulWeight(cumulativeWeight);
+			weight += as.getWeight();
+		}
+		// the songs' ratings decay as time passes, which the changes added up
+		// since the last pick don't include
+		if (!Double.isNaN(weight) && weight * pending != songWeight) {
+			double oldWeight = songWeight;
+			songWeight = weight * pending;
+			if (getParent() != null) {
+				getParent().changed(0, songWeight - oldWeight);
+			}
 		}
 		if (cumulativeWeight <= 0.0) {
 			cumulativeWeight = 1.0;
@@ -325,14 +995,68 @@ public final class Playlist extends AudioSource {
 			AudioSource as = audioSources.get(i);
 			as.setCumulWeight(as.getCumulWeight() / cumulativeWeight);
 		}
-		audioSources.get(audioSources.size() - 1).setCumulWeight(1.0);
+		// an empty folder has nothing to pick
+		if (!audioSources.isEmpty()) {
+			audioSources.get(audioSources.size() - 1).setCumulWeight(1.0);
+		}
+
+		// weighed against the audio sources beside this folder
+		return cumulativeWeight * pending;
+	}
 
-		return cumulativeWeight;
+	@Override
+	protected void addFiles(List<MusicFile> files) {
+		// songs in folders that aren't loaded are left out
+		if (isValid && audioSources != null) {
+			// so that the songs have their actual weights
+			push();
+			for (AudioSource as : audioSources) {
+				as.addFiles(files);
+			}
+		}
 	}
 
 	@Override
 	protected String getFileString() {
-		return Double.toString(getRelativeWeight()) + " " + getName();
+		// the folders of a library can be anywhere
+		String name = getParent() != null && getParent().isLibrary ? getFile().getPath() : getName();
+		// the count lets the folder be represented without loading it
+		if (!Double.isNaN(uncountedWeight)) {
+			// counted once it is loaded
+			return Double.toString(uncountedWeight) + " " + name;
+		}
+		return Double.toString(getRelativeWeight()) + ":" + getCount() + " " + name;
+	}
+
+	@Override
+	protected void store(int folder) {
+		if (!Double.isNaN(uncountedWeight)) {
+			WeightStore.put(folder, getName(), uncountedWeight, -1, 1.0, 0);
+		} else {
+			WeightStore.put(folder, getName(), getRelativeWeight(), getCount(), 1.0, 0);
+		}
+	}
+
+	@Override
+	public List<MusicFile> getFiles() {
+		expandAll();
+		settle();
+		return super.getFiles();
+	}
+
+	/**
+	 * Load this folder and every folder in it.
+	 */
+	protected void expandAll() {
+		if (audioSources == null) {
+			expand();
+			loading.loaded.put(this, Boolean.TRUE);
+		}
+		for (AudioSource as : audioSources) {
+			if (as instanceof Playlist) {
+				((Playlist) as).expandAll();
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,171 @@
+package WeightedPlaylist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import Logging.Logger;
+
+/**
+ * A cache of what was found about songs, by absolute path, kept in a file in
+ * the user's home directory. New records are appended as they are found, so
+ * that nothing is lost if the player is closed. Later records replace earlier
+ * ones; the file is rewritten once most of its records are out of date.
+ *
+ * @param <E>
+ *            What is cached about a song.
+ */
+final class RecordCache<E> {
+	/**
+	 * Reads and writes what is cached about a song, after its path.
+	 *
+	 * @param <E>
+	 *            What is cached about a song.
+	 */
+	interface Format<E> {
+		/**
+		 * Read one record.
+		 */
+		E read(DataInputStream in) throws IOException;
+
+		/**
+		 * Write one record.
+		 */
+		void write(DataOutputStream out, E entry) throws IOException;
+	}
+
+	/**
+	 * The name of the file in the user's home directory.
+	 */
+	private final String name;
+
+	/**
+	 * Identifies the file's format.
+	 */
+	private final int version;
+
+	/**
+	 * Reads and writes the records.
+	 */
+	private final Format<E> format;
+
+	/**
+	 * The file the records are kept in, found the first time it is needed.
+	 */
+	private File file = null;
+
+	/**
+	 * Appends new records to the file. Null until the file is read, or if it
+	 * can't be written.
+	 */
+	private DataOutputStream out = null;
+
+	/**
+	 * Creates a cache kept in the user's home directory.
+	 *
+	 * @param name
+	 *            The name of the file.
+	 * @param version
+	 *            Identifies the file's format. A file of another format is
+	 *            replaced.
+	 * @param format
+	 *            Reads and writes the records.
+	 */
+	RecordCache(String name, int version, Format<E> format) {
+		this.name = name;
+		this.version = version;
+		this.format = format;
+	}
+
+	/**
+	 * Read the cache. If most records are out of date or the file is damaged,
+	 * it is rewritten.
+	 *
+	 * @return The cached records by absolute path.
+	 */
+	synchronized Map<String, E> load() {
+		HashMap<String, E> entries = new HashMap<String, E>();
+		int records = 0;
+		boolean damaged = false;
+		if (file == null) {
+			file = new File(System.getProperty("user.home")).getAbsoluteFile().toPath().resolve(name).toFile();
+		}
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() == version) {
+					while (true) {
+						in.mark(1);
+						if (in.read() == -1) {
+							break;
+						}
+						in.reset();
+						String path = in.readUTF();
+						entries.put(path, format.read(in));
+						records++;
+					}
+				}
+			} catch (EOFException ex) {
+				// a record cut off when the player was closed
+				damaged = true;
+			} catch (IOException ex) {
+				Logger.log(ex.toString());
+				damaged = true;
+			}
+		}
+
+		try {
+			boolean rewrite = damaged || records == 0 || records > entries.size() * 2;
+			if (out == null || rewrite) {
+				if (out != null) {
+					out.close();
+				}
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !rewrite)));
+				if (rewrite) {
+					out.writeInt(version);
+					for (Map.Entry<String, E> entry : entries.entrySet()) {
+						out.writeUTF(entry.getKey());
+						format.write(out, entry.getValue());
+					}
+					out.flush();
+				}
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			out = null;
+		}
+		return entries;
+	}
+
+	/**
+	 * Append a record to the cache, so that it survives a restart. The file is
+	 * read first if it hasn't been.
+	 *
+	 * @param path
+	 *            The song's absolute path.
+	 * @param entry
+	 *            What was found about the song.
+	 */
+	synchronized void store(String path, E entry) {
+		if (out == null) {
+			load();
+		}
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeUTF(path);
+			format.write(out, entry);
+			out.flush();
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package WeightedPlaylist;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds songs and folders by name. Names are lower cased, stripped of accents
+ * and interned. Every run of three characters in a name points to the names
+ * that contain it, so that a query only looks at names sharing all of its
+ * runs. The first characters of each name and of each word in it are indexed
+ * separately, so that names starting with the query are found first and
+ * queries shorter than a run match the starts of words. The index is updated
+ * as sources are loaded and invalidated. Each primary source has an index of
+ * its own, so that loading one doesn't change what is found in another.
+ */
+public final class SearchIndex {
+	/**
+	 * The length of the runs of characters that are indexed.
+	 */
+	private static final int gramLength = 3;
+
+	/**
+	 * Marks the runs found anywhere in a name.
+	 */
+	private static final int anywhere = 0;
+
+	/**
+	 * Marks the runs at the start of a name.
+	 */
+	private static final int nameStart = 1;
+
+	/**
+	 * Marks the runs at the start of a word other than the first.
+	 */
+	private static final int wordStart = 2;
+
+	/**
+	 * The initial number of ids and runs that there is room for.
+	 */
+	private static final int initialCapacity = 1024;
+
+	/**
+	 * The sources in the index by id. Removed sources leave a null behind.
+	 */
+	private AudioSource[] sources = new AudioSource[initialCapacity];
+
+	/**
+	 * The searchable name of each source by id.
+	 */
+	private String[] keys = new String[initialCapacity];
+
+	/**
+	 * The number of ids handed out.
+	 */
+	private int size = 0;
+
+	/**
+	 * The number of ids whose source has been removed.
+	 */
+	private int removed = 0;
+
+	/**
+	 * The id of each source in the index.
+	 */
+	private final IdentityHashMap<AudioSource, Integer> ids = new IdentityHashMap<AudioSource, Integer>();
+
+	/**
+	 * Shares the searchable names which are the same, such as "disc 1".
+	 */
+	private final HashMap<String, String> interned = new HashMap<String, String>();
+
+	/**
+	 * The runs of characters in the open addressed table.
+	 */
+	private long[] grams = new long[initialCapacity];
+
+	/**
+	 * The names containing each run in {@link #grams}.
+	 */
+	private Postings[] postings = new Postings[initialCapacity];
+
+	/**
+	 * The number of runs in the table.
+	 */
+	private int gramCount = 0;
+
+	/**
+	 * The ids of the names containing a run, in increasing order.
+	 */
+	private static final class Postings {
+		/**
+		 * The ids, with room for more after the first {@link #size}.
+		 */
+		private int[] ids = new int[2];
+
+		/**
+		 * The number of ids in the list.
+		 */
+		private int size = 0;
+	}
+
+	/**
+	 * Find the songs and folders whose names contain the query. Names starting
+	 * with the query come first, then names with a word starting with it. A
+	 * query shorter than three characters only matches the starts of words.
+	 *
+	 * @param query
+	 *            The text to look for.
+	 * @param limit
+	 *            The most results returned.
+	 * @return The valid matching sources.
+	 */
+	public synchronized List<AudioSource> search(String query, int limit) {
+		String key = normalize(query);
+		ArrayList<AudioSource> results = new ArrayList<AudioSource>();
+		if (key.isEmpty() || limit <= 0) {
+			return results;
+		}
+
+		// every run of the query must be in a matching name
+		Postings[] runs = new Postings[Integer.max(0, key.length() - gramLength + 1)];
+		for (int i = 0; i < runs.length; i++) {
+			runs[i] = get(gram(key, i, gramLength, anywhere));
+			if (runs[i] == null) {
+				return results;
+			}
+		}
+		Arrays.sort(runs, (a, b) -> Integer.compare(a.size, b.size));
+
+		int prefix = Integer.min(key.length(), gramLength);
+		collect(get(gram(key, 0, prefix, nameStart)), runs, key, 0, results, limit);
+		collect(get(gram(key, 0, prefix, wordStart)), runs, key, 1, results, limit);
+		if (runs.length > 0) {
+			collect(runs[0], runs, key, 2, results, limit);
+		}
+		return results;
+	}
+
+	/**
+	 * Add a source to the index, unless it is already there.
+	 *
+	 * @param source
+	 *            The song or folder to add.
+	 */
+	protected synchronized void add(AudioSource source) {
+		if (ids.containsKey(source)) {
+			return;
+		}
+		String key = normalize(source.getName());
+		if (source instanceof MusicFile) {
+			int index = key.lastIndexOf('.');
+			if (index > 0) {
+				key = key.substring(0, index);
+			}
+		}
+		String shared = interned.putIfAbsent(key, key);
+		if (shared != null) {
+			key = shared;
+		}
+
+		if (size == sources.length) {
+			sources = Arrays.copyOf(sources, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		int id = size++;
+		sources[id] = source;
+		keys[id] = key;
+		ids.put(source, id);
+
+		for (int i = 0; i < key.length(); i++) {
+			if (i + gramLength <= key.length()) {
+				post(gram(key, i, gramLength, anywhere), id);
+			}
+			if (isWordStart(key, i)) {
+				for (int length = 1; length <= gramLength && i + length <= key.length(); length++) {
+					post(gram(key, i, length, i == 0 ? nameStart : wordStart), id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a source from the index. Its id is skipped by searches until the
+	 * index is compacted.
+	 *
+	 * @param source
+	 *            The song or folder to remove.
+	 */
+	protected synchronized void remove(AudioSource source) {
+		Integer id = ids.remove(source);
+		if (id == null) {
+			return;
+		}
+		sources[id] = null;
+		keys[id] = null;
+		removed++;
+		if (removed > initialCapacity && removed * 2 > size) {
+			compact();
+		}
+	}
+
+	/**
+	 * Remove every source from the index.
+	 */
+	protected synchronized void clear() {
+		sources = new AudioSource[initialCapacity];
+		keys = new String[initialCapacity];
+		size = 0;
+		removed = 0;
+		ids.clear();
+		interned.clear();
+		grams = new long[initialCapacity];
+		postings = new Postings[initialCapacity];
+		gramCount = 0;
+	}
+
+	/**
+	 * Add the matches of one rank to the results.
+	 *
+	 * @param driver
+	 *            The names that might match, or null if there are none.
+	 * @param runs
+	 *            The runs every match must contain, rarest first.
+	 * @param key
+	 *            The searchable query.
+	 * @param rank
+	 *            0 for names starting with the query, 1 for names with a word
+	 *            starting with it, 2 for the rest.
+	 */
+	private void collect(Postings driver, Postings[] runs, String key, int rank, List<AudioSource> results,
+			int limit) {
+		if (driver == null) {
+			return;
+		}
+		int[] positions = new int[runs.length];
+		candidates: for (int i = 0; i < driver.size && results.size() < limit; i++) {
+			int id = driver.ids[i];
+			for (int j = 0; j < runs.length; j++) {
+				if (runs[j] == driver) {
+					continue;
+				}
+				positions[j] = seek(runs[j], positions[j], id);
+				if (positions[j] == runs[j].size) {
+					return;
+				}
+				if (runs[j].ids[positions[j]] != id) {
+					continue candidates;
+				}
+			}
+			AudioSource source = sources[id];
+			if (source != null && source.isValid() && rank(keys[id], key) == rank) {
+				results.add(source);
+			}
+		}
+	}
+
+	/**
+	 * How well a name matches a query.
+	 *
+	 * @return 0 if the name starts with the query, 1 if a word does, 2 if the
+	 *         query is elsewhere in the name and 3 if it isn't in the name.
+	 */
+	private static int rank(String name, String key) {
+		int index = name.indexOf(key);
+		if (index < 0) {
+			return 3;
+		} else if (index == 0) {
+			return 0;
+		}
+		while (index > 0) {
+			if (isWordStart(name, index)) {
+				return 1;
+			}
+			index = name.indexOf(key, index + 1);
+		}
+		return 2;
+	}
+
+	/**
+	 * True iff a word of the name starts at the index.
+	 */
+	private static boolean isWordStart(String name, int index) {
+		if (Character.isWhitespace(name.charAt(index))) {
+			return false;
+		}
+		return index == 0 || !Character.isLetterOrDigit(name.charAt(index - 1));
+	}
+
+	/**
+	 * The first position in a list at or after start whose id is at least id.
+	 */
+	private static int seek(Postings list, int start, int id) {
+		// gallop, then search the last step
+		int step = 1;
+		int low = start;
+		int high = start;
+		while (high < list.size && list.ids[high] < id) {
+			low = high + 1;
+			high += step;
+			step *= 2;
+		}
+		high = Integer.min(high, list.size);
+		int index = Arrays.binarySearch(list.ids, low, high, id);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/**
+	 * Renumber the sources so that removed ids are not kept in memory.
+	 */
+	private void compact() {
+		AudioSource[] old = Arrays.copyOf(sources, size);
+		clear();
+		for (AudioSource source : old) {
+			if (source != null) {
+				add(source);
+			}
+		}
+	}
+
+	/**
+	 * A run of up to three characters of a name, and where it was found.
+	 */
+	private static long gram(String key, int index, int length, int where) {
+		long gram = ((long) where << 50) | ((long) length << 48);
+		for (int i = 0; i < length; i++) {
+			gram |= (long) key.charAt(index + i) << (32 - 16 * i);
+		}
+		return gram;
+	}
+
+	/**
+	 * The slot of a run in the table, or the empty slot where it belongs.
+	 */
+	private int slot(long gram) {
+		int mask = grams.length - 1;
+		long hash = gram * 0x9e3779b97f4a7c15L;
+		int slot = (int) (hash >>> 32) & mask;
+		while (postings[slot] != null && grams[slot] != gram) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * The names containing a run, or null if there are none.
+	 */
+	private Postings get(long gram) {
+		return postings[slot(gram)];
+	}
+
+	/**
+	 * Add an id to the names containing a run.
+	 */
+	private void post(long gram, int id) {
+		int slot = slot(gram);
+		Postings list = postings[slot];
+		if (list == null) {
+			if ((gramCount + 1) * 2 > grams.length) {
+				grow();
+				slot = slot(gram);
+			}
+			list = new Postings();
+			grams[slot] = gram;
+			postings[slot] = list;
+			gramCount++;
+		}
+		// a run repeated in the name is only listed once
+		if (list.size > 0 && list.ids[list.size - 1] == id) {
+			return;
+		}
+		if (list.size == list.ids.length) {
+			list.ids = Arrays.copyOf(list.ids, list.size * 2);
+		}
+		list.ids[list.size++] = id;
+	}
+
+	/**
+	 * Double the size of the table of runs.
+	 */
+	private void grow() {
+		long[] oldGrams = grams;
+		Postings[] oldPostings = postings;
+		grams = new long[oldGrams.length * 2];
+		postings = new Postings[oldPostings.length * 2];
+		for (int i = 0; i < oldGrams.length; i++) {
+			if (oldPostings[i] != null) {
+				int slot = slot(oldGrams[i]);
+				grams[slot] = oldGrams[i];
+				postings[slot] = oldPostings[i];
+			}
+		}
+	}
+
+	/**
+	 * The searchable form of a name.
+	 */
+	private static String normalize(String name) {
+		boolean ascii = true;
+		for (int i = 0; i < name.length() && ascii; i++) {
+			ascii = name.charAt(i) < 0x80;
+		}
+		if (!ascii) {
+			String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+			StringBuilder key = new StringBuilder(decomposed.length());
+			for (int i = 0; i < decomposed.length(); i++) {
+				char c = decomposed.charAt(i);
+				if (Character.getType(c) != Character.NON_SPACING_MARK) {
+					key.append(c);
+				}
+			}
+			name = key.toString();
+		}
+		return name.toLowerCase(Locale.ROOT).trim();
+	}
+
+	/**
+	 * Creates an empty index for a primary source.
+	 */
+	SearchIndex() {
+	}
+}
@@ -0,0 +1,343 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Checks that ways of picking songs honor the songs' weights, and measures how
+ * fast they are. Many songs are picked from synthetic libraries, and how often
+ * each song was picked is compared with its share of the total weight by a
+ * chi-square test. A song may only be picked if it is valid and in valid
+ * folders; songs without weight should never be picked. The libraries are
+ * made of empty files in a temporary folder, which is deleted afterwards.
+ * Another way of picking songs is checked by adding it to
+ * {@link #samplers}.
+ *
+ * Usage: SelectionBenchmark [picks] [seed]
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class SelectionBenchmark {
+	/**
+	 * A way of picking songs, to be checked.
+	 */
+	public interface Sampler {
+		/**
+		 * Pick a song, or null if none could be picked.
+		 */
+		MusicFile pick();
+	}
+
+	/**
+	 * The number of picks from each library unless given on the command
+	 * line.
+	 */
+	private static final long defaultPicks = 20000000L;
+
+	/**
+	 * The most picks used to measure the speed of picking.
+	 */
+	private static final long timedPicks = 2000000L;
+
+	/**
+	 * Songs expected to be picked fewer times than this are tested together,
+	 * so that the chi-square test holds.
+	 */
+	private static final double minExpected = 5.0;
+
+	/**
+	 * The p-value under which picks are reported not to honor the weights.
+	 */
+	private static final double significance = 0.001;
+
+	/**
+	 * The ways of picking songs which are checked, by name, each made for the
+	 * playlist it picks from.
+	 */
+	private static final Map<String, Function<Playlist, Sampler>> samplers =
+			new LinkedHashMap<String, Function<Playlist, Sampler>>();
+
+	static {
+		// the selection used by the player, minus the rebalancing done first
+		samplers.put("residual", playlist -> () -> playlist.pick(AudioSource.random()));
+		samplers.put("flat", SelectionBenchmark::flat);
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The number of picks from each library and the seed used to
+	 *            make the libraries.
+	 */
+	public static void main(String[] args) throws IOException {
+		long picks = args.length > 0 ? Long.parseLong(args[0]) : defaultPicks;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		Path root = Files.createTempDirectory("awed");
+		try {
+			Random random = new Random(seed);
+			check("even", createEven(root.resolve("even"), 3, 10, 10), picks);
+
+			Path rated = createEven(root.resolve("rated"), 3, 10, 10);
+			Playlist playlist = AudioSource.getPrimarySource(rated.toFile());
+			for (MusicFile mf : playlist.getFiles()) {
+				double roll = random.nextDouble();
+				// favored, skipped, skipped twice and never played again
+				if (roll < 0.1) {
+					mf.modifyWeight(2.0);
+				} else if (roll < 0.25) {
+					mf.modifyWeight(0.5);
+				} else if (roll < 0.3) {
+					mf.modifyWeight(0.25);
+				} else if (roll < 0.32) {
+					mf.modifyWeight(0.0);
+				}
+			}
+			// as the player does before each pick
+			playlist.updateWeights();
+			check("rated", playlist, picks);
+
+			Path ragged = root.resolve("ragged");
+			createRagged(ragged, 4, random);
+			check("ragged", ragged, picks);
+		} finally {
+			delete(root.toFile());
+		}
+	}
+
+	/**
+	 * Load a library and check every sampler on it.
+	 */
+	private static void check(String name, Path library, long picks) {
+		check(name, AudioSource.getPrimarySource(library.toFile()), picks);
+	}
+
+	/**
+	 * Check every sampler on a loaded library.
+	 */
+	private static void check(String name, Playlist playlist, long picks) {
+		List<MusicFile> songs = playlist.getFiles();
+		IdentityHashMap<Playlist, Boolean> folders = new IdentityHashMap<Playlist, Boolean>();
+		for (MusicFile mf : songs) {
+			folders.put(mf.getParent(), Boolean.TRUE);
+		}
+		System.out.println(String.format("%s: %d songs in %d folders", name, songs.size(), folders.size()));
+		for (Map.Entry<String, Function<Playlist, Sampler>> sampler : samplers.entrySet()) {
+			System.out.println(String.format("  %-9s %s", sampler.getKey(),
+					validate(sampler.getValue().apply(playlist), songs, picks)));
+		}
+	}
+
+	/**
+	 * Pick songs and compare how often each was picked with its share of the
+	 * total weight.
+	 *
+	 * @param sampler
+	 *            Picks the songs.
+	 * @param songs
+	 *            The songs which may be picked.
+	 * @param picks
+	 *            The number of picks.
+	 * @return The speed of picking and how far the picks were from the
+	 *         weights.
+	 */
+	public static String validate(Sampler sampler, List<MusicFile> songs, long picks) {
+		IdentityHashMap<MusicFile, Integer> indices = new IdentityHashMap<MusicFile, Integer>();
+		double[] expected = new double[songs.size()];
+		double total = 0.0;
+		for (int i = 0; i < songs.size(); i++) {
+			indices.put(songs.get(i), i);
+			expected[i] = songs.get(i).getWeight();
+			total += expected[i];
+		}
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = expected[i] / total * picks;
+		}
+
+		// warms up, then times picking alone
+		long timed = Long.min(picks, timedPicks);
+		for (long i = 0; i < timed; i++) {
+			sampler.pick();
+		}
+		long start = System.nanoTime();
+		for (long i = 0; i < timed; i++) {
+			sampler.pick();
+		}
+		double nanos = (double) (System.nanoTime() - start) / timed;
+
+		long[] observed = new long[songs.size()];
+		long unexpected = 0;
+		for (long i = 0; i < picks; i++) {
+			Integer index = indices.get(sampler.pick());
+			if (index == null) {
+				unexpected++;
+			} else {
+				observed[index]++;
+			}
+		}
+
+		// songs without weight should never be picked
+		double chiSquare = 0.0;
+		double distance = 0.0;
+		int bins = 0;
+		double pooledExpected = 0.0;
+		long pooledObserved = 0;
+		for (int i = 0; i < expected.length; i++) {
+			distance += Math.abs(observed[i] - expected[i]);
+			if (expected[i] == 0.0) {
+				unexpected += observed[i];
+			} else if (expected[i] < minExpected) {
+				pooledExpected += expected[i];
+				pooledObserved += observed[i];
+			} else {
+				chiSquare += square(observed[i] - expected[i]) / expected[i];
+				bins++;
+			}
+		}
+		if (pooledExpected > 0.0) {
+			chiSquare += square(pooledObserved - pooledExpected) / pooledExpected;
+			bins++;
+		}
+		distance = (distance + unexpected) / 2.0 / picks;
+		double p = bins > 1 ? chiSquarePValue(chiSquare, bins - 1) : 1.0;
+
+		return String.format("%8.1f ns/pick %6.2f M picks/s  chi2 %12.1f df %5d  p %9.3g  TVD %.5f  bad %d  %s",
+				nanos, 1e3 / nanos, chiSquare, bins - 1, p, distance, unexpected,
+				p < significance || unexpected > 0 ? "FAIL" : "ok");
+	}
+
+	/**
+	 * A sampler which picks from every song at once by binary search over
+	 * their cumulative weights, ignoring folders. Used as a reference.
+	 */
+	private static Sampler flat(Playlist playlist) {
+		List<MusicFile> songs = playlist.getFiles();
+		MusicFile[] files = songs.toArray(new MusicFile[songs.size()]);
+		double[] cumulative = new double[files.length];
+		double total = 0.0;
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].getWeight();
+			cumulative[i] = total;
+		}
+		double sum = total;
+		return () -> {
+			int index = Arrays.binarySearch(cumulative, AudioSource.random() * sum);
+			if (index < 0) {
+				index = -index - 1;
+			}
+			// skip songs without weight sharing the same cumulative weight
+			while (index < files.length - 1 && files[index].getWeight() == 0.0) {
+				index++;
+			}
+			return index < files.length ? files[index] : null;
+		};
+	}
+
+	/**
+	 * The chance of a chi-square statistic this large or larger if the picks
+	 * honor the weights, by the Wilson-Hilferty approximation.
+	 */
+	private static double chiSquarePValue(double chiSquare, int degrees) {
+		double variance = 2.0 / (9.0 * degrees);
+		double z = (Math.cbrt(chiSquare / degrees) - (1.0 - variance)) / Math.sqrt(variance);
+		return 0.5 * erfc(z / Math.sqrt(2.0));
+	}
+
+	/**
+	 * The complementary error function, to within 1.2e-7.
+	 */
+	private static double erfc(double x) {
+		double t = 1.0 / (1.0 + 0.5 * Math.abs(x));
+		double y = t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+				+ t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+						+ t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? y : 2.0 - y;
+	}
+
+	/**
+	 * The square of a number.
+	 */
+	private static double square(double x) {
+		return x * x;
+	}
+
+	/**
+	 * Create a tree of folders with the same number of songs in each, all of
+	 * the same weight.
+	 *
+	 * @return The tree.
+	 */
+	private static Path createEven(Path dir, int depth, int folders, int songs) throws IOException {
+		Files.createDirectories(dir);
+		for (int i = 0; i < songs; i++) {
+			Files.createFile(dir.resolve("song " + i + ".mp3"));
+		}
+		if (depth > 1) {
+			for (int i = 0; i < folders; i++) {
+				createEven(dir.resolve("folder " + i), depth - 1, folders, songs);
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Create a tree of folders of random sizes, some with too few songs to be
+	 * valid, with remembered weights spread over a wide range. Some songs
+	 * have no weight and some are invalid.
+	 */
+	private static void createRagged(Path dir, int depth, Random random) throws IOException {
+		Files.createDirectories(dir);
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(dir.resolve("awed.txt")))) {
+			int folders = depth > 1 ? random.nextInt(6) : 0;
+			for (int i = 0; i < folders; i++) {
+				String name = "folder " + i;
+				createRagged(dir.resolve(name), depth - 1, random);
+				pw.println(Math.exp(random.nextGaussian()) + " " + name);
+			}
+			int songs = random.nextInt(random.nextBoolean() ? 4 : 16);
+			for (int i = 0; i < songs; i++) {
+				String name = "song " + i + ".mp3";
+				Files.createFile(dir.resolve(name));
+				double roll = random.nextDouble();
+				if (roll < 0.03) {
+					pw.println("NaN " + name);
+				} else if (roll < 0.06) {
+					pw.println("0.0 " + name);
+				} else {
+					pw.println(Math.exp(1.5 * random.nextGaussian()) + " " + name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete a file or folder and everything in it.
+	 */
+	private static void delete(File file) {
+		List<File> files = new ArrayList<File>();
+		files.add(file);
+		for (int i = 0; i < files.size(); i++) {
+			File[] children = files.get(i).listFiles();
+			if (children != null) {
+				Collections.addAll(files, children);
+			}
+		}
+		for (int i = files.size() - 1; i >= 0; i--) {
+			files.get(i).delete();
+		}
+	}
+}
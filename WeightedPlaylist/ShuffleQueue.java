@@ -0,0 +1,221 @@
+package WeightedPlaylist;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Picks songs from a playlist ahead of time in the background, so that
+ * changing songs only takes the next pick. Picks are made a few at a time
+ * while holding the playlist's lock; anything else that changes the playlist
+ * while the queue is running must hold the lock too, and call
+ * {@link #invalidate()} if it changes weights.
+ * <p>
+ * Picks are drawn from the weights as they were last updated, which happens
+ * once for each song taken. Nothing is saved while picking.
+ */
+public final class ShuffleQueue {
+	/**
+	 * The number of picks kept ready.
+	 */
+	private static final int bufferSize = 256;
+
+	/**
+	 * The number of picks made each time the lock is taken.
+	 */
+	private static final int chunkSize = 16;
+
+	/**
+	 * The number of picks kept when weights change, since they may already
+	 * be copied ahead of time.
+	 */
+	private static final int keptPicks = 4;
+
+	/**
+	 * The number of recent picks a new pick may not be a copy of.
+	 */
+	private static final int repeatWindow = 2;
+
+	/**
+	 * The number of times a pick is retried before giving up.
+	 */
+	private static final int maxTries = 10;
+
+	/**
+	 * The playlist the songs are picked from. Also the lock guarding it.
+	 */
+	private final Playlist playlist;
+
+	/**
+	 * The picks ready to be played, in order. Guarded by this queue.
+	 */
+	private final ArrayDeque<MusicFile> picks = new ArrayDeque<MusicFile>();
+
+	/**
+	 * The last picks made, which the next pick may not repeat. Guarded by
+	 * this queue.
+	 */
+	private final ArrayDeque<MusicFile> recent = new ArrayDeque<MusicFile>();
+
+	/**
+	 * Counts the times the picks were invalidated, so that picks made from
+	 * old weights are thrown away. Guarded by this queue.
+	 */
+	private long generation = 0;
+
+	/**
+	 * True once the queue has been stopped. Guarded by this queue.
+	 */
+	private boolean stopped = false;
+
+	/**
+	 * Start picking songs from a playlist.
+	 *
+	 * @param playlist
+	 *            The playlist the songs are picked from.
+	 */
+	public ShuffleQueue(Playlist playlist) {
+		this.playlist = playlist;
+		Thread thread = new Thread(this::fill, "Shuffle");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Take the next song to play, and update the playlist's weights as
+	 * picking it now would have. If no pick is ready, one is made now.
+	 *
+	 * @return A valid song, or null if the playlist has no songs left.
+	 */
+	public MusicFile take() {
+		MusicFile next = null;
+		synchronized (this) {
+			while (next == null && !picks.isEmpty()) {
+				MusicFile mf = picks.poll();
+				// picks can be removed or invalidated after they were made
+				if (isPlayable(mf)) {
+					next = mf;
+				}
+			}
+			notifyAll();
+		}
+		synchronized (playlist) {
+			if (next == null) {
+				return playlist.getSong();
+			}
+			playlist.taken(next);
+			return next;
+		}
+	}
+
+	/**
+	 * Throw away the picks made from the old weights, except the next few,
+	 * and start picking again. Call after changing weights.
+	 */
+	public synchronized void invalidate() {
+		while (picks.size() > keptPicks) {
+			picks.removeLast();
+		}
+		recent.clear();
+		Iterator<MusicFile> last = picks.descendingIterator();
+		while (last.hasNext() && recent.size() < repeatWindow) {
+			recent.addFirst(last.next());
+		}
+		generation++;
+		notifyAll();
+	}
+
+	/**
+	 * Stop picking songs.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		picks.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Keep the picks topped up until the queue is stopped.
+	 */
+	private void fill() {
+		ArrayList<MusicFile> chunk = new ArrayList<MusicFile>(chunkSize);
+		ArrayList<MusicFile> last = new ArrayList<MusicFile>(repeatWindow);
+		while (true) {
+			long started = 0;
+			synchronized (this) {
+				try {
+					while (!stopped && picks.size() >= bufferSize) {
+						wait();
+					}
+				} catch (InterruptedException ex) {
+					return;
+				}
+				if (stopped) {
+					return;
+				}
+				started = generation;
+				last.clear();
+				last.addAll(recent);
+			}
+
+			chunk.clear();
+			synchronized (playlist) {
+				if (!playlist.isValid()) {
+					stop();
+					return;
+				}
+				for (int i = 0; i < chunkSize; i++) {
+					MusicFile mf = pick(last);
+					if (mf != null) {
+						chunk.add(mf);
+						last.add(mf);
+						if (last.size() > repeatWindow) {
+							last.remove(0);
+						}
+					}
+				}
+			}
+
+			synchronized (this) {
+				if (started == generation) {
+					picks.addAll(chunk);
+					recent.clear();
+					recent.addAll(last);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pick a playable song which isn't a copy of the last picks, by the
+	 * weights as they were last updated.
+	 *
+	 * @param last
+	 *            The last picks.
+	 * @return The song, or null if none was found.
+	 */
+	private MusicFile pick(ArrayList<MusicFile> last) {
+		tries: for (int i = 0; i < maxTries; i++) {
+			MusicFile mf = playlist.pick(AudioSource.random());
+			if (mf == null || !isPlayable(mf)) {
+				continue;
+			}
+			for (MusicFile other : last) {
+				if (mf.isCopyOf(other)) {
+					continue tries;
+				}
+			}
+			return mf;
+		}
+		return null;
+	}
+
+	/**
+	 * True iff a song can still be picked: it is valid and hasn't been given
+	 * no weight, such as by never playing it again.
+	 */
+	private static boolean isPlayable(MusicFile mf) {
+		return mf.isValid() && mf.getWeight() > 0.0;
+	}
+}
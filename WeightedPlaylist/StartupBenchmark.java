@@ -0,0 +1,187 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the time from opening a library until the first song could start
+ * playing: the songs before, during and after it are picked, and its file is
+ * opened. Audio isn't decoded. The library is made of small files in a
+ * temporary folder, which is deleted afterwards. It is opened without any
+ * remembered counts, fully and then progressively, and progressively again
+ * once the counts are remembered.
+ *
+ * Usage: StartupBenchmark [songs]
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class StartupBenchmark {
+	/**
+	 * The number of songs unless given on the command line.
+	 */
+	private static final int defaultSongs = 100000;
+
+	/**
+	 * The songs in each album.
+	 */
+	private static final int songsPerAlbum = 12;
+
+	/**
+	 * The albums by each artist.
+	 */
+	private static final int albumsPerArtist = 8;
+
+	/**
+	 * The number of songs picked before the first one plays.
+	 */
+	private static final int picks = 3;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The number of songs.
+	 */
+	public static void main(String[] args) throws Exception {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : defaultSongs;
+
+		Path root = Files.createTempDirectory("awed");
+		try {
+			long start = System.nanoTime();
+			int folders = create(root, songs);
+			System.out.println(String.format("%d songs in %d folders, created in %.1f s", songs, folders,
+					(System.nanoTime() - start) / 1e9));
+
+			forget(root.toFile());
+			System.out.println(String.format("full, no counts:        first song %10.1f ms", full(root.toFile())));
+			forget(root.toFile());
+			double[] times = progressive(root.toFile());
+			System.out.println(String.format("progressive, no counts: first song %10.1f ms, scanned %10.1f ms",
+					times[0], times[1]));
+			times = progressive(root.toFile());
+			System.out.println(String.format("progressive, counted:   first song %10.1f ms, scanned %10.1f ms",
+					times[0], times[1]));
+		} finally {
+			delete(root.toFile());
+		}
+	}
+
+	/**
+	 * Open the library fully and pick the first songs.
+	 *
+	 * @return The milliseconds until the first song could play.
+	 */
+	private static double full(File root) throws IOException {
+		long start = System.nanoTime();
+		Playlist playlist = AudioSource.getPrimarySource(root, false);
+		play(playlist);
+		return (System.nanoTime() - start) / 1e6;
+	}
+
+	/**
+	 * Open the library progressively and pick the first songs as soon as
+	 * there are enough, then wait for the scan to end.
+	 *
+	 * @return The milliseconds until the first song could play and until the
+	 *         scan ended.
+	 */
+	private static double[] progressive(File root) throws Exception {
+		long start = System.nanoTime();
+		Playlist playlist = AudioSource.getPrimarySource(root, false, true);
+		CountDownLatch ready = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		new LibraryScanner(playlist, Runnable::run, ready::countDown, done::countDown);
+		ready.await();
+		synchronized (playlist) {
+			play(playlist);
+		}
+		double first = (System.nanoTime() - start) / 1e6;
+		done.await();
+		return new double[] { first, (System.nanoTime() - start) / 1e6 };
+	}
+
+	/**
+	 * Pick the first songs and open the file of the one played first.
+	 */
+	private static void play(Playlist playlist) throws IOException {
+		MusicFile first = null;
+		for (int i = 0; i < picks; i++) {
+			MusicFile mf = playlist.getSong();
+			if (i == 1) {
+				first = mf;
+			}
+		}
+		try (FileInputStream in = new FileInputStream(first.getFile())) {
+			in.read();
+		}
+	}
+
+	/**
+	 * Create a library of artist folders holding album folders holding songs.
+	 *
+	 * @return The number of folders created.
+	 */
+	private static int create(Path root, int songs) throws IOException {
+		byte[] song = new byte[1024];
+		int folders = 0;
+		Path artist = null;
+		Path album = null;
+		for (int i = 0; i < songs; i++) {
+			if (i % (songsPerAlbum * albumsPerArtist) == 0) {
+				artist = Files.createDirectory(root.resolve("Artist " + i / (songsPerAlbum * albumsPerArtist)));
+				folders++;
+			}
+			if (i % songsPerAlbum == 0) {
+				album = Files.createDirectory(artist.resolve("Album " + i / songsPerAlbum));
+				folders++;
+			}
+			Files.write(album.resolve(String.format("%02d - Song %d.mp3", i % songsPerAlbum + 1, i)), song);
+		}
+		return folders;
+	}
+
+	/**
+	 * Delete the preferences of every folder, so that no counts are
+	 * remembered.
+	 */
+	private static void forget(File root) {
+		for (File file : walk(root)) {
+			if (file.getName().equals("awed.txt")) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Delete a file or folder and everything in it.
+	 */
+	private static void delete(File file) {
+		List<File> files = walk(file);
+		for (int i = files.size() - 1; i >= 0; i--) {
+			files.get(i).delete();
+		}
+	}
+
+	/**
+	 * A file or folder and everything in it, each folder before its contents.
+	 */
+	private static List<File> walk(File file) {
+		List<File> files = new ArrayList<File>();
+		files.add(file);
+		for (int i = 0; i < files.size(); i++) {
+			File[] children = files.get(i).listFiles();
+			if (children != null) {
+				Collections.addAll(files, children);
+			}
+		}
+		return files;
+	}
+}
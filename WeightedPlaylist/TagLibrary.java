@@ -0,0 +1,345 @@
+package WeightedPlaylist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Logging.Logger;
+
+/**
+ * Keeps the tags of every song in memory. The library is read in the
+ * background, in parallel, and the results are cached in the user's home
+ * directory by path, size and modification time. The cache holds the files of
+ * every library opened. Libraries are scanned one at a time; opening another
+ * stops the scan of the one before once it has saved what it read.
+ */
+public final class TagLibrary {
+	/**
+	 * Identifies the cache file's format.
+	 */
+	private static final int cacheVersion = 0x61777431;
+
+	/**
+	 * The tags of each song by absolute path.
+	 */
+	private static final Map<String, Tags> tags = new ConcurrentHashMap<String, Tags>();
+
+	/**
+	 * Guards {@link #generation} and {@link #worker}.
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Counts the scans started. A scan stops reading once another one starts.
+	 */
+	private static int generation = 0;
+
+	/**
+	 * Runs the scans one at a time, so that each reads the cache the one
+	 * before saved.
+	 */
+	private static ExecutorService worker = null;
+
+	/**
+	 * A cached set of tags.
+	 */
+	private static final class Entry {
+		/**
+		 * The size of the song's file when its tags were read.
+		 */
+		private long size = 0;
+
+		/**
+		 * The time the song's file was last modified when its tags were read.
+		 */
+		private long modified = 0;
+
+		/**
+		 * The tags read from the song's file.
+		 */
+		private Tags tags = Tags.none;
+	}
+
+	/**
+	 * Start reading the tags of every song in a playlist.
+	 *
+	 * @param playlist
+	 *            The playlist whose songs are read.
+	 */
+	public static void scan(Playlist playlist) {
+		ArrayList<MusicFile> files = new ArrayList<MusicFile>();
+		playlist.addFiles(files);
+		synchronized (lock) {
+			int scan = ++generation;
+			worker().execute(() -> scan(files, scan));
+		}
+	}
+
+	/**
+	 * Also read the tags of songs found since the scan started, such as those
+	 * of folders loaded later, once it is done.
+	 *
+	 * @param files
+	 *            The songs to read.
+	 */
+	public static void add(List<MusicFile> files) {
+		ArrayList<MusicFile> unread = new ArrayList<MusicFile>();
+		for (MusicFile mf : files) {
+			if (!tags.containsKey(mf.getFile().getPath())) {
+				unread.add(mf);
+			}
+		}
+		if (unread.isEmpty()) {
+			return;
+		}
+		synchronized (lock) {
+			int scan = generation;
+			worker().execute(() -> scan(unread, scan));
+		}
+	}
+
+	/**
+	 * The thread scanning songs, started the first time it is needed.
+	 */
+	private static ExecutorService worker() {
+		if (worker == null) {
+			worker = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Tags");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+		}
+		return worker;
+	}
+
+	/**
+	 * True iff a scan has been replaced by a newer one.
+	 */
+	private static boolean isStale(int scan) {
+		synchronized (lock) {
+			return scan != generation;
+		}
+	}
+
+	/**
+	 * The tags of a song. If the song hasn't been read yet, only its tags are
+	 * read now.
+	 *
+	 * @param file
+	 *            The song's file.
+	 * @return The song's tags; empty if it has none.
+	 */
+	protected static Tags get(File file) {
+		Tags found = tags.get(file.getPath());
+		if (found == null) {
+			found = read(file);
+			tags.put(file.getPath(), found);
+		}
+		return found;
+	}
+
+	/**
+	 * Read the tags of a file, logging any failure.
+	 */
+	private static Tags read(File file) {
+		try {
+			return TagReader.read(file);
+		} catch (Exception ex) {
+			Logger.log(ex.toString());
+			return Tags.none;
+		}
+	}
+
+	/**
+	 * Read the tags of files which aren't cached, then update the cache with
+	 * those read, even if another scan started meanwhile.
+	 */
+	private static void scan(List<MusicFile> files, int scan) {
+		if (isStale(scan)) {
+			return;
+		}
+		File cacheFile = new File(System.getProperty("user.home")).getAbsoluteFile().toPath().resolve("awed.tags")
+				.toFile();
+		Map<String, Entry> cached = load(cacheFile);
+
+		Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (MusicFile mf : files) {
+			File file = mf.getFile();
+			Entry entry = new Entry();
+			entry.size = file.length();
+			entry.modified = file.lastModified();
+			Entry old = cached.get(file.getPath());
+			if (old != null && old.size == entry.size && old.modified == entry.modified) {
+				entry.tags = old.tags;
+				tags.putIfAbsent(file.getPath(), entry.tags);
+				entries.put(file.getPath(), entry);
+			} else {
+				tasks.add(() -> {
+					if (isStale(scan)) {
+						return null;
+					}
+					entry.tags = read(file);
+					tags.put(file.getPath(), entry.tags);
+					entries.put(file.getPath(), entry);
+					return null;
+				});
+			}
+		}
+
+		if (!tasks.isEmpty()) {
+			AtomicInteger counter = new AtomicInteger();
+			ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					runnable -> {
+						Thread thread = new Thread(runnable, "Tags " + counter.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					});
+			try {
+				pool.invokeAll(tasks);
+			} catch (InterruptedException ex) {
+				return;
+			} finally {
+				pool.shutdown();
+			}
+		}
+		// files of other libraries are kept unless they were deleted
+		int count = cached.size();
+		cached.keySet().removeIf(TagLibrary::isDeleted);
+		boolean changed = !tasks.isEmpty() || cached.size() != count;
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			changed |= cached.put(entry.getKey(), entry.getValue()) == null;
+		}
+		if (changed) {
+			save(cacheFile, cached);
+		}
+	}
+
+	/**
+	 * Read the cached tags.
+	 *
+	 * @return The cached entries by absolute path.
+	 */
+	private static Map<String, Entry> load(File cacheFile) {
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		if (!cacheFile.exists()) {
+			return entries;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != cacheVersion) {
+				return entries;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				Entry entry = new Entry();
+				entry.size = in.readLong();
+				entry.modified = in.readLong();
+				String title = readText(in);
+				String artist = readText(in);
+				String album = readText(in);
+				double duration = in.readDouble();
+				if (title != null || artist != null || album != null || !Double.isNaN(duration)) {
+					entry.tags = new Tags(title, artist, album, duration);
+				}
+				entries.put(path, entry);
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+		return entries;
+	}
+
+	/**
+	 * True iff a cached file is gone from a folder which still exists. Files
+	 * on drives which aren't mounted are kept.
+	 */
+	private static boolean isDeleted(String path) {
+		File file = new File(path);
+		File folder = file.getParentFile();
+		return folder != null && folder.isDirectory() && !file.exists();
+	}
+
+	/**
+	 * Replace the cache with the given tags.
+	 *
+	 * @param entries
+	 *            The tags by absolute path.
+	 */
+	private static void save(File cacheFile, Map<String, Entry> entries) {
+		// named apart from any other copy of the player saving at the same time
+		File temporary = null;
+		try {
+			temporary = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp")
+					.toFile();
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			return;
+		}
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(cacheVersion);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				Entry value = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(value.size);
+				out.writeLong(value.modified);
+				writeText(out, value.tags.getTitle());
+				writeText(out, value.tags.getArtist());
+				writeText(out, value.tags.getAlbum());
+				out.writeDouble(value.tags.getDuration());
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			temporary.delete();
+			return;
+		}
+		try {
+			Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Read text which may be missing.
+	 */
+	private static String readText(DataInputStream in) throws IOException {
+		String text = in.readUTF();
+		return text.isEmpty() ? null : text;
+	}
+
+	/**
+	 * Write text which may be missing.
+	 */
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		out.writeUTF(text == null ? "" : text);
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private TagLibrary() {
+	}
+}
@@ -0,0 +1,601 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads tags from ID3v2, FLAC, Ogg and MP4 files. Only the regions of the
+ * file which hold tags are mapped into memory; the audio is never read.
+ */
+final class TagReader {
+	/**
+	 * The number of bytes mapped to recognize a file and find its first audio
+	 * frame.
+	 */
+	private static final int probeSize = 16 * 1024;
+
+	/**
+	 * The most bytes of tags that are mapped from one file.
+	 */
+	private static final int maxTagSize = 64 * 1024 * 1024;
+
+	/**
+	 * The longest tag value kept.
+	 */
+	private static final int maxLength = 1024;
+
+	/**
+	 * MPEG-1 layer III bit rates in kbit/s.
+	 */
+	private static final int[] mpeg1Rates = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 };
+
+	/**
+	 * MPEG-2 and 2.5 layer III bit rates in kbit/s.
+	 */
+	private static final int[] mpeg2Rates = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 };
+
+	/**
+	 * MPEG-1 sample rates. MPEG-2 halves them and MPEG-2.5 quarters them.
+	 */
+	private static final int[] sampleRates = { 44100, 48000, 32000 };
+
+	/**
+	 * The title found so far.
+	 */
+	private String title = null;
+
+	/**
+	 * The artist found so far.
+	 */
+	private String artist = null;
+
+	/**
+	 * The album found so far.
+	 */
+	private String album = null;
+
+	/**
+	 * The length in seconds found so far.
+	 */
+	private double duration = Double.NaN;
+
+	/**
+	 * The file being read.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * The size of the file being read.
+	 */
+	private final long size;
+
+	/**
+	 * Read the tags of a file.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @return The file's tags; {@link Tags#none} if it has none.
+	 */
+	protected static Tags read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			TagReader reader = new TagReader(channel);
+			ByteBuffer head = reader.map(0, probeSize);
+			if (matches(head, 0, "ID3")) {
+				reader.readId3(head);
+			} else if (matches(head, 0, "fLaC")) {
+				reader.readFlac();
+			} else if (matches(head, 0, "OggS")) {
+				reader.readOgg();
+			} else if (matches(head, 4, "ftyp")) {
+				reader.readMp4();
+			} else if (head.limit() >= 2 && (head.getShort(0) & 0xffe0) == 0xffe0) {
+				// MPEG audio without an ID3v2 tag
+				reader.readMpeg(0);
+				reader.readId3v1();
+			}
+			if (reader.title == null && reader.artist == null && reader.album == null
+					&& Double.isNaN(reader.duration)) {
+				return Tags.none;
+			}
+			return new Tags(reader.title, reader.artist, reader.album, reader.duration);
+		}
+	}
+
+	/**
+	 * Create a reader for an open file.
+	 */
+	private TagReader(FileChannel channel) throws IOException {
+		this.channel = channel;
+		size = channel.size();
+	}
+
+	/**
+	 * Map part of the file, cut short at the end of the file.
+	 */
+	private ByteBuffer map(long position, long length) throws IOException {
+		long start = Long.min(Long.max(0, position), size);
+		long count = Long.min(Long.min(length, maxTagSize), size - start);
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, count);
+	}
+
+	/**
+	 * Read an ID3v2 tag, then the MPEG audio after it.
+	 */
+	private void readId3(ByteBuffer head) throws IOException {
+		if (head.remaining() < 10) {
+			return;
+		}
+		int version = head.get(3) & 0xff;
+		int flags = head.get(5) & 0xff;
+		int tagSize = synchsafe(head, 6);
+		int audioStart = 10 + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+		ByteBuffer tag = map(10, tagSize);
+
+		int position = 0;
+		if ((flags & 0x40) != 0 && tag.remaining() >= 4) {
+			// skip the extended header
+			position = version == 4 ? synchsafe(tag, 0) : tag.getInt(0) + 4;
+		}
+		int idLength = version == 2 ? 3 : 4;
+		int headerLength = version == 2 ? 6 : 10;
+		while (position + headerLength <= tag.limit() && tag.get(position) != 0) {
+			String id = latin(tag, position, idLength);
+			int frameSize = 0;
+			int frameFlags = 0;
+			if (version == 2) {
+				frameSize = ((tag.get(position + 3) & 0xff) << 16) | ((tag.get(position + 4) & 0xff) << 8)
+						| (tag.get(position + 5) & 0xff);
+			} else {
+				frameSize = version == 4 ? synchsafe(tag, position + 4) : tag.getInt(position + 4);
+				frameFlags = tag.getShort(position + 8) & 0xffff;
+			}
+			int start = position + headerLength;
+			if (frameSize <= 0 || start + frameSize > tag.limit()) {
+				break;
+			}
+			// compressed and encrypted frames are skipped
+			boolean plain = version == 4 ? (frameFlags & 0x000c) == 0 : (frameFlags & 0x00c0) == 0;
+			if (plain) {
+				if (id.equals("TIT2") || id.equals("TT2")) {
+					title = id3Text(tag, start, frameSize);
+				} else if (id.equals("TPE1") || id.equals("TP1")) {
+					artist = id3Text(tag, start, frameSize);
+				} else if (id.equals("TALB") || id.equals("TAL")) {
+					album = id3Text(tag, start, frameSize);
+				} else if (id.equals("TLEN") || id.equals("TLE")) {
+					try {
+						duration = Long.parseLong(id3Text(tag, start, frameSize).trim()) / 1000.0;
+					} catch (Exception ex) {
+						duration = Double.NaN;
+					}
+				}
+			}
+			position = start + frameSize;
+		}
+
+		if (Double.isNaN(duration)) {
+			readMpeg(audioStart);
+		}
+		if (title == null) {
+			readId3v1();
+		}
+	}
+
+	/**
+	 * Decode the text of an ID3v2 text frame.
+	 */
+	private static String id3Text(ByteBuffer tag, int start, int length) {
+		Charset charset = StandardCharsets.ISO_8859_1;
+		int encoding = tag.get(start);
+		int unit = 1;
+		if (encoding == 1) {
+			charset = StandardCharsets.UTF_16;
+			unit = 2;
+		} else if (encoding == 2) {
+			charset = StandardCharsets.UTF_16BE;
+			unit = 2;
+		} else if (encoding == 3) {
+			charset = StandardCharsets.UTF_8;
+		}
+		// the first of several values, up to its terminator
+		int end = start + 1;
+		while (end + unit <= start + length) {
+			boolean terminator = tag.get(end) == 0 && (unit == 1 || tag.get(end + 1) == 0);
+			if (terminator) {
+				break;
+			}
+			end += unit;
+		}
+		return text(tag, start + 1, end - start - 1, charset);
+	}
+
+	/**
+	 * Read the 128 byte ID3v1 tag at the end of the file.
+	 */
+	private void readId3v1() throws IOException {
+		if (size < 128) {
+			return;
+		}
+		ByteBuffer tag = map(size - 128, 128);
+		if (!matches(tag, 0, "TAG")) {
+			return;
+		}
+		title = padded(tag, 3, 30);
+		if (artist == null) {
+			artist = padded(tag, 33, 30);
+		}
+		if (album == null) {
+			album = padded(tag, 63, 30);
+		}
+	}
+
+	/**
+	 * Decode a null or space padded ID3v1 field.
+	 */
+	private static String padded(ByteBuffer tag, int start, int length) {
+		int end = start;
+		while (end < start + length && tag.get(end) != 0) {
+			end++;
+		}
+		String value = text(tag, start, end - start, StandardCharsets.ISO_8859_1);
+		return value == null ? null : nonEmpty(value.trim());
+	}
+
+	/**
+	 * Estimate the duration from the first MPEG layer III frame, using its
+	 * Xing or VBRI header if it has one and its bit rate if not.
+	 *
+	 * @param audioStart
+	 *            Where to start looking for the frame.
+	 */
+	private void readMpeg(long audioStart) throws IOException {
+		ByteBuffer audio = map(audioStart, probeSize);
+		int limit = audio.limit() - 4;
+		for (int i = 0; i < limit; i++) {
+			int header = audio.getInt(i);
+			if ((header & 0xffe00000) != 0xffe00000) {
+				continue;
+			}
+			int version = (header >>> 19) & 3;
+			int layer = (header >>> 17) & 3;
+			int rateIndex = (header >>> 12) & 15;
+			int sampleIndex = (header >>> 10) & 3;
+			// 1 is reserved; layer 1 is layer III
+			if (version == 1 || layer != 1 || rateIndex == 0 || rateIndex == 15 || sampleIndex == 3) {
+				continue;
+			}
+			boolean mpeg1 = version == 3;
+			int sampleRate = sampleRates[sampleIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+			int bitRate = (mpeg1 ? mpeg1Rates : mpeg2Rates)[rateIndex] * 1000;
+			int samplesPerFrame = mpeg1 ? 1152 : 576;
+			boolean mono = ((header >>> 6) & 3) == 3;
+
+			int xing = i + (mpeg1 ? (mono ? 21 : 36) : (mono ? 13 : 21));
+			if (xing + 12 <= audio.limit()
+					&& (matches(audio, xing, "Xing") || matches(audio, xing, "Info"))
+					&& (audio.getInt(xing + 4) & 1) != 0) {
+				duration = (audio.getInt(xing + 8) & 0xffffffffL) * (double) samplesPerFrame / sampleRate;
+			} else if (i + 36 + 18 <= audio.limit() && matches(audio, i + 36, "VBRI")) {
+				duration = (audio.getInt(i + 36 + 14) & 0xffffffffL) * (double) samplesPerFrame / sampleRate;
+			} else {
+				duration = (size - audioStart - i) * 8.0 / bitRate;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Read the stream info and Vorbis comment blocks of a FLAC file.
+	 */
+	private void readFlac() throws IOException {
+		long position = 4;
+		boolean last = false;
+		while (!last && position + 4 <= size) {
+			ByteBuffer header = map(position, 4);
+			int type = header.get(0) & 0x7f;
+			last = (header.get(0) & 0x80) != 0;
+			int length = header.getInt(0) & 0xffffff;
+			if (type == 0 && length >= 18) {
+				ByteBuffer info = map(position + 4, 18);
+				long sampleRate = ((info.get(10) & 0xffL) << 12) | ((info.get(11) & 0xffL) << 4)
+						| ((info.get(12) & 0xffL) >>> 4);
+				long samples = ((info.get(13) & 0x0fL) << 32) | (info.getInt(14) & 0xffffffffL);
+				if (sampleRate > 0 && samples > 0) {
+					duration = samples / (double) sampleRate;
+				}
+			} else if (type == 4) {
+				readVorbisComment(map(position + 4, length), 0);
+			}
+			position += 4 + length;
+		}
+	}
+
+	/**
+	 * Read the identification and comment headers of an Ogg Vorbis or Opus
+	 * file, and its length from the last page.
+	 */
+	private void readOgg() throws IOException {
+		ByteBuffer packet = ByteBuffer.allocate(0);
+		int packets = 0;
+		long position = 0;
+		int serial = 0;
+		double sampleRate = Double.NaN;
+		long skip = 0;
+		boolean opus = false;
+
+		// reassemble the first two packets from as many pages as they span
+		while (packets < 2 && position + 27 <= size) {
+			ByteBuffer header = map(position, 27);
+			if (!matches(header, 0, "OggS")) {
+				return;
+			}
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			serial = header.getInt(14);
+			int segments = header.get(26) & 0xff;
+			ByteBuffer lacing = map(position + 27, segments);
+			long body = position + 27 + segments;
+			int start = 0;
+			int length = 0;
+			for (int i = 0; i < segments && packets < 2; i++) {
+				int lace = lacing.get(i) & 0xff;
+				length += lace;
+				if (lace < 255) {
+					packet = append(packet, map(body + start, length));
+					if (packets == 0) {
+						opus = matches(packet, 0, "OpusHead");
+						packet.order(ByteOrder.LITTLE_ENDIAN);
+						if (opus && packet.limit() >= 12) {
+							sampleRate = 48000.0;
+							skip = packet.getShort(10) & 0xffff;
+						} else if (matches(packet, 1, "vorbis") && packet.limit() >= 16) {
+							sampleRate = packet.getInt(12);
+						}
+					} else if (opus && matches(packet, 0, "OpusTags")) {
+						readVorbisComment(packet, 8);
+					} else if (matches(packet, 1, "vorbis")) {
+						readVorbisComment(packet, 7);
+					}
+					packets++;
+					packet = ByteBuffer.allocate(0);
+					start += length;
+					length = 0;
+				}
+			}
+			if (length > 0) {
+				// continued on the next page
+				packet = append(packet, map(body + start, length));
+			}
+			long bodyLength = 0;
+			for (int i = 0; i < segments; i++) {
+				bodyLength += lacing.get(i) & 0xff;
+			}
+			position = body + bodyLength;
+		}
+
+		// the granule position of the last page is the number of samples
+		ByteBuffer tail = map(size - probeSize, probeSize);
+		tail.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = tail.limit() - 27; i >= 0; i--) {
+			if (matches(tail, i, "OggS") && tail.getInt(i + 14) == serial) {
+				long granule = tail.getLong(i + 6);
+				if (granule > 0 && sampleRate > 0) {
+					duration = (granule - skip) / sampleRate;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Join two buffers.
+	 */
+	private static ByteBuffer append(ByteBuffer first, ByteBuffer second) {
+		if (first.limit() == 0) {
+			return second;
+		}
+		if (first.limit() + second.limit() > maxTagSize) {
+			return first;
+		}
+		ByteBuffer joined = ByteBuffer.allocate(first.limit() + second.limit());
+		for (ByteBuffer part : new ByteBuffer[] { first, second }) {
+			ByteBuffer whole = part.duplicate();
+			whole.position(0);
+			joined.put(whole);
+		}
+		joined.flip();
+		return joined;
+	}
+
+	/**
+	 * Read a Vorbis comment block.
+	 *
+	 * @param block
+	 *            The buffer holding the block.
+	 * @param start
+	 *            Where the block starts in the buffer.
+	 */
+	private void readVorbisComment(ByteBuffer block, int start) {
+		ByteBuffer comments = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int position = start;
+		if (position + 4 > comments.limit()) {
+			return;
+		}
+		position += 4 + comments.getInt(position);
+		if (position + 4 > comments.limit() || position < 0) {
+			return;
+		}
+		int count = comments.getInt(position);
+		position += 4;
+		for (int i = 0; i < count && position + 4 <= comments.limit(); i++) {
+			int length = comments.getInt(position);
+			position += 4;
+			if (length < 0 || position + length > comments.limit()) {
+				return;
+			}
+			String comment = text(comments, position, Integer.min(length, maxLength * 4), StandardCharsets.UTF_8);
+			position += length;
+			int equals = comment == null ? -1 : comment.indexOf('=');
+			if (equals <= 0) {
+				continue;
+			}
+			String key = comment.substring(0, equals).toUpperCase(Locale.ROOT);
+			String value = nonEmpty(comment.substring(equals + 1));
+			if (key.equals("TITLE") && title == null) {
+				title = value;
+			} else if (key.equals("ARTIST") && artist == null) {
+				artist = value;
+			} else if (key.equals("ALBUM") && album == null) {
+				album = value;
+			}
+		}
+	}
+
+	/**
+	 * Find the movie box among the top level boxes of an MP4 file without
+	 * reading the media data, then read it.
+	 */
+	private void readMp4() throws IOException {
+		long position = 0;
+		while (position + 8 <= size) {
+			ByteBuffer header = map(position, 16);
+			long boxSize = header.getInt(0) & 0xffffffffL;
+			int headerLength = 8;
+			if (boxSize == 1 && header.limit() >= 16) {
+				boxSize = header.getLong(8);
+				headerLength = 16;
+			} else if (boxSize == 0) {
+				boxSize = size - position;
+			}
+			if (boxSize < headerLength) {
+				return;
+			}
+			if (matches(header, 4, "moov")) {
+				ByteBuffer moov = map(position + headerLength, boxSize - headerLength);
+				readBoxes(moov, 0, moov.limit());
+				return;
+			}
+			position += boxSize;
+		}
+	}
+
+	/**
+	 * Read the boxes within a range of the movie box.
+	 */
+	private void readBoxes(ByteBuffer boxes, int start, int end) {
+		int position = start;
+		while (position + 8 <= end) {
+			int boxSize = boxes.getInt(position);
+			if (boxSize < 8 || position + boxSize > end) {
+				return;
+			}
+			String type = latin(boxes, position + 4, 4);
+			int body = position + 8;
+			int boxEnd = position + boxSize;
+			if (type.equals("udta") || type.equals("ilst")) {
+				readBoxes(boxes, body, boxEnd);
+			} else if (type.equals("meta")) {
+				// a full box, with a version and flags first
+				readBoxes(boxes, body + 4, boxEnd);
+			} else if (type.equals("mvhd") && body + 20 <= boxEnd) {
+				int version = boxes.get(body);
+				long timescale = 0;
+				long length = 0;
+				if (version == 1 && body + 32 <= boxEnd) {
+					timescale = boxes.getInt(body + 20) & 0xffffffffL;
+					length = boxes.getLong(body + 24);
+				} else {
+					timescale = boxes.getInt(body + 12) & 0xffffffffL;
+					length = boxes.getInt(body + 16) & 0xffffffffL;
+				}
+				if (timescale > 0) {
+					duration = length / (double) timescale;
+				}
+			} else if (type.equals("\u00a9nam")) {
+				title = mp4Text(boxes, body, boxEnd);
+			} else if (type.equals("\u00a9ART")) {
+				artist = mp4Text(boxes, body, boxEnd);
+			} else if (type.equals("\u00a9alb")) {
+				album = mp4Text(boxes, body, boxEnd);
+			}
+			position = boxEnd;
+		}
+	}
+
+	/**
+	 * Decode the data box within an iTunes metadata item.
+	 */
+	private static String mp4Text(ByteBuffer boxes, int start, int end) {
+		if (start + 16 > end || !latin(boxes, start + 4, 4).equals("data")) {
+			return null;
+		}
+		int dataEnd = Integer.min(end, start + boxes.getInt(start));
+		// the data box has a type and a locale before the text
+		return text(boxes, start + 16, dataEnd - start - 16, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read an ID3v2 synchsafe integer, which has 7 bits in each byte.
+	 */
+	private static int synchsafe(ByteBuffer buffer, int position) {
+		return ((buffer.get(position) & 0x7f) << 21) | ((buffer.get(position + 1) & 0x7f) << 14)
+				| ((buffer.get(position + 2) & 0x7f) << 7) | (buffer.get(position + 3) & 0x7f);
+	}
+
+	/**
+	 * True iff the buffer holds the given ASCII text at a position.
+	 */
+	private static boolean matches(ByteBuffer buffer, int position, String text) {
+		if (position < 0 || position + text.length() > buffer.limit()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (buffer.get(position + i) != (byte) text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decode Latin-1 text such as a frame id or box type.
+	 */
+	private static String latin(ByteBuffer buffer, int position, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (buffer.get(position + i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Decode text, or null if there is none.
+	 */
+	private static String text(ByteBuffer buffer, int position, int length, Charset charset) {
+		if (length <= 0 || position < 0 || position + length > buffer.limit()) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(position);
+		source.get(bytes);
+		String value = new String(bytes, charset);
+		if (value.length() > maxLength) {
+			value = value.substring(0, maxLength);
+		}
+		return nonEmpty(value);
+	}
+
+	/**
+	 * The text, or null if it is empty.
+	 */
+	private static String nonEmpty(String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+}
@@ -0,0 +1,69 @@
+package WeightedPlaylist;
+
+/**
+ * The descriptive tags of a song.
+ */
+public final class Tags {
+	/**
+	 * The tags of a file that has none or could not be read.
+	 */
+	protected static final Tags none = new Tags(null, null, null, Double.NaN);
+
+	/**
+	 * The song's title, or null if unknown.
+	 */
+	private final String title;
+
+	/**
+	 * The song's artist, or null if unknown.
+	 */
+	private final String artist;
+
+	/**
+	 * The song's album, or null if unknown.
+	 */
+	private final String album;
+
+	/**
+	 * The song's length in seconds, or NaN if unknown.
+	 */
+	private final double duration;
+
+	/**
+	 * Create a set of tags.
+	 */
+	protected Tags(String title, String artist, String album, double duration) {
+		this.title = title;
+		this.artist = artist;
+		this.album = album;
+		this.duration = duration;
+	}
+
+	/**
+	 * The song's title, or null if unknown.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * The song's artist, or null if unknown.
+	 */
+	public String getArtist() {
+		return artist;
+	}
+
+	/**
+	 * The song's album, or null if unknown.
+	 */
+	public String getAlbum() {
+		return album;
+	}
+
+	/**
+	 * The song's length in seconds, or NaN if unknown.
+	 */
+	public double getDuration() {
+		return duration;
+	}
+}
@@ -0,0 +1,430 @@
+package WeightedPlaylist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import Logging.Logger;
+
+/**
+ * Copies songs stored on another drive, such as a network share, to a folder
+ * in the user's home directory before they are played, so that starting them
+ * doesn't wait on the network. Songs are copied one at a time in the
+ * background. The least recently used copies are deleted once the copies take
+ * more than a byte budget. Each copy's checksum is kept in an index, so that
+ * copies survive restarts and damaged ones are never played.
+ */
+public final class TrackCache {
+	/**
+	 * The most bytes the copies may take.
+	 */
+	private static final long budget = 2L * 1024L * 1024L * 1024L;
+
+	/**
+	 * Identifies the index file's format.
+	 */
+	private static final int cacheVersion = 0x61776331;
+
+	/**
+	 * The name of the index in the cache folder.
+	 */
+	private static final String indexName = "index";
+
+	/**
+	 * The extension of a copy being made.
+	 */
+	private static final String partExtension = ".part";
+
+	/**
+	 * The copies by the absolute path of their song, least recently used first.
+	 */
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/**
+	 * The songs waiting to be copied, so that each is only queued once.
+	 */
+	private static final Set<String> pending = new HashSet<String>();
+
+	/**
+	 * The bytes taken by the copies.
+	 */
+	private static long used = 0;
+
+	/**
+	 * The number used to name the next copy.
+	 */
+	private static long nextId = 0;
+
+	/**
+	 * The folder holding the copies, or null until the index is read.
+	 */
+	private static File folder = null;
+
+	/**
+	 * The drive the copies are on, or null if it couldn't be found.
+	 */
+	private static FileStore localStore = null;
+
+	/**
+	 * Copies songs one at a time.
+	 */
+	private static ExecutorService worker = null;
+
+	/**
+	 * A copy of a song.
+	 */
+	private static final class Entry {
+		/**
+		 * The size of the song's file when it was copied.
+		 */
+		private long size = 0;
+
+		/**
+		 * The time the song's file was last modified when it was copied.
+		 */
+		private long modified = 0;
+
+		/**
+		 * The name of the copy in the cache folder.
+		 */
+		private String name = null;
+
+		/**
+		 * The checksum of the copy when it was made.
+		 */
+		private long checksum = 0;
+
+		/**
+		 * True once the copy has been checked against its checksum in this
+		 * run.
+		 */
+		private boolean verified = false;
+	}
+
+	/**
+	 * Start copying songs which are about to be played, in order, unless they
+	 * are already copied or on the same drive as the cache.
+	 *
+	 * @param files
+	 *            The songs to be played soon.
+	 */
+	public static synchronized void prefetch(List<MusicFile> files) {
+		if (worker == null) {
+			worker = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "Cache");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+			worker.execute(TrackCache::load);
+		}
+		for (MusicFile mf : files) {
+			if (mf == null || !mf.isValid()) {
+				continue;
+			}
+			File file = mf.getFile();
+			if (!entries.containsKey(file.getPath()) && pending.add(file.getPath())) {
+				worker.execute(() -> copy(file));
+			}
+		}
+	}
+
+	/**
+	 * The file a song should be played from: its copy if there is an intact
+	 * copy of its current contents, otherwise the song's own file.
+	 *
+	 * @param file
+	 *            The song's file.
+	 */
+	protected static File local(File file) {
+		Entry entry = null;
+		File copy = null;
+		synchronized (TrackCache.class) {
+			entry = entries.get(file.getPath());
+			if (entry == null) {
+				return file;
+			}
+			copy = new File(folder, entry.name);
+		}
+		if (entry.size != file.length() || entry.modified != file.lastModified() || !verify(copy, entry)) {
+			synchronized (TrackCache.class) {
+				evict(file.getPath());
+			}
+			return file;
+		}
+		return copy;
+	}
+
+	/**
+	 * True iff a song has a copy which {@link #local(File)} would play.
+	 */
+	protected static synchronized boolean isCached(File file) {
+		return entries.containsKey(file.getPath());
+	}
+
+	/**
+	 * Check a copy against its checksum, once per run.
+	 */
+	private static boolean verify(File copy, Entry entry) {
+		if (entry.verified) {
+			return true;
+		}
+		try {
+			entry.verified = copy.length() == entry.size && checksum(copy) == entry.checksum;
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+		return entry.verified;
+	}
+
+	/**
+	 * Copy a song into the cache if it is on another drive.
+	 */
+	private static void copy(File file) {
+		try {
+			if (folder == null || !isRemote(file)) {
+				return;
+			}
+			Entry entry = new Entry();
+			entry.size = file.length();
+			entry.modified = file.lastModified();
+			if (entry.size <= 0 || entry.size > budget) {
+				return;
+			}
+			synchronized (TrackCache.class) {
+				// queued before the index was read
+				Entry old = entries.get(file.getPath());
+				if (old != null && old.size == entry.size && old.modified == entry.modified) {
+					return;
+				}
+				entry.name = Long.toString(nextId++) + extension(file);
+			}
+
+			File part = new File(folder, entry.name + partExtension);
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long position = 0;
+				while (position < entry.size) {
+					long copied = in.transferTo(position, entry.size - position, out);
+					if (copied <= 0) {
+						break;
+					}
+					position += copied;
+				}
+				out.force(true);
+			}
+
+			// the song changed while it was copied
+			if (part.length() != entry.size || file.length() != entry.size
+					|| file.lastModified() != entry.modified) {
+				Files.deleteIfExists(part.toPath());
+				return;
+			}
+			entry.checksum = checksum(part);
+			entry.verified = true;
+			Files.move(part.toPath(), new File(folder, entry.name).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			synchronized (TrackCache.class) {
+				evict(file.getPath());
+				entries.put(file.getPath(), entry);
+				used += entry.size;
+				Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+				while (used > budget && eldest.hasNext()) {
+					Map.Entry<String, Entry> old = eldest.next();
+					eldest.remove();
+					delete(old.getValue());
+				}
+				save();
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		} finally {
+			synchronized (TrackCache.class) {
+				pending.remove(file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * True iff a file is on another drive than the cache.
+	 */
+	private static boolean isRemote(File file) throws IOException {
+		return localStore != null && !localStore.equals(Files.getFileStore(file.toPath()));
+	}
+
+	/**
+	 * The extension of a file including its dot, so that a copy is played as
+	 * the same format.
+	 */
+	private static String extension(File file) {
+		int index = file.getName().lastIndexOf('.');
+		return index > 0 ? file.getName().substring(index) : "";
+	}
+
+	/**
+	 * The CRC-32 of a file.
+	 */
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Long.min(Integer.MAX_VALUE, size - position));
+				crc.update(buffer);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Forget and delete the copy of a song, if there is one.
+	 */
+	private static void evict(String path) {
+		Entry entry = entries.remove(path);
+		if (entry != null) {
+			delete(entry);
+		}
+	}
+
+	/**
+	 * Delete a copy which has been forgotten.
+	 */
+	private static void delete(Entry entry) {
+		used -= entry.size;
+		if (!new File(folder, entry.name).delete()) {
+			Logger.log("Could not delete cached " + entry.name);
+		}
+	}
+
+	/**
+	 * Read the index and delete copies which aren't in it, such as those cut
+	 * off when the player was closed.
+	 */
+	private static void load() {
+		File cacheFolder = new File(System.getProperty("user.home")).getAbsoluteFile().toPath()
+				.resolve("awed.cache").toFile();
+		if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs()) {
+			Logger.log("Could not create " + cacheFolder);
+			return;
+		}
+
+		LinkedHashMap<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+		long highest = -1;
+		File index = new File(cacheFolder, indexName);
+		if (index.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+				if (in.readInt() == cacheVersion) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						String path = in.readUTF();
+						Entry entry = new Entry();
+						entry.size = in.readLong();
+						entry.modified = in.readLong();
+						entry.name = in.readUTF();
+						entry.checksum = in.readLong();
+						loaded.put(path, entry);
+					}
+				}
+			} catch (IOException ex) {
+				Logger.log(ex.toString());
+			}
+		}
+
+		HashSet<String> names = new HashSet<String>();
+		for (Entry entry : loaded.values()) {
+			names.add(entry.name);
+			int dot = entry.name.indexOf('.');
+			try {
+				highest = Long.max(highest, Long.parseLong(dot < 0 ? entry.name : entry.name.substring(0, dot)));
+			} catch (NumberFormatException ex) {
+				Logger.log(ex.toString());
+			}
+		}
+		File[] children = cacheFolder.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (!child.getName().equals(indexName) && !names.contains(child.getName())) {
+					child.delete();
+				}
+			}
+		}
+
+		FileStore store = null;
+		try {
+			store = Files.getFileStore(cacheFolder.toPath());
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+
+		synchronized (TrackCache.class) {
+			folder = cacheFolder;
+			localStore = store;
+			nextId = highest + 1;
+			for (Map.Entry<String, Entry> entry : loaded.entrySet()) {
+				if (new File(folder, entry.getValue().name).length() == entry.getValue().size) {
+					entries.put(entry.getKey(), entry.getValue());
+					used += entry.getValue().size;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace the index with the current copies, least recently used first.
+	 */
+	private static void save() {
+		File index = new File(folder, indexName);
+		File temporary = new File(folder, indexName + partExtension);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary)))) {
+			out.writeInt(cacheVersion);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				Entry value = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(value.size);
+				out.writeLong(value.modified);
+				out.writeUTF(value.name);
+				out.writeLong(value.checksum);
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			return;
+		}
+		try {
+			Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+	}
+
+	/**
+	 * Not instantiated.
+	 */
+	private TrackCache() {
+	}
+}
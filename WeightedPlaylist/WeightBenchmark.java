@@ -0,0 +1,172 @@
+package WeightedPlaylist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long it takes to save and to update the weights of a deep
+ * library, and to rescale it or one of its largest folders, with preferences
+ * files in each folder and then with the {@link WeightStore}. The library and the store are made in a temporary
+ * folder, which is deleted afterwards.
+ *
+ * Usage: WeightBenchmark [depth] [folders per folder] [songs per folder] [runs]
+ *
+ * @author Shaen Deimling
+ *
+ */
+public class WeightBenchmark {
+	/**
+	 * The number of levels of folders unless given on the command line.
+	 */
+	private static final int defaultDepth = 5;
+
+	/**
+	 * The number of folders in each folder unless given on the command line.
+	 */
+	private static final int defaultFolders = 6;
+
+	/**
+	 * The number of songs in each folder unless given on the command line.
+	 */
+	private static final int defaultSongs = 4;
+
+	/**
+	 * The number of measured runs unless given on the command line.
+	 */
+	private static final int defaultRuns = 20;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            The depth, folders per folder, songs per folder and runs.
+	 */
+	public static void main(String[] args) throws IOException {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : defaultDepth;
+		int folders = args.length > 1 ? Integer.parseInt(args[1]) : defaultFolders;
+		int songs = args.length > 2 ? Integer.parseInt(args[2]) : defaultSongs;
+		int runs = args.length > 3 ? Integer.parseInt(args[3]) : defaultRuns;
+
+		Path root = Files.createTempDirectory("awed");
+		try {
+			int[] created = create(root, depth, folders, songs);
+			System.out.println(String.format("%d folders, %d songs, %d levels", created[0], created[1], depth));
+
+			System.out.println("preferences files:");
+			measure(root, runs);
+
+			Path store = Files.createTempFile("awed", ".store");
+			try {
+				WeightStore.open(store.toFile());
+				WeightStore.importFiles(root.toFile());
+				System.out.println("weight store:");
+				measure(root, runs);
+			} finally {
+				WeightStore.close();
+				Files.delete(store);
+			}
+		} finally {
+			delete(root.toFile());
+		}
+	}
+
+	/**
+	 * Load the library, then save it, update its weights, rate one of its
+	 * songs, rescale it and rate one of its folders many times.
+	 */
+	private static void measure(Path root, int runs) {
+		long start = System.nanoTime();
+		Playlist playlist = AudioSource.getPrimarySource(root.toFile());
+		System.out.println(String.format("  load:          %10.2f ms", (System.nanoTime() - start) / 1e6));
+
+		// the first runs also warm up
+		for (int i = 0; i < Integer.max(1, runs / 4); i++) {
+			playlist.updateFile();
+			playlist.updateWeights();
+		}
+
+		start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			playlist.updateFile();
+		}
+		System.out.println(String.format("  updateFile:    %10.2f ms", (System.nanoTime() - start) / 1e6 / runs));
+
+		start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			playlist.updateWeights();
+		}
+		System.out.println(String.format("  updateWeights: %10.2f ms", (System.nanoTime() - start) / 1e6 / runs));
+
+		// saved by the store alone, or with the folder otherwise
+		MusicFile song = playlist.getFiles().get(0);
+		start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			song.modifyWeight(1.0);
+			if (!WeightStore.isOpen()) {
+				song.getParent().updateFile();
+			}
+		}
+		System.out.println(String.format("  rate one song: %10.3f ms", (System.nanoTime() - start) / 1e6 / runs));
+
+		// applied to the songs the next time they are saved
+		start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			playlist.balanceWeight(i % 2 == 0 ? 2.0 : 0.5);
+		}
+		System.out.println(String.format("  rescale all:   %10.3f ms", (System.nanoTime() - start) / 1e6 / runs));
+
+		// one of the largest folders, saved by the store alone
+		Playlist folder = song.getParent();
+		while (folder.getParent() != null && folder.getParent().getParent() != null) {
+			folder = folder.getParent();
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			folder.modifyWeight(i % 2 == 0 ? 2.0 : 0.5);
+		}
+		System.out.println(String.format("  rate a folder: %10.3f ms", (System.nanoTime() - start) / 1e6 / runs));
+	}
+
+	/**
+	 * Create a tree of folders and empty songs.
+	 *
+	 * @return The number of folders and songs created.
+	 */
+	private static int[] create(Path dir, int depth, int folders, int songs) throws IOException {
+		int[] created = { 1, songs };
+		for (int i = 0; i < songs; i++) {
+			Files.createFile(dir.resolve("song " + i + ".mp3"));
+		}
+		if (depth > 1) {
+			for (int i = 0; i < folders; i++) {
+				Path folder = Files.createDirectory(dir.resolve("folder " + i));
+				int[] inner = create(folder, depth - 1, folders, songs);
+				created[0] += inner[0];
+				created[1] += inner[1];
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Delete a file or folder and everything in it.
+	 */
+	private static void delete(File file) {
+		List<File> files = new ArrayList<File>();
+		files.add(file);
+		for (int i = 0; i < files.size(); i++) {
+			File[] children = files.get(i).listFiles();
+			if (children != null) {
+				Collections.addAll(files, children);
+			}
+		}
+		for (int i = files.size() - 1; i >= 0; i--) {
+			files.get(i).delete();
+		}
+	}
+}
@@ -0,0 +1,612 @@
+package WeightedPlaylist;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Scanner;
+
+import Logging.Logger;
+
+/**
+ * Keeps the user's preferences for every song and folder in one memory-mapped
+ * file in the user's home folder, instead of a preferences file in each
+ * folder. Each file or folder has a fixed-size record, found through a hash
+ * table in the file by the record of the folder it is in and its name, so
+ * that opening the store maps a single file and changing a weight is a single
+ * write in place. The records hold the same values as the lines of the
+ * preferences files, which can be imported into the store and exported from
+ * it.
+ */
+public final class WeightStore {
+	/**
+	 * The name of the store in the user's home folder.
+	 */
+	private static final String storeName = "awed.store";
+
+	/**
+	 * The name of the preferences file in each folder.
+	 */
+	private static final String preferencesName = "awed.txt";
+
+	/**
+	 * Identifies the store's format.
+	 */
+	private static final int storeVersion = 0x61777331;
+
+	/**
+	 * The bytes before the records.
+	 */
+	private static final int headerSize = 64;
+
+	/**
+	 * The bytes taken by each record: the record of the folder it is in, the
+	 * offset and length of its name, its flags, its count, its weight, its
+	 * rating and the time it was rated.
+	 */
+	private static final int recordSize = 48;
+
+	/**
+	 * The number of records a new store has room for.
+	 */
+	private static final int initialCapacity = 1024;
+
+	/**
+	 * The bytes of names a new store has room for.
+	 */
+	private static final int initialNames = 16 * 1024;
+
+	/**
+	 * The folder of the records for the tops of the file system.
+	 */
+	private static final int noParent = -1;
+
+	/**
+	 * Set on records holding the values of a line, rather than only holding
+	 * other records.
+	 */
+	private static final int hasValue = 1;
+
+	/**
+	 * Set on folders whose preferences files have been imported.
+	 */
+	private static final int imported = 2;
+
+	/**
+	 * The map of the whole store, or null while it is closed.
+	 */
+	private static MappedByteBuffer buffer = null;
+
+	/**
+	 * The open store.
+	 */
+	private static RandomAccessFile file = null;
+
+	/**
+	 * The number of records.
+	 */
+	private static int count = 0;
+
+	/**
+	 * The number of records there is room for. The hash table has twice as
+	 * many slots.
+	 */
+	private static int capacity = 0;
+
+	/**
+	 * The bytes of names written.
+	 */
+	private static int namesUsed = 0;
+
+	/**
+	 * The bytes of names there is room for.
+	 */
+	private static int namesCapacity = 0;
+
+	/**
+	 * Open the store, creating it if there is none. Until it is closed,
+	 * preferences are read from and saved to it instead of the preferences
+	 * files.
+	 *
+	 * @return True iff the store is open.
+	 */
+	public static boolean open() {
+		return open(new File(System.getProperty("user.home")).getAbsoluteFile().toPath().resolve(storeName).toFile());
+	}
+
+	/**
+	 * Open a store other than the user's, creating it if there is none.
+	 *
+	 * @param storeFile
+	 *            The store.
+	 * @return True iff the store is open.
+	 */
+	protected static synchronized boolean open(File storeFile) {
+		if (buffer != null) {
+			return true;
+		}
+		try {
+			file = new RandomAccessFile(storeFile, "rw");
+			if (file.length() < headerSize) {
+				count = 0;
+				capacity = initialCapacity;
+				namesUsed = 0;
+				namesCapacity = initialNames;
+				map();
+				buffer.putInt(0, storeVersion);
+				writeHeader();
+			} else {
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+				count = buffer.getInt(4);
+				capacity = buffer.getInt(8);
+				namesUsed = buffer.getInt(12);
+				namesCapacity = buffer.getInt(16);
+				if (buffer.getInt(0) != storeVersion || file.length() < size(capacity, namesCapacity)) {
+					throw new IOException(storeFile + " is not a weight store.");
+				}
+			}
+			return true;
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * Close the store. Preferences are read from and saved to the
+	 * preferences files again.
+	 */
+	public static synchronized void close() {
+		if (buffer != null) {
+			buffer.force();
+			buffer = null;
+		}
+		try {
+			if (file != null) {
+				file.close();
+			}
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+		file = null;
+	}
+
+	/**
+	 * True iff the store is open.
+	 */
+	public static synchronized boolean isOpen() {
+		return buffer != null;
+	}
+
+	/**
+	 * Copy the preferences files of a folder and everything in it, and the
+	 * line for the folder itself in the folder above, into the store.
+	 *
+	 * @param root
+	 *            The folder.
+	 * @return The number of lines copied.
+	 */
+	public static synchronized int importFiles(File root) {
+		if (buffer == null) {
+			return 0;
+		}
+		int lines = 0;
+		File top = root.getAbsoluteFile();
+		ArrayDeque<File> folders = new ArrayDeque<File>();
+		folders.add(top);
+		if (top.getParentFile() != null) {
+			lines += importFile(top.getParentFile());
+		}
+		while (!folders.isEmpty()) {
+			File dir = folders.pop();
+			lines += importFile(dir);
+			File[] children = dir.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					if (child.isDirectory()) {
+						folders.push(child);
+					}
+				}
+			}
+		}
+		int record = folder(top);
+		if (record != -1) {
+			setFlags(record, flags(record) | imported);
+		}
+		return lines;
+	}
+
+	/**
+	 * True iff a folder's preferences files have been imported.
+	 */
+	public static synchronized boolean isImported(File root) {
+		int record = buffer == null ? -1 : find(root.getAbsoluteFile());
+		return record != -1 && (flags(record) & imported) != 0;
+	}
+
+	/**
+	 * Write the preferences files of a folder and everything in it from the
+	 * store.
+	 *
+	 * @param root
+	 *            The folder.
+	 * @return The number of files written.
+	 */
+	public static synchronized int exportFiles(File root) {
+		if (buffer == null) {
+			return 0;
+		}
+		int files = 0;
+		ArrayDeque<File> folders = new ArrayDeque<File>();
+		folders.add(root.getAbsoluteFile());
+		while (!folders.isEmpty()) {
+			File dir = folders.pop();
+			File[] children = dir.listFiles();
+			if (children == null) {
+				continue;
+			}
+			ArrayList<String> names = new ArrayList<String>();
+			for (File child : children) {
+				if (!child.getName().equals(preferencesName)) {
+					names.add(child.getName());
+				}
+				if (child.isDirectory()) {
+					folders.push(child);
+				}
+			}
+			List<String> lines = lines(dir, names);
+			if (lines.isEmpty()) {
+				continue;
+			}
+			try (FileWriter fw = new FileWriter(new File(dir, preferencesName), false);
+					PrintWriter pw = new PrintWriter(new BufferedWriter(fw))) {
+				for (String line : lines) {
+					pw.println(line);
+				}
+				files++;
+			} catch (IOException ex) {
+				Logger.log(ex.toString());
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * The lines a preferences file would hold for some of the files and
+	 * folders in a folder. Those without a record are left out.
+	 *
+	 * @param dir
+	 *            The folder.
+	 * @param names
+	 *            The names of the files and folders.
+	 * @return The lines.
+	 */
+	protected static synchronized List<String> lines(File dir, Collection<String> names) {
+		ArrayList<String> lines = new ArrayList<String>();
+		int folder = buffer == null || dir == null ? -1 : find(dir.getAbsoluteFile());
+		if (folder == -1) {
+			return lines;
+		}
+		for (String name : names) {
+			int record = find(folder, name.getBytes(StandardCharsets.UTF_8));
+			if (record != -1 && (flags(record) & hasValue) != 0) {
+				lines.add(token(record) + " " + name);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * The record of a folder, which is created if it doesn't exist.
+	 *
+	 * @param dir
+	 *            The folder.
+	 * @return The record, or -1 if the store is closed or full.
+	 */
+	protected static synchronized int folder(File dir) {
+		if (buffer == null) {
+			return -1;
+		}
+		try {
+			Path path = dir.getAbsoluteFile().toPath();
+			int record = child(noParent, path.getRoot().toString());
+			for (Path name : path) {
+				record = child(record, name.toString());
+			}
+			return record;
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+			return -1;
+		}
+	}
+
+	/**
+	 * Save the values of a line of a preferences file. Nothing is written if
+	 * they haven't changed.
+	 *
+	 * @param folder
+	 *            The record of the folder the line is for.
+	 * @param name
+	 *            The name of the file or folder.
+	 * @param weight
+	 *            The weight.
+	 * @param songs
+	 *            The count of a folder, or -1 if there is none.
+	 * @param rating
+	 *            The rating of a song, or 1.0 if there is none.
+	 * @param rated
+	 *            The time the rating was given in milliseconds.
+	 */
+	protected static synchronized void put(int folder, String name, double weight, int songs, double rating,
+			long rated) {
+		if (buffer == null || folder == -1) {
+			return;
+		}
+		try {
+			int record = child(folder, name);
+			int at = headerSize + record * recordSize;
+			// unchanged pages aren't written back
+			if ((flags(record) & hasValue) != 0 && buffer.getInt(at + 16) == songs
+					&& Double.compare(buffer.getDouble(at + 24), weight) == 0
+					&& Double.compare(buffer.getDouble(at + 32), rating) == 0 && buffer.getLong(at + 40) == rated) {
+				return;
+			}
+			buffer.putInt(at + 16, songs);
+			buffer.putDouble(at + 24, weight);
+			buffer.putDouble(at + 32, rating);
+			buffer.putLong(at + 40, rated);
+			setFlags(record, flags(record) | hasValue);
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+	}
+
+	/**
+	 * Copy the lines of a folder's preferences file into the store.
+	 *
+	 * @return The number of lines copied.
+	 */
+	private static int importFile(File dir) {
+		File preferences = new File(dir, preferencesName);
+		if (!preferences.isFile()) {
+			return 0;
+		}
+		int folder = folder(dir);
+		int lines = 0;
+		try {
+			Scanner fileReader = new Scanner(preferences);
+			while (fileReader.hasNextLine()) {
+				String line = fileReader.nextLine();
+				String parts[] = line.split(" ", 2);
+				if (parts.length != 2) {
+					continue;
+				}
+				String token = parts[0];
+				int colon = token.indexOf(':');
+				int star = token.indexOf('*');
+				int at = token.indexOf('@');
+				int end = star == -1 ? token.length() : star;
+				try {
+					double weight = Double.parseDouble(token.substring(0, colon == -1 ? end : colon));
+					int songs = colon == -1 ? -1 : Integer.parseInt(token.substring(colon + 1, end));
+					double rating = 1.0;
+					long rated = 0;
+					if (star != -1 && at > star) {
+						rating = Double.parseDouble(token.substring(star + 1, at));
+						rated = Long.parseLong(token.substring(at + 1));
+					}
+					put(folder, parts[1], weight, songs, rating, rated);
+					lines++;
+				} catch (NumberFormatException ex) {
+					// skipped, as when the file is loaded
+				}
+			}
+			fileReader.close();
+		} catch (IOException ex) {
+			Logger.log(ex.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 * The token a preferences file would hold for a record.
+	 */
+	private static String token(int record) {
+		int at = headerSize + record * recordSize;
+		StringBuilder token = new StringBuilder(Double.toString(buffer.getDouble(at + 24)));
+		int songs = buffer.getInt(at + 16);
+		if (songs >= 0) {
+			token.append(':').append(songs);
+		}
+		double rating = buffer.getDouble(at + 32);
+		if (rating != 1.0) {
+			token.append('*').append(Double.toString(rating)).append('@').append(buffer.getLong(at + 40));
+		}
+		return token.toString();
+	}
+
+	/**
+	 * The record of a folder, or -1 if it has none.
+	 */
+	private static int find(File dir) {
+		Path path = dir.toPath();
+		int record = find(noParent, path.getRoot().toString().getBytes(StandardCharsets.UTF_8));
+		for (Path name : path) {
+			if (record == -1) {
+				break;
+			}
+			record = find(record, name.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return record;
+	}
+
+	/**
+	 * The record of a file or folder in a folder, or -1 if it has none.
+	 */
+	private static int find(int parent, byte[] name) {
+		return buffer.getInt(slot(parent, name)) - 1;
+	}
+
+	/**
+	 * The record of a file or folder in a folder, which is created if it
+	 * doesn't exist.
+	 */
+	private static int child(int parent, String name) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int record = find(parent, bytes);
+		if (record != -1) {
+			return record;
+		}
+		if (count == capacity || namesUsed + bytes.length > namesCapacity) {
+			grow(count == capacity ? capacity * 2 : capacity,
+					Integer.max(namesCapacity, (namesUsed + bytes.length) * 2));
+		}
+		record = count++;
+		int at = headerSize + record * recordSize;
+		buffer.putInt(at, parent);
+		buffer.putInt(at + 4, namesUsed);
+		buffer.putInt(at + 8, bytes.length);
+		buffer.putInt(at + 12, 0);
+		buffer.putInt(at + 16, -1);
+		buffer.putDouble(at + 24, 1.0);
+		buffer.putDouble(at + 32, 1.0);
+		buffer.putLong(at + 40, 0);
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(namesStart() + namesUsed + i, bytes[i]);
+		}
+		namesUsed += bytes.length;
+		buffer.putInt(slot(parent, bytes), record + 1);
+		writeHeader();
+		return record;
+	}
+
+	/**
+	 * The position in the hash table of the slot holding a file or folder,
+	 * or of the empty slot where it would go. Slots hold a record plus one.
+	 */
+	private static int slot(int parent, byte[] name) {
+		int mask = capacity * 2 - 1;
+		int hash = parent * 31 + Arrays.hashCode(name);
+		hash = (hash ^ (hash >>> 16)) * 0x9E3779B1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int at = hashStart() + i * 4;
+			int record = buffer.getInt(at) - 1;
+			if (record == -1 || isNamed(record, parent, name)) {
+				return at;
+			}
+		}
+	}
+
+	/**
+	 * True iff a record is for a file or folder in a folder.
+	 */
+	private static boolean isNamed(int record, int parent, byte[] name) {
+		int at = headerSize + record * recordSize;
+		if (buffer.getInt(at) != parent || buffer.getInt(at + 8) != name.length) {
+			return false;
+		}
+		int start = namesStart() + buffer.getInt(at + 4);
+		for (int i = 0; i < name.length; i++) {
+			if (buffer.get(start + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Make room for more records or names. The names are moved after the
+	 * larger hash table, which is filled again.
+	 */
+	private static void grow(int newCapacity, int newNamesCapacity) throws IOException {
+		byte[] names = new byte[namesUsed];
+		for (int i = 0; i < namesUsed; i++) {
+			names[i] = buffer.get(namesStart() + i);
+		}
+		capacity = newCapacity;
+		namesCapacity = newNamesCapacity;
+		map();
+		for (int i = 0; i < namesUsed; i++) {
+			buffer.put(namesStart() + i, names[i]);
+		}
+		for (int i = 0; i < capacity * 2; i++) {
+			buffer.putInt(hashStart() + i * 4, 0);
+		}
+		for (int record = 0; record < count; record++) {
+			int at = headerSize + record * recordSize;
+			int start = buffer.getInt(at + 4);
+			byte[] name = Arrays.copyOfRange(names, start, start + buffer.getInt(at + 8));
+			buffer.putInt(slot(buffer.getInt(at), name), record + 1);
+		}
+		writeHeader();
+	}
+
+	/**
+	 * Size the store for the current capacities and map all of it.
+	 */
+	private static void map() throws IOException {
+		long size = size(capacity, namesCapacity);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The weight store is full.");
+		}
+		file.setLength(size);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Write the counts and capacities.
+	 */
+	private static void writeHeader() {
+		buffer.putInt(4, count);
+		buffer.putInt(8, capacity);
+		buffer.putInt(12, namesUsed);
+		buffer.putInt(16, namesCapacity);
+	}
+
+	/**
+	 * The flags of a record.
+	 */
+	private static int flags(int record) {
+		return buffer.getInt(headerSize + record * recordSize + 12);
+	}
+
+	/**
+	 * Set the flags of a record.
+	 */
+	private static void setFlags(int record, int flags) {
+		buffer.putInt(headerSize + record * recordSize + 12, flags);
+	}
+
+	/**
+	 * The bytes a store takes.
+	 */
+	private static long size(int capacity, int namesCapacity) {
+		return headerSize + (long) capacity * recordSize + (long) capacity * 2 * 4 + namesCapacity;
+	}
+
+	/**
+	 * The position of the hash table.
+	 */
+	private static int hashStart() {
+		return headerSize + capacity * recordSize;
+	}
+
+	/**
+	 * The position of the names.
+	 */
+	private static int namesStart() {
+		return hashStart() + capacity * 2 * 4;
+	}
+}